@@ -0,0 +1,137 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.DiscordUser;
+import cards.monarch.db.database.GuildConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks refreshing the caches from synthetic result sets, counting the active database users and, looking up
+ * entries in the cache maps.
+ *
+ * @author danny
+ * @version 1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    static final String[] GUILD_COLUMNS = {"GuildID", "AllowedAccess", "DatabaseStatusCategoryID",
+            "UserChangeLogChannelID", "ActiveUserChannelID", "AdministratorRoleID", "AccountQuota"};
+    static final String[] DISCORD_USER_COLUMNS = {"DiscordID", "NameCache"};
+    static final String[] DATABASE_USER_COLUMNS = {"DatabaseUserID", "GuildID", "DiscordID", "UserName", "CreationTime",
+            "DeletionTime", "Active"};
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private List<Object[]> guildRows;
+    private List<Object[]> discordUserRows;
+    private List<Object[]> databaseUserRows;
+    private BotManager botManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        this.guildRows = guildRows(this.rows);
+        this.discordUserRows = discordUserRows(this.rows);
+        this.databaseUserRows = databaseUserRows(this.rows, this.rows, this.rows);
+
+        this.botManager = new BotManager(null, "", false);
+        this.botManager.loadGuildConfigs(SyntheticResultSet.of(GUILD_COLUMNS, this.guildRows));
+        this.botManager.loadDiscordUsers(SyntheticResultSet.of(DISCORD_USER_COLUMNS, this.discordUserRows));
+        this.botManager.loadDatabaseUsers(SyntheticResultSet.of(DATABASE_USER_COLUMNS, this.databaseUserRows));
+    }
+
+    @Benchmark
+    public BotManager refreshGuildConfigs() throws SQLException {
+        this.botManager.loadGuildConfigs(SyntheticResultSet.of(GUILD_COLUMNS, this.guildRows));
+        return this.botManager;
+    }
+
+    @Benchmark
+    public BotManager refreshDiscordUsers() throws SQLException {
+        this.botManager.loadDiscordUsers(SyntheticResultSet.of(DISCORD_USER_COLUMNS, this.discordUserRows));
+        return this.botManager;
+    }
+
+    @Benchmark
+    public BotManager refreshDatabaseUsers() throws SQLException {
+        this.botManager.loadDatabaseUsers(SyntheticResultSet.of(DATABASE_USER_COLUMNS, this.databaseUserRows));
+        return this.botManager;
+    }
+
+    @Benchmark
+    public int countActiveUsers() {
+        return this.botManager.getActiveUserCount(ThreadLocalRandom.current().nextLong(this.rows));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public GuildConfig lookupGuildConfig() {
+        return this.botManager.getGuildConfigs().get(ThreadLocalRandom.current().nextLong(this.rows));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public DiscordUser lookupDiscordUser() {
+        return this.botManager.getDiscordUsers().get(ThreadLocalRandom.current().nextLong(this.rows));
+    }
+
+    static List<Object[]> guildRows(int count) {
+        List<Object[]> rows = new ArrayList<>(count);
+        for (long i = 0; i < count; i++) {
+            rows.add(new Object[]{i, true, -1L, -1L, -1L, -1L, null});
+        }
+        return rows;
+    }
+
+    static List<Object[]> discordUserRows(int count) {
+        List<Object[]> rows = new ArrayList<>(count);
+        for (long i = 0; i < count; i++) {
+            rows.add(new Object[]{i, "user#" + i});
+        }
+        return rows;
+    }
+
+    /**
+     * Creates database user rows, every other account is inactive.
+     *
+     * @param count        the amount of rows
+     * @param guilds       the amount of guilds to spread the accounts over
+     * @param discordUsers the amount of discord users to spread the accounts over
+     * @return the rows
+     * @since 1
+     */
+    static List<Object[]> databaseUserRows(int count, int guilds, int discordUsers) {
+        List<Object[]> rows = new ArrayList<>(count);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (long i = 0; i < count; i++) {
+            rows.add(new Object[]{UUID.randomUUID().toString(), i % guilds, i % discordUsers, "account" + i, now, now,
+                    i % 2 == 0});
+        }
+        return rows;
+    }
+
+}
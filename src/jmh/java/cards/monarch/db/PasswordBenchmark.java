@@ -0,0 +1,51 @@
+package cards.monarch.db;
+
+import cards.monarch.db.commands.PasswordGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks generating passwords one at a time against generating them in bulk. The scores are per password.
+ *
+ * @author danny
+ * @version 1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class PasswordBenchmark {
+
+    private static final int PASSWORDS = 1000;
+
+    @Benchmark
+    @OperationsPerInvocation(PASSWORDS)
+    public int singlePasswords() {
+        int length = 0;
+        for (int i = 0; i < PASSWORDS; i++) {
+            length += PasswordGenerator.getPassword().length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PASSWORDS)
+    public char[][] bulkPasswords() {
+        return PasswordGenerator.getPasswords(PASSWORDS);
+    }
+
+}
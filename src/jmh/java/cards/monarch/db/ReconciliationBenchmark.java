@@ -0,0 +1,66 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.DatabaseUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks finding the accounts of departed users, as done by the ready event reconciliation.
+ *
+ * @author danny
+ * @version 1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4G"})
+public class ReconciliationBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int databaseUsers;
+
+    /**
+     * The percentage of discord users that have left.
+     *
+     * @since 1
+     */
+    @Param({"1", "50"})
+    public int departedPercent;
+
+    private BotManager botManager;
+    private int discordUsers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        // About four accounts per discord user
+        this.discordUsers = Math.max(1, this.databaseUsers / 4);
+        this.botManager = new BotManager(null, "", false);
+        this.botManager.loadDiscordUsers(SyntheticResultSet.of(CacheBenchmark.DISCORD_USER_COLUMNS,
+                CacheBenchmark.discordUserRows(this.discordUsers)));
+        this.botManager.loadDatabaseUsers(SyntheticResultSet.of(CacheBenchmark.DATABASE_USER_COLUMNS,
+                CacheBenchmark.databaseUserRows(this.databaseUsers, 10, this.discordUsers)));
+    }
+
+    @Benchmark
+    public List<DatabaseUser> findStaleDatabaseUsers() {
+        int present = this.discordUsers - this.discordUsers * this.departedPercent / 100;
+        return this.botManager.getStaleDatabaseUsers(id -> id < present);
+    }
+
+}
@@ -0,0 +1,59 @@
+package cards.monarch.db;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates in memory result sets so that the cache loading code can be benchmarked without a database. Only the
+ * methods used by {@link BotManager} are supported.
+ *
+ * @author danny
+ * @version 1
+ */
+class SyntheticResultSet {
+
+    /**
+     * utils class
+     */
+    private SyntheticResultSet() {
+    }
+
+    /**
+     * Creates a result set over the rows, each call returns a new cursor before the first row.
+     *
+     * @param columns the names of the columns
+     * @param rows    the rows, each with one value per column
+     * @return a result set over the rows
+     * @since 1
+     */
+    static ResultSet of(String[] columns, List<Object[]> rows) {
+        Map<String, Integer> columnIndexes = new HashMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            columnIndexes.put(columns[i], i);
+        }
+
+        int[] cursor = {-1};
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return ++cursor[0] < rows.size();
+                        case "close":
+                            return null;
+                        case "getLong":
+                        case "getBoolean":
+                        case "getString":
+                        case "getTimestamp":
+                        case "getObject":
+                            return rows.get(cursor[0])[columnIndexes.get((String) args[0])];
+                        default:
+                            throw new SQLFeatureNotSupportedException(method.getName());
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,157 @@
+package cards.monarch.db;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.User;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in memory stand-in for the discord gateway. It implements the parts of JDA that the event listener uses, so
+ * events can be fed to the listener without connecting to discord.
+ *
+ * @author danny
+ * @version 1
+ */
+class FakeGateway {
+
+    private final Map<Long, Guild> guilds;
+    private final Map<Long, User> users;
+    private final JDA jda;
+
+    FakeGateway() {
+        this.guilds = new ConcurrentHashMap<>();
+        this.users = new ConcurrentHashMap<>();
+        this.jda = proxy(JDA.class, (name, args) -> {
+            switch (name) {
+                case "getGuilds":
+                    return Collections.unmodifiableList(new ArrayList<>(this.guilds.values()));
+                case "getUsers":
+                    return Collections.unmodifiableList(new ArrayList<>(this.users.values()));
+                case "getUserById":
+                    return this.users.get(toLong(args[0]));
+                case "getGuildById":
+                    return this.guilds.get(toLong(args[0]));
+                case "getRoles":
+                case "getTextChannels":
+                    return Collections.emptyList();
+                default:
+                    return null;
+            }
+        });
+    }
+
+    JDA getJDA() {
+        return this.jda;
+    }
+
+    Guild addGuild(long id) {
+        Guild guild = proxy(Guild.class, (name, args) -> {
+            switch (name) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toString(id);
+                case "getJDA":
+                    return this.jda;
+                case "getRoles":
+                    return Collections.emptyList();
+                default:
+                    return null;
+            }
+        });
+        this.guilds.put(id, guild);
+        return guild;
+    }
+
+    User addUser(long id, String tag) {
+        User user = this.createUser(id, tag);
+        this.users.put(id, user);
+        return user;
+    }
+
+    /**
+     * Creates a user without adding it to the gateway, for events about users that have left.
+     *
+     * @param id  the id of the user
+     * @param tag the tag of the user
+     * @return the user
+     * @since 1
+     */
+    User createUser(long id, String tag) {
+        return proxy(User.class, (name, args) -> {
+            switch (name) {
+                case "getIdLong":
+                    return id;
+                case "getId":
+                    return Long.toString(id);
+                case "getAsTag":
+                    return tag;
+                case "getName":
+                    return tag.substring(0, tag.indexOf('#'));
+                case "getJDA":
+                    return this.jda;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    User removeUser(long id) {
+        return this.users.remove(id);
+    }
+
+    Member createMember(Guild guild, User user) {
+        return proxy(Member.class, (name, args) -> {
+            switch (name) {
+                case "getIdLong":
+                    return user.getIdLong();
+                case "getId":
+                    return user.getId();
+                case "getUser":
+                    return user;
+                case "getGuild":
+                    return guild;
+                case "getJDA":
+                    return this.jda;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Handles a call to a faked JDA interface.
+     *
+     * @since 1
+     */
+    private interface Handler {
+        Object handle(String name, Object[] args);
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Fake" + type.getSimpleName();
+                default:
+                    return handler.handle(method.getName(), args);
+            }
+        }));
+    }
+
+    private static long toLong(Object id) {
+        return id instanceof Long ? (Long) id : Long.parseLong(id.toString());
+    }
+
+}
@@ -0,0 +1,281 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.DatabaseUserArchive;
+import cards.monarch.db.database.MigrationRunner;
+import cards.monarch.db.database.WriteBehindBuffer;
+import cards.monarch.db.metrics.Metrics;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.user.update.UserUpdateNameEvent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Load test harness for the database cache and the event listener. It starts an embedded postgresql server, seeds it
+ * at the configured scale then, reconciles the cache with a fake gateway and feeds the event listener a stream of
+ * member join, leave and rename events from it. Everything runs offline.
+ * <p>
+ * Run with `gradle loadTest`, the scale is set with key=value arguments (see {@link #DEFAULTS}).
+ *
+ * @author danny
+ * @version 1
+ */
+public class LoadTest {
+
+    /**
+     * The default settings, each can be overridden with a key=value argument.
+     *
+     * @since 1
+     */
+    private static final String[] DEFAULTS = {
+            "guilds=10",
+            "users=10000",
+            "accounts=20000",
+            // Percentage of seeded users that have left before the ready event
+            "departed=5",
+            "events=10000",
+            "seed=42"
+    };
+    private static final int INSERT_BATCH_SIZE = 1000;
+    /**
+     * Discord ids of users that join during the test start here, above the seeded users.
+     *
+     * @since 1
+     */
+    private static final long JOINED_USER_ID_START = 1_000_000_000L;
+
+    private final Map<String, Integer> settings;
+    private final Random random;
+
+    private LoadTest(Map<String, Integer> settings) {
+        this.settings = settings;
+        this.random = new Random(settings.get("seed"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> settings = new HashMap<>();
+        List<String> arguments = new ArrayList<>(Arrays.asList(DEFAULTS));
+        arguments.addAll(Arrays.asList(args));
+        for (String argument : arguments) {
+            String[] split = argument.split("=", 2);
+            if (split.length != 2) {
+                System.err.printf("Error: argument %s is not key=value.\n", argument);
+                System.exit(13);
+            }
+            settings.put(split[0], Integer.parseInt(split[1]));
+        }
+
+        new LoadTest(settings).run();
+    }
+
+    private void run() throws Exception {
+        try (EmbeddedPostgres postgres = EmbeddedPostgres.builder().start()) {
+            DatabaseLogin databaseLogin = new DatabaseLogin("localhost", postgres.getPort(), "postgres",
+                    "postgres", "postgres");
+
+            long start = System.nanoTime();
+            if (!new MigrationRunner(databaseLogin).migrate()) {
+                throw new IllegalStateException("The schema migrations failed.");
+            }
+            report("Schema migration", start, MigrationRunner.loadMigrations().size());
+
+            start = System.nanoTime();
+            try (Connection connection = postgres.getPostgresDatabase().getConnection()) {
+                this.seed(connection);
+            }
+            report("Seeding", start, this.settings.get("accounts"));
+
+            start = System.nanoTime();
+            BotManager botManager = new BotManager(databaseLogin, "");
+            report("Initial cache refresh", start, botManager.getDatabaseUsers().size());
+            botManager.getWriteBehindBuffer().start(WriteBehindBuffer.DEFAULT_FLUSH_INTERVAL_MS);
+
+            // Every seeded deleted account is past a retention window of 0 days
+            DatabaseUserArchive archive = new DatabaseUserArchive(databaseLogin);
+            archive.setRetentionDays(0);
+            start = System.nanoTime();
+            report("Archive", start, archive.archive());
+
+            FakeGateway gateway = this.createGateway();
+            StripedExecutor executor = new StripedExecutor("Event", StripedExecutor.DEFAULT_STRIPES, true);
+            AuditFeed auditFeed = new AuditFeed(botManager, AuditFeed.DEFAULT_FLUSH_INTERVAL_MS,
+                    AuditFeed.DEFAULT_MAX_EVENTS);
+            MembershipTracker membershipTracker = new MembershipTracker(botManager, auditFeed,
+                    MembershipTracker.DEFAULT_FLUSH_INTERVAL_MS, MembershipTracker.DEFAULT_MAX_PENDING);
+            EventListener eventListener = new EventListener(botManager, membershipTracker, executor);
+
+            start = System.nanoTime();
+            eventListener.reconcile(gateway.getJDA());
+            membershipTracker.flush();
+            botManager.getWriteBehindBuffer().flush();
+            report("Reconciliation", start, gateway.getJDA().getUsers().size());
+
+            this.runEventStream(gateway, eventListener);
+            start = System.nanoTime();
+            new ShutdownCoordinator(botManager, executor, membershipTracker, auditFeed,
+                    ShutdownCoordinator.DEFAULT_DEADLINE_MS).shutdown();
+            report("Shutdown", start, botManager.getDatabaseUsers().size());
+            System.out.printf("Database errors: %d\n",
+                    Metrics.counter("userbot_db_exec_errors_total", "").get());
+        }
+    }
+
+    /**
+     * Seeds the guild settings, discord users and database users. Accounts are spread evenly over the guilds and
+     * users, every fourth account is inactive.
+     *
+     * @param connection the database connection
+     * @throws SQLException thrown on an sql error
+     * @since 1
+     */
+    private void seed(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        int guilds = this.settings.get("guilds");
+        int users = this.settings.get("users");
+        int accounts = this.settings.get("accounts");
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into GuildSettings values (?, true, -1, -1, -1, -1);")) {
+            for (int i = 0; i < guilds; i++) {
+                statement.setLong(1, i);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement("insert into DiscordUsers values (?, ?);")) {
+            for (int i = 0; i < users; i++) {
+                statement.setLong(1, i);
+                statement.setString(2, "user" + i + "#0001");
+                statement.addBatch();
+                if (i % INSERT_BATCH_SIZE == INSERT_BATCH_SIZE - 1) statement.executeBatch();
+            }
+            statement.executeBatch();
+        }
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into DatabaseUsers values (?, ?, ?, ?, ?, ?, ?);")) {
+            for (int i = 0; i < accounts; i++) {
+                statement.setObject(1, UUID.randomUUID());
+                statement.setLong(2, i % guilds);
+                statement.setLong(3, i % users);
+                statement.setString(4, "account" + i);
+                statement.setTimestamp(5, now);
+                statement.setTimestamp(6, now);
+                statement.setBoolean(7, i % 4 != 0);
+                statement.addBatch();
+                if (i % INSERT_BATCH_SIZE == INSERT_BATCH_SIZE - 1) statement.executeBatch();
+            }
+            statement.executeBatch();
+        }
+
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    /**
+     * Creates the gateway with all seeded guilds and, all seeded users apart from the departed ones.
+     *
+     * @return the gateway
+     * @since 1
+     */
+    private FakeGateway createGateway() {
+        FakeGateway gateway = new FakeGateway();
+        for (int i = 0; i < this.settings.get("guilds"); i++) {
+            gateway.addGuild(i);
+        }
+
+        int departed = this.settings.get("departed");
+        for (int i = 0; i < this.settings.get("users"); i++) {
+            if (this.random.nextInt(100) >= departed) {
+                gateway.addUser(i, "user" + i + "#0001");
+            }
+        }
+
+        return gateway;
+    }
+
+    /**
+     * Feeds a random stream of member join, leave and rename events to the event listener, then reports the
+     * throughput and latency percentiles. The latency of an event is from its dispatch until it has been handled.
+     *
+     * @param gateway       the fake gateway
+     * @param eventListener the event listener to feed
+     * @since 1
+     */
+    private void runEventStream(FakeGateway gateway, EventListener eventListener) {
+        int events = this.settings.get("events");
+        int guilds = this.settings.get("guilds");
+        int users = this.settings.get("users");
+        long nextJoinedUserID = JOINED_USER_ID_START;
+
+        // Generate the events up front so that only the listener is timed
+        List<GenericEvent> stream = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            Guild guild = gateway.getJDA().getGuildById(this.random.nextInt(guilds));
+            int kind = this.random.nextInt(3);
+            if (kind == 0) {
+                long id = nextJoinedUserID++;
+                User user = gateway.addUser(id, "joined" + id + "#0001");
+                stream.add(new GuildMemberJoinEvent(gateway.getJDA(), i, gateway.createMember(guild, user)));
+            } else if (kind == 1) {
+                long id = this.random.nextInt(users);
+                User user = gateway.removeUser(id);
+                if (user == null) user = gateway.createUser(id, "user" + id + "#0001");
+                stream.add(new GuildMemberRemoveEvent(gateway.getJDA(), i, guild, user, null));
+            } else {
+                long id = this.random.nextInt(users);
+                User user = gateway.addUser(id, "renamed" + id + "#0001");
+                stream.add(new UserUpdateNameEvent(gateway.getJDA(), i, user, "user" + id));
+            }
+        }
+
+        long[] latencies = new long[events];
+        CompletableFuture<?>[] handled = new CompletableFuture<?>[events];
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            int index = i;
+            long eventStart = System.nanoTime();
+            handled[i] = eventListener.dispatch(stream.get(i))
+                    .whenComplete((result, e) -> latencies[index] = System.nanoTime() - eventStart);
+        }
+        CompletableFuture.allOf(handled).exceptionally(e -> null).join();
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.printf("Event stream: %d events in %.1fms (%.0f events/s)\n", events, elapsed / 1e6,
+                events / (elapsed / 1e9));
+        System.out.printf("Event latency: p50 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms\n",
+                percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 99.9),
+                latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static void report(String phase, long startNanos, int items) {
+        double millis = (System.nanoTime() - startNanos) / 1e6;
+        System.out.printf("%s: %.1fms (%d items)\n", phase, millis, items);
+    }
+
+}
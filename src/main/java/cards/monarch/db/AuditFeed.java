@@ -0,0 +1,275 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.DatabaseUser;
+import cards.monarch.db.database.GuildConfig;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.TextChannel;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs user changes to the user change log channel of each guild. Changes are buffered per guild and flushed as one
+ * combined embed every flush interval or, when the buffer reaches the maximum amount of events (whichever comes
+ * first). This keeps bulk changes such as the ready event clean up within Discord's message rate limits.
+ *
+ * @author danny
+ * @version 1
+ * @see GuildConfig#getUserChangeLogChannelID()
+ */
+public class AuditFeed {
+
+    /**
+     * Default time between flushes of the buffers.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 5L * 1000L;
+    /**
+     * Default amount of buffered events that triggers an early flush of a guild's buffer.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_MAX_EVENTS = 25;
+    /**
+     * Title of the user change embeds.
+     *
+     * @since 1
+     */
+    private static final String EMBED_TITLE = "User Changes";
+
+    private final BotManager botManager;
+    private volatile long flushIntervalMs;
+    private volatile int maxEvents;
+    /**
+     * Maps guild ids to their buffered lines.
+     *
+     * @since 1
+     */
+    private final Map<Long, List<String>> buffers;
+    private final ScheduledExecutorService executor;
+    /**
+     * The jda to send the messages with, null until {@link #start(JDA)} is called. Events recorded before then are
+     * kept in the buffers.
+     *
+     * @since 1
+     */
+    private volatile JDA jda;
+    /**
+     * Whether {@link #stop()} has been called, lines recorded after that are dropped as nothing would send them.
+     *
+     * @since 1
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Creates the audit feed, call {@link #start(JDA)} to start sending messages.
+     *
+     * @param botManager      the bot manager to read the guild configs from
+     * @param flushIntervalMs the maximum time an event is buffered for
+     * @param maxEvents       the amount of buffered events for a guild that triggers a flush
+     * @since 1
+     */
+    public AuditFeed(BotManager botManager, long flushIntervalMs, int maxEvents) {
+        this.botManager = botManager;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxEvents = maxEvents;
+        this.buffers = new ConcurrentHashMap<>();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Audit feed thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The next flush is dropped when stopping, stop flushes itself
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    /**
+     * Starts flushing the buffers to discord.
+     *
+     * @param jda the jda of the discord bot
+     * @since 1
+     */
+    public void start(JDA jda) {
+        this.jda = jda;
+        this.scheduleFlush();
+    }
+
+    /**
+     * Schedules the next flush of all buffers, each flush schedules the next one so that a new interval applies.
+     *
+     * @since 1
+     */
+    private void scheduleFlush() {
+        try {
+            this.executor.schedule(() -> {
+                try {
+                    this.flushAll();
+                } finally {
+                    this.scheduleFlush();
+                }
+            }, this.flushIntervalMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped, the buffers are flushed by stop
+        }
+    }
+
+    /**
+     * Sets the maximum time an event is buffered for, this applies from the next flush.
+     *
+     * @param flushIntervalMs the maximum time an event is buffered for
+     * @since 1
+     */
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    /**
+     * Sets the amount of buffered events for a guild that triggers a flush.
+     *
+     * @param maxEvents the amount of buffered events for a guild that triggers a flush
+     * @since 1
+     */
+    public void setMaxEvents(int maxEvents) {
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Flushes all buffers then stops flushing.
+     *
+     * @since 1
+     */
+    public void stop() {
+        this.stopped = true;
+        this.executor.shutdown();
+        this.flushAll();
+    }
+
+    /**
+     * Records the deletion of a database account.
+     *
+     * @param databaseUser the account that was deleted
+     * @param cause        who/what caused the deletion
+     * @since 1
+     */
+    public void recordDeleted(DatabaseUser databaseUser, String cause) {
+        this.record(databaseUser.getGuildID(), String.format("Deleted `%s` of <@%d> (%s)", databaseUser.getUserName(),
+                databaseUser.getDiscordID(), cause));
+    }
+
+    /**
+     * Adds a line to the buffer of a guild, scheduling a flush of that guild if the buffer is full. The line is
+     * dropped once the feed has been stopped.
+     *
+     * @param guildID the id of the guild to log the line in
+     * @param line    the line to log
+     * @since 1
+     */
+    private void record(long guildID, String line) {
+        if (this.stopped) return;
+        List<String> buffer = this.buffers.computeIfAbsent(guildID, id -> new ArrayList<>());
+        boolean full;
+        synchronized (buffer) {
+            buffer.add(line);
+            full = buffer.size() >= this.maxEvents;
+        }
+
+        if (full && this.jda != null) {
+            try {
+                this.executor.execute(() -> this.flush(guildID));
+            } catch (RejectedExecutionException e) {
+                // Stopped after the check above, the line may miss the last flush
+            }
+        }
+    }
+
+    /**
+     * Flushes the buffers of all guilds.
+     *
+     * @since 1
+     */
+    private void flushAll() {
+        if (this.jda == null) return;
+        for (long guildID : this.buffers.keySet()) {
+            this.flush(guildID);
+        }
+    }
+
+    /**
+     * Sends the buffered lines of a guild as embeds to the guild's user change log channel. The lines are dropped if
+     * the guild has no log channel.
+     *
+     * @param guildID the id of the guild to flush
+     * @since 1
+     */
+    private void flush(long guildID) {
+        try {
+            List<String> buffer = this.buffers.get(guildID);
+            if (buffer == null) return;
+
+            List<String> lines;
+            synchronized (buffer) {
+                if (buffer.isEmpty()) return;
+                lines = new ArrayList<>(buffer);
+                buffer.clear();
+            }
+
+            GuildConfig guildConfig = this.botManager.getGuildConfigs().get(guildID);
+            if (guildConfig == null || guildConfig.getUserChangeLogChannelID() == -1) return;
+
+            TextChannel channel = this.jda.getTextChannelById(guildConfig.getUserChangeLogChannelID());
+            if (channel == null) {
+                System.err.printf("[ERROR]: Cannot find the user change log channel for guild %d.\n", guildID);
+                return;
+            }
+
+            for (MessageEmbed embed : this.buildEmbeds(lines)) {
+                channel.sendMessage(embed).queue(null, Throwable::printStackTrace);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Combines the lines into as few embeds as possible without exceeding the embed description length.
+     *
+     * @param lines the lines to put into the embeds
+     * @return the embeds to send
+     * @since 1
+     */
+    private List<MessageEmbed> buildEmbeds(List<String> lines) {
+        List<MessageEmbed> embeds = new ArrayList<>();
+        StringBuilder description = new StringBuilder();
+        for (String line : lines) {
+            if (description.length() > 0
+                    && description.length() + line.length() + 1 > MessageEmbed.DESCRIPTION_MAX_LENGTH) {
+                embeds.add(this.buildEmbed(description));
+                description.setLength(0);
+            }
+            description.append(line).append('\n');
+        }
+        embeds.add(this.buildEmbed(description));
+
+        return embeds;
+    }
+
+    private MessageEmbed buildEmbed(CharSequence description) {
+        return new EmbedBuilder()
+                .setTitle(EMBED_TITLE)
+                .setDescription(description)
+                .setTimestamp(Instant.now())
+                .build();
+    }
+
+}
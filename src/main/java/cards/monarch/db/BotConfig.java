@@ -0,0 +1,498 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.AuditLogWriter;
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.DatabaseUserArchive;
+import cards.monarch.db.database.LeaderElection;
+import cards.monarch.db.database.ProvisioningTargets;
+import cards.monarch.db.database.SlowQueryLog;
+import cards.monarch.db.database.WriteBehindBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The tunable settings of the bot, read from the bot.conf file as key=value lines. The file is watched and, when it
+ * changes the settings are read again and handed to the listeners so that they apply without a restart. A file with
+ * an invalid setting is rejected as a whole and the previous settings are kept, so a bad edit can be rolled back by
+ * fixing the file. Settings that are missing from the file have their defaults.
+ * <p>
+ * The database host, port and name, the replicas, the provisioning targets, the leader lease and the amount of event
+ * stripes are only read at startup.
+ *
+ * @author danny
+ * @version 1
+ */
+public class BotConfig {
+
+    /**
+     * The file name of the bot.conf file.
+     *
+     * @since 1
+     */
+    public static final String BOT_CONF = "bot.conf";
+    /**
+     * Time to wait after a change before reading the file, editors often write a file in more than one go.
+     *
+     * @since 1
+     */
+    private static final long RELOAD_DELAY_MS = 100L;
+    /**
+     * Default host and port of the database.
+     *
+     * @since 1
+     */
+    private static final String DEFAULT_DATABASE_HOST = "127.0.0.1";
+    private static final int DEFAULT_DATABASE_PORT = 6446;
+    /**
+     * One replica or provisioning target, name=host:port/database.
+     *
+     * @since 1
+     */
+    private static final Pattern DATABASE_ENDPOINT = Pattern.compile("(\\w+)=([^\\s:/]+):(\\d+)/(\\w+)");
+
+    private final Path path;
+    private final List<Consumer<BotConfig>> listeners;
+    private volatile Settings settings;
+    private WatchService watchService;
+
+    /**
+     * Reads the settings from the file, the defaults are used if the file does not exist.
+     *
+     * @param path the path of the file
+     * @throws IOException              thrown when the file cannot be read
+     * @throws IllegalArgumentException thrown when a setting is invalid
+     * @since 1
+     */
+    public BotConfig(Path path) throws IOException, IllegalArgumentException {
+        this.path = path.toAbsolutePath();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.settings = read(this.path);
+    }
+
+    /**
+     * Reads and checks the settings.
+     *
+     * @param path the path of the file
+     * @return the settings
+     * @throws IOException              thrown when the file cannot be read
+     * @throws IllegalArgumentException thrown when a setting is invalid
+     * @since 1
+     */
+    private static Settings read(Path path) throws IOException, IllegalArgumentException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            // All defaults
+        }
+        return new Settings(properties);
+    }
+
+    /**
+     * Adds a listener that applies the settings, it is called now and after every reload.
+     *
+     * @param listener the listener to add
+     * @since 1
+     */
+    public void addListener(Consumer<BotConfig> listener) {
+        this.listeners.add(listener);
+        listener.accept(this);
+    }
+
+    /**
+     * Reads the file again and, if it is valid, applies the settings to all listeners.
+     *
+     * @return whether the settings were applied
+     * @since 1
+     */
+    public boolean reload() {
+        try {
+            this.settings = read(this.path);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.printf("[ERROR]: %s was not reloaded, keeping the previous settings: %s\n", this.path,
+                    e.getMessage());
+            return false;
+        }
+
+        for (Consumer<BotConfig> listener : this.listeners) {
+            try {
+                listener.accept(this);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.printf("Reloaded %s.\n", this.path);
+        return true;
+    }
+
+    /**
+     * Starts watching the directory of the file and reloads the settings when the file changes.
+     *
+     * @throws IOException thrown when the directory cannot be watched
+     * @since 1
+     */
+    public synchronized void startWatching() throws IOException {
+        if (this.watchService != null) return;
+        this.watchService = this.path.getFileSystem().newWatchService();
+        this.path.getParent().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        WatchService watchService = this.watchService;
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (this.path.getFileName().equals(event.context())) changed = true;
+                    }
+                    key.reset();
+
+                    if (changed) {
+                        Thread.sleep(RELOAD_DELAY_MS);
+                        // Drop the events from the rest of the write
+                        WatchKey rest = watchService.poll();
+                        if (rest != null) {
+                            rest.pollEvents();
+                            rest.reset();
+                        }
+                        this.reload();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Stopped
+            }
+        }, "Config watch thread.");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the file.
+     *
+     * @since 1
+     */
+    public synchronized void stopWatching() {
+        if (this.watchService == null) return;
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.watchService = null;
+    }
+
+    public String getDatabaseHost() {
+        return this.settings.databaseHost;
+    }
+
+    public int getDatabasePort() {
+        return this.settings.databasePort;
+    }
+
+    public String getDatabaseName() {
+        return this.settings.databaseName;
+    }
+
+    public List<DatabaseEndpoint> getDatabaseReplicas() {
+        return this.settings.databaseReplicas;
+    }
+
+    public long getReplicaMaxLagMs() {
+        return this.settings.replicaMaxLagMs;
+    }
+
+    public List<DatabaseEndpoint> getProvisioningTargets() {
+        return this.settings.provisioningTargets;
+    }
+
+    public long getLeaderLeaseMs() {
+        return this.settings.leaderLeaseMs;
+    }
+
+    public int getEventStripes() {
+        return this.settings.eventStripes;
+    }
+
+    public long getCacheRefreshIntervalMs() {
+        return this.settings.cacheRefreshIntervalMs;
+    }
+
+    public int getFetchSize() {
+        return this.settings.fetchSize;
+    }
+
+    public int getMaxIdleConnections() {
+        return this.settings.maxIdleConnections;
+    }
+
+    public int getAuditLogBatchSize() {
+        return this.settings.auditLogBatchSize;
+    }
+
+    public int getAuditLogMaxQueued() {
+        return this.settings.auditLogMaxQueued;
+    }
+
+    public long getAuditFeedFlushIntervalMs() {
+        return this.settings.auditFeedFlushIntervalMs;
+    }
+
+    public int getAuditFeedMaxEvents() {
+        return this.settings.auditFeedMaxEvents;
+    }
+
+    public long getMembershipFlushIntervalMs() {
+        return this.settings.membershipFlushIntervalMs;
+    }
+
+    public int getMembershipMaxPending() {
+        return this.settings.membershipMaxPending;
+    }
+
+    public int getWriteBehindMaxPending() {
+        return this.settings.writeBehindMaxPending;
+    }
+
+    public long getStatusEditWindowMs() {
+        return this.settings.statusEditWindowMs;
+    }
+
+    public int getStatusMaxEditsPerTick() {
+        return this.settings.statusMaxEditsPerTick;
+    }
+
+    public long getSlowQueryThresholdMs() {
+        return this.settings.slowQueryThresholdMs;
+    }
+
+    public double getSlowQueryExplainSampleRate() {
+        return this.settings.slowQueryExplainSampleRate;
+    }
+
+    public long getArchiveRetentionDays() {
+        return this.settings.archiveRetentionDays;
+    }
+
+    public int getArchiveBatchSize() {
+        return this.settings.archiveBatchSize;
+    }
+
+    public int getDriftScanBatchSize() {
+        return this.settings.driftScanBatchSize;
+    }
+
+    public long getShutdownDeadlineMs() {
+        return this.settings.shutdownDeadlineMs;
+    }
+
+    /**
+     * One consistent read of the file, so that listeners never see half of a reload.
+     *
+     * @since 1
+     */
+    private static class Settings {
+
+        private final String databaseHost;
+        private final int databasePort;
+        private final String databaseName;
+        private final List<DatabaseEndpoint> databaseReplicas;
+        private final long replicaMaxLagMs;
+        private final List<DatabaseEndpoint> provisioningTargets;
+        private final long leaderLeaseMs;
+        private final int eventStripes;
+        private final long cacheRefreshIntervalMs;
+        private final int fetchSize;
+        private final int maxIdleConnections;
+        private final int auditLogBatchSize;
+        private final int auditLogMaxQueued;
+        private final long auditFeedFlushIntervalMs;
+        private final int auditFeedMaxEvents;
+        private final long membershipFlushIntervalMs;
+        private final int membershipMaxPending;
+        private final int writeBehindMaxPending;
+        private final long statusEditWindowMs;
+        private final int statusMaxEditsPerTick;
+        private final long slowQueryThresholdMs;
+        private final double slowQueryExplainSampleRate;
+        private final long archiveRetentionDays;
+        private final int archiveBatchSize;
+        private final int driftScanBatchSize;
+        private final long shutdownDeadlineMs;
+
+        private Settings(Properties properties) throws IllegalArgumentException {
+            this.databaseHost = properties.getProperty("database-host", DEFAULT_DATABASE_HOST).trim();
+            this.databasePort = (int) getLong(properties, "database-port", DEFAULT_DATABASE_PORT, 1, 65535);
+            this.databaseName = properties.getProperty("database-name", Main.MONARCH_DB).trim();
+            this.databaseReplicas = getEndpoints(properties, "database-replicas", false);
+            // Capped well below the time the drift scan leaves new accounts alone, as it may read from a replica
+            this.replicaMaxLagMs = getLong(properties, "replica-max-lag-ms", DatabaseLogin.DEFAULT_MAX_REPLICA_LAG_MS,
+                    0, 60000);
+            this.provisioningTargets = getEndpoints(properties, "provisioning-targets", true);
+            this.leaderLeaseMs = getLong(properties, "leader-lease-ms", LeaderElection.DEFAULT_LEASE_MS, 3000,
+                    Integer.MAX_VALUE);
+            this.eventStripes = (int) getLong(properties, "event-stripes", StripedExecutor.DEFAULT_STRIPES, 1, 1024);
+            this.cacheRefreshIntervalMs = getLong(properties, "cache-refresh-interval-ms",
+                    BotManager.UPDATE_DATABASE_CACHE_LIFE_MS, 1000, Long.MAX_VALUE);
+            this.fetchSize = (int) getLong(properties, "database-fetch-size", BotManager.DEFAULT_FETCH_SIZE, 0,
+                    Integer.MAX_VALUE);
+            this.maxIdleConnections = (int) getLong(properties, "database-max-idle-connections",
+                    DatabaseLogin.DEFAULT_MAX_IDLE_CONNECTIONS, 0, 1000);
+            this.auditLogBatchSize = (int) getLong(properties, "audit-log-batch-size",
+                    AuditLogWriter.DEFAULT_BATCH_SIZE, 1, AuditLogWriter.MAX_BATCH_SIZE);
+            this.auditLogMaxQueued = (int) getLong(properties, "audit-log-max-queued",
+                    AuditLogWriter.DEFAULT_MAX_QUEUED, 1, 10000000);
+            this.auditFeedFlushIntervalMs = getLong(properties, "audit-feed-flush-interval-ms",
+                    AuditFeed.DEFAULT_FLUSH_INTERVAL_MS, 100, 60L * 60L * 1000L);
+            this.auditFeedMaxEvents = (int) getLong(properties, "audit-feed-max-events", AuditFeed.DEFAULT_MAX_EVENTS,
+                    1, 1000);
+            this.membershipFlushIntervalMs = getLong(properties, "membership-flush-interval-ms",
+                    MembershipTracker.DEFAULT_FLUSH_INTERVAL_MS, 10, 60L * 1000L);
+            this.membershipMaxPending = (int) getLong(properties, "membership-max-pending",
+                    MembershipTracker.DEFAULT_MAX_PENDING, 1, 100000);
+            this.writeBehindMaxPending = (int) getLong(properties, "write-behind-max-pending",
+                    WriteBehindBuffer.DEFAULT_MAX_PENDING, 1, 100000);
+            this.statusEditWindowMs = getLong(properties, "status-edit-window-ms", StatusUpdater.DEFAULT_EDIT_WINDOW_MS,
+                    0, Long.MAX_VALUE);
+            this.statusMaxEditsPerTick = (int) getLong(properties, "status-max-edits-per-tick",
+                    StatusUpdater.DEFAULT_MAX_EDITS_PER_TICK, 1, 1000);
+            this.slowQueryThresholdMs = getLong(properties, "slow-query-threshold-ms",
+                    SlowQueryLog.DEFAULT_THRESHOLD_MS, 0, Long.MAX_VALUE);
+            this.slowQueryExplainSampleRate = getDouble(properties, "slow-query-explain-sample-rate",
+                    SlowQueryLog.DEFAULT_EXPLAIN_SAMPLE_RATE, 0, 1);
+            this.archiveRetentionDays = getLong(properties, "archive-retention-days",
+                    DatabaseUserArchive.DEFAULT_RETENTION_DAYS, 0, 36500);
+            this.archiveBatchSize = (int) getLong(properties, "archive-batch-size", DatabaseUserArchive.DEFAULT_BATCH_SIZE,
+                    1, 100000);
+            this.driftScanBatchSize = (int) getLong(properties, "drift-scan-batch-size",
+                    GrantDriftScanner.DEFAULT_BATCH_SIZE, 1, 10000);
+            this.shutdownDeadlineMs = getLong(properties, "shutdown-deadline-ms",
+                    ShutdownCoordinator.DEFAULT_DEADLINE_MS, 0, Long.MAX_VALUE);
+        }
+
+        private static long getLong(Properties properties, String key, long defaultValue, long min, long max)
+                throws IllegalArgumentException {
+            String value = properties.getProperty(key);
+            if (value == null) return defaultValue;
+
+            long result;
+            try {
+                result = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("%s=%s is not a whole number.", key, value));
+            }
+            if (result < min || result > max) {
+                throw new IllegalArgumentException(String.format("%s=%s is not between %d and %d.", key, value, min,
+                        max));
+            }
+            return result;
+        }
+
+        private static List<DatabaseEndpoint> getEndpoints(Properties properties, String key, boolean provisioning)
+                throws IllegalArgumentException {
+            List<DatabaseEndpoint> targets = new ArrayList<>();
+            String value = properties.getProperty(key, "").trim();
+            if (value.isEmpty()) return targets;
+
+            for (String target : value.split(",")) {
+                Matcher matcher = DATABASE_ENDPOINT.matcher(target.trim());
+                if (!matcher.matches()) {
+                    throw new IllegalArgumentException(String.format("%s entry %s is not name=host:port/database.",
+                            key, target.trim()));
+                }
+                // At most 5 digits so this cannot overflow
+                int port = matcher.group(3).length() > 5 ? 0 : Integer.parseInt(matcher.group(3));
+                if (port < 1 || port > 65535) {
+                    throw new IllegalArgumentException(String.format("%s entry %s has an invalid port.", key,
+                            target.trim()));
+                }
+                DatabaseEndpoint parsed = new DatabaseEndpoint(matcher.group(1), matcher.group(2), port,
+                        matcher.group(4));
+                for (DatabaseEndpoint other : targets) {
+                    if (other.name.equals(parsed.name))
+                        throw new IllegalArgumentException(String.format("%s has two entries named %s.", key, parsed.name));
+                }
+                if (provisioning && parsed.name.equals(ProvisioningTargets.PRIMARY))
+                    throw new IllegalArgumentException(String.format("%s target %s is reserved for the bot's database.",
+                            key, parsed.name));
+                targets.add(parsed);
+            }
+            return Collections.unmodifiableList(targets);
+        }
+
+        private static double getDouble(Properties properties, String key, double defaultValue, double min,
+                                        double max) throws IllegalArgumentException {
+            String value = properties.getProperty(key);
+            if (value == null) return defaultValue;
+
+            double result;
+            try {
+                result = Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("%s=%s is not a number.", key, value));
+            }
+            if (!(result >= min && result <= max)) {
+                throw new IllegalArgumentException(String.format("%s=%s is not between %s and %s.", key, value, min,
+                        max));
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * The address of a replica of the bot's database or, of a database cluster that the database accounts are
+     * provisioned on as well as the bot's own.
+     *
+     * @since 1
+     */
+    public static class DatabaseEndpoint {
+
+        private final String name;
+        private final String host;
+        private final int port;
+        private final String databaseName;
+
+        private DatabaseEndpoint(String name, String host, int port, String databaseName) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+            this.databaseName = databaseName;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getHost() {
+            return this.host;
+        }
+
+        public int getPort() {
+            return this.port;
+        }
+
+        public String getDatabaseName() {
+            return this.databaseName;
+        }
+
+    }
+
+}
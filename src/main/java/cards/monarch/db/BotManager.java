@@ -1,19 +1,32 @@
 package cards.monarch.db;
 
+import cards.monarch.db.database.AccountCounters;
+import cards.monarch.db.database.AuditLogWriter;
 import cards.monarch.db.database.DatabaseLogin;
 import cards.monarch.db.database.DatabaseUser;
+import cards.monarch.db.database.DatabaseUserArchive;
+import cards.monarch.db.database.DatabaseUserTable;
 import cards.monarch.db.database.DiscordUser;
 import cards.monarch.db.database.GuildConfig;
+import cards.monarch.db.database.LeaderElection;
+import cards.monarch.db.database.ProvisioningTargets;
+import cards.monarch.db.database.WriteBehindBuffer;
+import cards.monarch.db.metrics.Histogram;
+import cards.monarch.db.metrics.Metrics;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.User;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
 
 /**
  * stores the configuration for the bot, the database objects for the bot and, the refresh database methods.
@@ -31,17 +44,55 @@ public class BotManager {
      */
     public static final long DATABASE_ADMIN_DISCORD_ID = 219813528566104064L;
     /**
-     * Frequency to refresh the database.
+     * Default frequency to refresh the database.
      *
      * @since 1
      */
-    private static final long UPDATE_DATABASE_CACHE_LIFE_MS = 10L * 1000L;
+    public static final long UPDATE_DATABASE_CACHE_LIFE_MS = 10L * 1000L;
+    /**
+     * Default amount of rows fetched at a time when refreshing the cache.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    private static final Histogram REFRESH_LATENCY = Metrics.histogram("userbot_cache_refresh_seconds",
+            "Time taken to refresh the database cache.");
     /**
      * Database login details.
      *
      * @since 1
      */
     private final DatabaseLogin databaseLogin;
+    /**
+     * Background writer for the audit log table.
+     *
+     * @since 1
+     */
+    private final AuditLogWriter auditLogWriter;
+    /**
+     * The database clusters that the database accounts are provisioned on.
+     *
+     * @since 1
+     */
+    private final ProvisioningTargets provisioningTargets;
+    /**
+     * The election of the instance that writes on its own accord, null when this is the only instance.
+     *
+     * @since 1
+     */
+    private volatile LeaderElection leaderElection;
+    /**
+     * Writes new guild configs and discord users, and name cache updates, behind the caches.
+     *
+     * @since 1
+     */
+    private final WriteBehindBuffer writeBehindBuffer;
+    /**
+     * The active accounts of each guild and discord user, kept in step with the database user cache.
+     *
+     * @since 1
+     */
+    private final AccountCounters accountCounters;
     /**
      * Maps guild ids to guild configs.
      *
@@ -61,17 +112,47 @@ public class BotManager {
      */
     private final String token;
     /**
-     * Stores all discord users in an unsorted list.
+     * Stores the active database accounts in an unsorted columnar table, deleted accounts are not cached.
      *
      * @since 1
+     * @see DatabaseUserTable
      */
-    private List<DatabaseUser> databaseUsers;
+    private volatile List<DatabaseUser> databaseUsers;
     /**
      * Last time the database was updated (stored as values from System.currentMillis()).
      *
      * @since 1
      */
-    private long databaseLastUpdateTime;
+    private volatile long databaseLastUpdateTime;
+    /**
+     * Whether the last attempt to refresh the database cache succeeded.
+     *
+     * @since 1
+     */
+    private volatile boolean databaseReachable;
+    /**
+     * Whether the refreshes have been failing since the last one that succeeded, guarded by this.
+     *
+     * @since 1
+     */
+    private boolean refreshFailing;
+    private volatile long cacheLifeMs;
+    private volatile int fetchSize;
+    /**
+     * Rows loaded by the last refresh of each table, for the metrics.
+     *
+     * @since 1
+     */
+    private final AtomicLong guildConfigRows = new AtomicLong();
+    private final AtomicLong discordUserRows = new AtomicLong();
+    private final AtomicLong databaseUserRows = new AtomicLong();
+    /**
+     * The discord ids of the users whose name cache could not be updated as discord does not know them, so that each
+     * is only logged once rather than on every refresh.
+     *
+     * @since 1
+     */
+    private final Set<Long> unknownNameCacheUsers = ConcurrentHashMap.newKeySet();
 
     /**
      * Sets up the bot configuration and loads the guild settings from the database
@@ -81,12 +162,61 @@ public class BotManager {
      * @since 1
      */
     public BotManager(DatabaseLogin databaseLogin, String token) {
+        this(databaseLogin, token, true);
+    }
+
+    /**
+     * Sets up the bot configuration, optionally without loading the guild settings. Not loading the settings is only
+     * for the benchmarks, which load synthetic data.
+     *
+     * @param databaseLogin login details for the databases (monarchdb and userbotdb)
+     * @param token         discord bot's token
+     * @param refresh       whether to load the cache from the database
+     * @since 1
+     */
+    BotManager(DatabaseLogin databaseLogin, String token, boolean refresh) {
         this.databaseLogin = databaseLogin;
-        this.guildConfigs = new HashMap<>();
-        this.discordUsers = new HashMap<>();
+        this.auditLogWriter = new AuditLogWriter(databaseLogin);
+        this.provisioningTargets = new ProvisioningTargets(databaseLogin);
+        // Concurrent as the caches are read and written by the event stripes and the polling thread
+        this.guildConfigs = new ConcurrentHashMap<>();
+        this.discordUsers = new ConcurrentHashMap<>();
+        this.databaseUsers = DatabaseUserTable.empty();
+        this.writeBehindBuffer = new WriteBehindBuffer(databaseLogin, this.auditLogWriter, this.guildConfigs,
+                this.discordUsers);
+        this.accountCounters = new AccountCounters(guildID -> {
+            GuildConfig guildConfig = this.guildConfigs.get(guildID);
+            return guildConfig == null ? AccountCounters.NO_QUOTA : guildConfig.getAccountQuota();
+        });
         this.token = token;
         this.databaseLastUpdateTime = System.currentTimeMillis();
-        this.refreshDatabaseCache();
+        this.cacheLifeMs = UPDATE_DATABASE_CACHE_LIFE_MS;
+        this.fetchSize = DEFAULT_FETCH_SIZE;
+        this.registerMetrics();
+        if (refresh) {
+            this.refreshDatabaseCache();
+        }
+    }
+
+    /**
+     * Registers the cache size and refresh row gauges.
+     *
+     * @since 1
+     */
+    private void registerMetrics() {
+        Metrics.gauge("userbot_cache_size", "Entries in each cache.", "cache=\"guildConfigs\"", () -> this.guildConfigs.size());
+        Metrics.gauge("userbot_cache_size", "Entries in each cache.", "cache=\"discordUsers\"", () -> this.discordUsers.size());
+        Metrics.gauge("userbot_cache_size", "Entries in each cache.", "cache=\"databaseUsers\"", () -> this.databaseUsers.size());
+        Metrics.gauge("userbot_cache_refresh_rows", "Rows loaded by the last refresh of each table.",
+                "table=\"GuildSettings\"", this.guildConfigRows::get);
+        Metrics.gauge("userbot_cache_refresh_rows", "Rows loaded by the last refresh of each table.",
+                "table=\"DiscordUsers\"", this.discordUserRows::get);
+        Metrics.gauge("userbot_cache_refresh_rows", "Rows loaded by the last refresh of each table.",
+                "table=\"DatabaseUsers\"", this.databaseUserRows::get);
+        Metrics.gauge("userbot_cache_stale", "1 while the caches are served from the last good refresh.",
+                () -> this.isCacheStale() ? 1L : 0L);
+        Metrics.gauge("userbot_cache_age_seconds", "Time since the caches were last refreshed.",
+                () -> (System.currentTimeMillis() - this.databaseLastUpdateTime) / 1000L);
     }
 
     /**
@@ -123,6 +253,39 @@ public class BotManager {
         return databaseLogin;
     }
 
+    public AuditLogWriter getAuditLogWriter() {
+        return auditLogWriter;
+    }
+
+    public ProvisioningTargets getProvisioningTargets() {
+        return provisioningTargets;
+    }
+
+    public WriteBehindBuffer getWriteBehindBuffer() {
+        return writeBehindBuffer;
+    }
+
+    public AccountCounters getAccountCounters() {
+        return accountCounters;
+    }
+
+    public void setLeaderElection(LeaderElection leaderElection) {
+        this.leaderElection = leaderElection;
+        this.writeBehindBuffer.setLeaderElection(leaderElection);
+    }
+
+    /**
+     * Checks whether this instance should reconcile, expire accounts and sync names. Every instance can read the
+     * cache.
+     *
+     * @return whether this instance is the leader or, there is no election
+     * @since 1
+     */
+    public boolean isLeader() {
+        LeaderElection leaderElection = this.leaderElection;
+        return leaderElection == null || leaderElection.isLeader();
+    }
+
     public Map<Long, GuildConfig> getGuildConfigs() {
         return guildConfigs;
     }
@@ -139,41 +302,178 @@ public class BotManager {
         return token;
     }
 
+    public long getDatabaseLastUpdateTime() {
+        return databaseLastUpdateTime;
+    }
+
+    public boolean isDatabaseReachable() {
+        return databaseReachable;
+    }
+
     /**
-     * Gets the data from the database and loads it into the cache.
+     * Checks whether the caches are stale, the last refresh failed so they are still the snapshot from
+     * {@link #getDatabaseLastUpdateTime()}. They keep being served until a refresh succeeds.
+     *
+     * @return whether the caches are stale
+     * @since 1
+     */
+    public boolean isCacheStale() {
+        return !this.databaseReachable;
+    }
+
+    /**
+     * Reads the deleted database accounts of a user in a guild from the database, these are not cached.
+     *
+     * @param guildID   the id of the guild the accounts were issued in
+     * @param discordID the discord id of the owner of the accounts
+     * @return the deleted accounts newest first, null if the database could not be read
+     * @since 1
+     */
+    public List<DatabaseUser> getDatabaseUserHistory(long guildID, long discordID) {
+        List<List<DatabaseUser>> history = new ArrayList<>(1);
+        try {
+            if (this.databaseLogin.connectAndExecRead(connection ->
+                    history.add(DatabaseUserArchive.getHistory(connection, guildID, discordID)))) {
+                return history.get(0);
+            }
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public void setCacheLifeMs(long cacheLifeMs) {
+        this.cacheLifeMs = cacheLifeMs;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Counts the active database accounts that were issued in a guild.
+     *
+     * @param guildID the id of the guild to count the accounts of
+     * @return the amount of active database accounts for the guild
+     * @since 1
+     */
+    public int getActiveUserCount(long guildID) {
+        return this.accountCounters.getGuildCount(guildID);
+    }
+
+    /**
+     * Counts the active database accounts that a discord user owns over all guilds.
+     *
+     * @param discordID the discord id of the owner of the accounts
+     * @return the amount of active database accounts of the user
+     * @since 1
+     */
+    public int getOwnedUserCount(long discordID) {
+        return this.accountCounters.getUserCount(discordID);
+    }
+
+    /**
+     * Gets the data from the database and loads it into the cache. The data is read from a replica when one is usable
+     * and has replayed every write this instance made before the refresh started, see
+     * {@link DatabaseLogin#connectAndExecRead}. The rows are only applied to the caches once they have all been read,
+     * as a read that fails on a replica is read again from the primary.
      *
      * @return whether the database cachge was updated successfully
      * @since 1
      */
     public boolean refreshDatabaseCache() {
+        long start = System.nanoTime();
+        // Changes from here on are added on top of what is read
+        this.accountCounters.beginRefresh();
         try {
-            boolean result = this.databaseLogin.connectAndExec(connection -> {
-                this.refreshGuildConfigs(connection);
-                this.refreshDiscordUsers(connection);
-                this.refreshDatabaseUsers(connection);
+            Rows[] rows = new Rows[1];
+            boolean result = this.databaseLogin.connectAndExecRead(connection -> {
+                // The rows are only streamed in batches of the fetch size inside a transaction
+                connection.setAutoCommit(false);
+                try {
+                    // Replaces the rows of an attempt that failed part way
+                    rows[0] = new Rows(this.refreshGuildConfigs(connection), this.refreshDiscordUsers(connection),
+                            this.refreshDatabaseUsers(connection));
+                    connection.commit();
+                } finally {
+                    connection.setAutoCommit(true);
+                }
             });
 
             if (result) {
-                this.databaseLastUpdateTime = System.currentTimeMillis();
-            } else {
-                System.err.println("[ERROR]: Unable to update database cache.");
+                this.applyGuildConfigs(rows[0].guildConfigs);
+                this.applyDiscordUsers(rows[0].discordUsers);
+                this.applyDatabaseUsers(rows[0].databaseUsers);
+                // The rows read may be older than the writes that are still queued
+                this.writeBehindBuffer.applyPending();
             }
-            return true;
+            this.setRefreshed(result);
+            return result;
         } catch (SQLException | ClassNotFoundException e) {
             e.printStackTrace();
+            this.setRefreshed(false);
             return false;
+        } finally {
+            // Does nothing if the refresh set the counters
+            this.accountCounters.cancelRefresh();
+            REFRESH_LATENCY.recordSince(start);
         }
     }
 
     /**
-     * Refreshes the guild config cache from the database.
+     * Records the outcome of a refresh, only the start and end of an outage are logged as the refresh is retried every
+     * second while it lasts.
+     *
+     * @param refreshed whether the refresh succeeded
+     * @since 1
+     */
+    private synchronized void setRefreshed(boolean refreshed) {
+        this.databaseReachable = refreshed;
+        if (refreshed) {
+            if (this.refreshFailing) {
+                System.out.printf("[Cache]: Refreshed after %ds of serving stale data.\n",
+                        (System.currentTimeMillis() - this.databaseLastUpdateTime) / 1000L);
+            }
+            this.refreshFailing = false;
+            this.databaseLastUpdateTime = System.currentTimeMillis();
+        } else if (!this.refreshFailing) {
+            this.refreshFailing = true;
+            System.err.println("[ERROR]: Unable to update database cache, serving the last refresh until it can.");
+        }
+    }
+
+    /**
+     * Reads the guild configs from the database.
      *
      * @param connection SQL database connection.
+     * @return the guild configs by guild id
      * @throws SQLException thrown on SQL database error.
      */
-    private void refreshGuildConfigs(Connection connection) throws SQLException {
-        Statement statement = connection.createStatement();
-        ResultSet result = statement.executeQuery("select * from GuildSettings;");
+    private Map<Long, GuildConfig> refreshGuildConfigs(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.setFetchSize(this.fetchSize);
+            return readGuildConfigs(statement.executeQuery("select * from GuildSettings;"));
+        }
+    }
+
+    /**
+     * Loads the rows of the GuildSettings table into the guild config cache.
+     *
+     * @param result the rows of the GuildSettings table
+     * @throws SQLException thrown on SQL database error.
+     * @since 1
+     */
+    void loadGuildConfigs(ResultSet result) throws SQLException {
+        this.applyGuildConfigs(readGuildConfigs(result));
+    }
+
+    private void applyGuildConfigs(Map<Long, GuildConfig> guildConfigs) {
+        this.guildConfigs.putAll(guildConfigs);
+        this.guildConfigRows.set(guildConfigs.size());
+    }
+
+    private static Map<Long, GuildConfig> readGuildConfigs(ResultSet result) throws SQLException {
+        Map<Long, GuildConfig> guildConfigs = new HashMap<>();
 
         while (result.next()) {
             long guildId = result.getLong("GuildID");
@@ -182,86 +482,170 @@ public class BotManager {
             long userChangeLogChannelID = result.getLong("UserChangeLogChannelID");
             long activeUserChannelID = result.getLong("ActiveUserChannelID");
             long administratorRoleID = result.getLong("AdministratorRoleID");
+            Object accountQuota = result.getObject("AccountQuota");
 
             GuildConfig guildConfig = new GuildConfig(guildId, allowedAccess, databaseStatusCategoryID, userChangeLogChannelID,
-                    activeUserChannelID, administratorRoleID);
+                    activeUserChannelID, administratorRoleID,
+                    accountQuota == null ? AccountCounters.NO_QUOTA : ((Number) accountQuota).intValue());
 
-            this.guildConfigs.put(guildId, guildConfig);
+            guildConfigs.put(guildId, guildConfig);
         }
 
-        statement.close();
+        return guildConfigs;
     }
 
     /**
-     * Refreshes the discord user cache.
+     * Reads the discord users from the database.
      *
      * @param connection SQL database connection.
+     * @return the discord users by discord id
      * @throws SQLException thrown on SQL database error.
      */
-    private void refreshDiscordUsers(Connection connection) throws SQLException {
-        Statement statement = connection.createStatement();
-        ResultSet result = statement.executeQuery("select * from DiscordUsers;");
+    private Map<Long, DiscordUser> refreshDiscordUsers(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.setFetchSize(this.fetchSize);
+            return readDiscordUsers(statement.executeQuery("select * from DiscordUsers;"));
+        }
+    }
+
+    /**
+     * Loads the rows of the DiscordUsers table into the discord user cache.
+     *
+     * @param result the rows of the DiscordUsers table
+     * @throws SQLException thrown on SQL database error.
+     * @since 1
+     */
+    void loadDiscordUsers(ResultSet result) throws SQLException {
+        this.applyDiscordUsers(readDiscordUsers(result));
+    }
+
+    private void applyDiscordUsers(Map<Long, DiscordUser> discordUsers) {
+        this.discordUsers.putAll(discordUsers);
+        this.discordUserRows.set(discordUsers.size());
+    }
+
+    private static Map<Long, DiscordUser> readDiscordUsers(ResultSet result) throws SQLException {
+        Map<Long, DiscordUser> discordUsers = new HashMap<>();
 
         while (result.next()) {
             long id = result.getLong("DiscordID");
             String name = result.getString("NameCache");
             DiscordUser discordUser = new DiscordUser(id, name);
 
-            this.discordUsers.put(id, discordUser);
+            discordUsers.put(id, discordUser);
         }
 
-        statement.close();
+        return discordUsers;
     }
 
     /**
-     * Refreshes the database user cache.
+     * Reads the active database users from the database.
      *
      * @param connection SQL database connection.
+     * @return the table of the database users
      * @throws SQLException thrown on SQL database error.
      * @since 1
      */
-    private void refreshDatabaseUsers(Connection connection) throws SQLException {
-        Statement statement = connection.createStatement();
-        ResultSet result = statement.executeQuery("select * from DatabaseUsers;");
+    private DatabaseUserTable refreshDatabaseUsers(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.setFetchSize(this.fetchSize);
+            // Deleted accounts are only read on demand, see getDatabaseUserHistory
+            return DatabaseUserTable.read(statement.executeQuery("select * from DatabaseUsers where Active;"));
+        }
+    }
 
-        while (result.next()) {
-            String UUID = result.getString("DatabaseUserID");
-            long guildId = result.getLong("GuildID");
-            long discordId = result.getLong("DiscordID");
-            String name = result.getString("UserName");
-            Date creationTime = Date.from(result.getDate("CreationTime").toInstant());
-            Date deletionTime = Date.from(result.getDate("DeletionTime").toInstant());
+    /**
+     * Loads the rows of the DatabaseUsers table into the database user cache, replacing the old cache.
+     *
+     * @param result the rows of the DatabaseUsers table
+     * @throws SQLException thrown on SQL database error.
+     * @since 1
+     */
+    void loadDatabaseUsers(ResultSet result) throws SQLException {
+        this.applyDatabaseUsers(DatabaseUserTable.read(result));
+    }
+
+    private void applyDatabaseUsers(DatabaseUserTable databaseUsers) {
+        this.databaseUserRows.set(databaseUsers.size());
+        // Swap the list in so that readers never see a half loaded cache
+        this.databaseUsers = databaseUsers;
+        this.accountCounters.finishRefresh(databaseUsers);
+    }
 
-            DatabaseUser databaseUser = new DatabaseUser(java.util.UUID.fromString(UUID), guildId, discordId, name, creationTime, deletionTime);
-            this.databaseUsers.add(databaseUser);
+    /**
+     * Finds the active database accounts whose owners are no longer known to discord. This is one pass over the
+     * database users.
+     *
+     * @param isPresent tests whether a discord id is still known to discord
+     * @return the active database accounts of departed owners
+     * @since 1
+     */
+    public List<DatabaseUser> getStaleDatabaseUsers(LongPredicate isPresent) {
+        List<DatabaseUser> stale = new ArrayList<>();
+        for (DatabaseUser databaseUser : this.databaseUsers) {
+            if (databaseUser.isActive() && this.discordUsers.containsKey(databaseUser.getDiscordID())
+                    && !isPresent.test(databaseUser.getDiscordID())) {
+                stale.add(databaseUser);
+            }
         }
 
-        statement.close();
+        return stale;
     }
 
     /**
-     * Updates the name cache of all users in the database.
+     * Queues the name cache of the users whose tags have changed to be written to the database. A user that discord
+     * does not know is logged once, until it is seen again.
      *
      * @param jda the jda of the discord bot
-     * @param connection the database connection
-     * @throws SQLException thrown when an error occurs updating the value of the name cache
      * @since 1
      */
-    public void updateNameCache(JDA jda, Connection connection) throws SQLException {
-        for (DiscordUser user: this.discordUsers.values()) {
-            user.setNameCache(jda, connection);
+    public void updateNameCache(JDA jda) {
+        for (DiscordUser user : this.discordUsers.values()) {
+            User discordUser = jda.getUserById(user.getDiscordID());
+            if (discordUser == null) {
+                if (this.unknownNameCacheUsers.add(user.getDiscordID())) {
+                    System.err.printf("[Error]: The name cache for %s could not be updated.\n", user.getNameCache());
+                }
+                continue;
+            }
+            this.unknownNameCacheUsers.remove(user.getDiscordID());
+            if (!discordUser.getAsTag().equals(user.getNameCache())) {
+                this.writeBehindBuffer.putDiscordUser(user.getDiscordID(), discordUser.getAsTag());
+            }
         }
+        // Forget the users that are no longer in the cache
+        this.unknownNameCacheUsers.retainAll(this.discordUsers.keySet());
     }
 
     /**
      * Check if the database cache needs to be updated.
      *
      * @return whether the cache exceeds the maximum cache life length
-     * @see #UPDATE_DATABASE_CACHE_LIFE_MS
+     * @see #setCacheLifeMs(long)
      * @since 1
      */
     public boolean needsUpdate() {
-        return System.currentTimeMillis() - this.databaseLastUpdateTime >= UPDATE_DATABASE_CACHE_LIFE_MS;
+        return System.currentTimeMillis() - this.databaseLastUpdateTime >= this.cacheLifeMs;
+    }
+
+    /**
+     * The rows read by a refresh, they are applied to the caches together once the read has finished.
+     *
+     * @since 1
+     */
+    private static class Rows {
+
+        private final Map<Long, GuildConfig> guildConfigs;
+        private final Map<Long, DiscordUser> discordUsers;
+        private final DatabaseUserTable databaseUsers;
+
+        private Rows(Map<Long, GuildConfig> guildConfigs, Map<Long, DiscordUser> discordUsers,
+                     DatabaseUserTable databaseUsers) {
+            this.guildConfigs = guildConfigs;
+            this.discordUsers = discordUsers;
+            this.databaseUsers = databaseUsers;
+        }
+
     }
 
 }
@@ -0,0 +1,566 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.AuditEvent;
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.DatabaseUser;
+import cards.monarch.db.database.ProvisioningTargets;
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Finds and repairs the drift between the roles of each provisioning target and the cached database accounts, which
+ * happens when provisioning fails half way. Each target's roles and grants are read with one query each and compared
+ * in memory with the cache:
+ * <ul>
+ *     <li>roles of the bot that have no active account are dropped,</li>
+ *     <li>roles of active accounts that miss a grant are granted the missing tables,</li>
+ *     <li>active accounts whose role is missing on the primary target are marked as deleted, the password is not
+ *     stored so the role cannot be created again. A role missing on another target is only reported.</li>
+ * </ul>
+ * The repairs are applied in batches, one transaction each, and what was repaired is logged. Only the leader scans,
+ * roles with a provisioning change in progress and accounts created in the last few minutes are skipped.
+ *
+ * @author danny
+ * @version 1
+ */
+public class GrantDriftScanner {
+
+    /**
+     * Default amount of repairs in one transaction.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    /**
+     * Time between scans.
+     *
+     * @since 1
+     */
+    private static final long INTERVAL_MS = 60L * 60L * 1000L;
+    /**
+     * Time an account is left alone after it was created, as its role may still be being provisioned.
+     *
+     * @since 1
+     */
+    private static final long GRACE_MS = 5L * 60L * 1000L;
+    private static final String DROPPED = "dropped_role";
+    private static final String GRANTED = "granted";
+    private static final String DEACTIVATED = "deactivated";
+    private static final String FAILED = "failed";
+
+    private final BotManager botManager;
+    private final AuditFeed auditFeed;
+    private final ScheduledExecutorService executor;
+    private volatile int batchSize;
+
+    /**
+     * Creates the scanner, call {@link #start()} to scan in the background.
+     *
+     * @param botManager the bot manager with the cache and the provisioning targets
+     * @param auditFeed  the audit feed to log deactivated accounts in
+     * @since 1
+     */
+    public GrantDriftScanner(BotManager botManager, AuditFeed auditFeed) {
+        this.botManager = botManager;
+        this.auditFeed = auditFeed;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Grant drift scanner thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts scanning in the background, the first scan is after the grace time so the cache has settled.
+     *
+     * @since 1
+     */
+    public void start() {
+        this.executor.scheduleWithFixedDelay(this::scan, GRACE_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops scanning, a scan that is running is finished first.
+     *
+     * @since 1
+     */
+    public void stop() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Scans and repairs every provisioning target.
+     *
+     * @return what was found on each target, empty if this instance is not the leader
+     * @since 1
+     */
+    public List<Report> scan() {
+        // A stale cache would make recent accounts look missing and recent deletions look like orphans
+        if (!this.botManager.isLeader() || this.botManager.isCacheStale()) return Collections.emptyList();
+
+        long cutoff = System.currentTimeMillis() - GRACE_MS;
+        Map<String, DatabaseUser> accounts = new HashMap<>();
+        for (DatabaseUser databaseUser : this.botManager.getDatabaseUsers()) {
+            if (databaseUser.isActive()) accounts.put(databaseUser.getUserName(), databaseUser);
+        }
+
+        List<Report> reports = new ArrayList<>();
+        for (Map.Entry<String, DatabaseLogin> target : this.botManager.getProvisioningTargets().getLogins().entrySet()) {
+            long start = System.currentTimeMillis();
+            Report report = new Report(target.getKey());
+            try {
+                if (!this.scan(target.getValue(), report, accounts, cutoff)) {
+                    System.err.printf("[Drift]: Unable to scan %s.\n", target.getKey());
+                    continue;
+                }
+            } catch (SQLException | ClassNotFoundException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            reports.add(report);
+            if (report.hasDrift()) {
+                System.out.printf("[Drift]: %s took %dms, %s.\n", target.getKey(), System.currentTimeMillis() - start,
+                        report);
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Scans and repairs one target. The roles and grants are read from a replica of the target when there is one, once
+     * it has replayed the bot's writes made before the scan. The repairs run on the target itself.
+     *
+     * @param login    the login for the target
+     * @param report   the report to add the results to
+     * @param accounts the active accounts by their username
+     * @param cutoff   accounts created after this time are left alone
+     * @return whether the target could be read and repaired
+     * @throws SQLException           thrown on an sql error
+     * @throws ClassNotFoundException thrown on an error with getting the class driver for connection
+     * @since 1
+     */
+    private boolean scan(DatabaseLogin login, Report report, Map<String, DatabaseUser> accounts, long cutoff)
+            throws SQLException, ClassNotFoundException {
+        ProvisioningTargets targets = this.botManager.getProvisioningTargets();
+
+        // Maps the role names to whether the bot created them
+        Map<String, Boolean> roles = new HashMap<>();
+        // Maps the role names to the tables they can read
+        Map<String, Set<String>> grants = new HashMap<>();
+        if (!login.connectAndExecRead(connection -> this.readCatalog(connection, roles, grants))) return false;
+
+        Drift drift = diff(roles, grants, accounts, userName -> targets.isPending(report.target, userName), cutoff);
+
+        List<String> unknown = this.unknownAccounts(drift.orphans);
+        if (!unknown.isEmpty() || !drift.missingGrants.isEmpty()) {
+            boolean repaired = login.connectAndExec(connection -> {
+                this.dropOrphans(connection, report, unknown);
+                this.grantMissing(connection, report, drift.missingGrants);
+            });
+            if (!repaired) return false;
+        }
+        if (report.target.equals(ProvisioningTargets.PRIMARY)) {
+            this.deactivateStale(report, drift.missingRoles);
+        } else {
+            for (DatabaseUser databaseUser : drift.missingRoles) {
+                report.missingRoles.add(databaseUser.getUserName());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the roles and grants of a target with the cached accounts, this does not touch the database.
+     *
+     * @param roles    maps the role names of the target to whether the bot created them
+     * @param grants   maps the role names of the target to the tables they can read
+     * @param accounts the active accounts by their username
+     * @param pending  tests whether a role has a provisioning change in progress on the target
+     * @param cutoff   accounts created after this time are left alone
+     * @return the drift between the target and the accounts
+     * @since 1
+     */
+    public static Drift diff(Map<String, Boolean> roles, Map<String, Set<String>> grants,
+                             Map<String, DatabaseUser> accounts, Predicate<String> pending, long cutoff) {
+        Drift drift = new Drift();
+        for (Map.Entry<String, Boolean> role : roles.entrySet()) {
+            if (role.getValue() && !accounts.containsKey(role.getKey()) && !pending.test(role.getKey())) {
+                drift.orphans.add(role.getKey());
+            }
+        }
+
+        for (DatabaseUser databaseUser : accounts.values()) {
+            String userName = databaseUser.getUserName();
+            if (pending.test(userName)) continue;
+
+            if (!roles.containsKey(userName)) {
+                if (databaseUser.getCreationTime() != null && databaseUser.getCreationTime().getTime() < cutoff) {
+                    drift.missingRoles.add(databaseUser);
+                }
+                continue;
+            }
+
+            Set<String> granted = grants.getOrDefault(userName, Collections.emptySet());
+            List<String> missing = new ArrayList<>();
+            for (String table : ProvisioningTargets.GRANTED_TABLES) {
+                if (!granted.contains(table)) missing.add(table);
+            }
+            if (!missing.isEmpty()) drift.missingGrants.put(userName, missing);
+        }
+        return drift;
+    }
+
+    private void readCatalog(Connection connection, Map<String, Boolean> roles, Map<String, Set<String>> grants)
+            throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select rolname, coalesce(shobj_description(oid, 'pg_authid') = ?, false) from pg_catalog.pg_roles;")) {
+            statement.setString(1, ProvisioningTargets.ROLE_COMMENT);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    roles.put(result.getString(1), result.getBoolean(2));
+                }
+            }
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select grantee, table_name from information_schema.role_table_grants where privilege_type = 'SELECT' " +
+                        "and table_schema = current_schema() and table_name = any(?);")) {
+            statement.setArray(1, connection.createArrayOf("varchar", ProvisioningTargets.GRANTED_TABLES.toArray()));
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    grants.computeIfAbsent(result.getString(1), grantee -> new HashSet<>()).add(result.getString(2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the orphaned roles against the table, as the cache may be older than a role that was just created.
+     *
+     * @param orphans the roles that have no account in the cache
+     * @return the roles that have no active account in the table
+     * @throws SQLException thrown on an sql error
+     * @since 1
+     */
+    private List<String> unknownAccounts(List<String> orphans) throws SQLException {
+        if (orphans.isEmpty()) return orphans;
+
+        Set<String> known = new HashSet<>();
+        try {
+            boolean read = this.botManager.getDatabaseLogin().connectAndExec(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "select UserName from DatabaseUsers where Active and UserName = any(?);")) {
+                    statement.setArray(1, connection.createArrayOf("varchar", orphans.toArray()));
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()) {
+                            known.add(result.getString(1));
+                        }
+                    }
+                }
+            });
+            if (!read) throw new SQLException("Unable to check the orphaned roles.");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException(e);
+        }
+
+        List<String> unknown = new ArrayList<>();
+        for (String orphan : orphans) {
+            if (!known.contains(orphan)) unknown.add(orphan);
+        }
+        return unknown;
+    }
+
+    private void dropOrphans(Connection connection, Report report, List<String> orphans) throws SQLException {
+        String tables = String.join(", ", ProvisioningTargets.GRANTED_TABLES);
+        List<List<String>> statements = new ArrayList<>();
+        for (String orphan : orphans) {
+            List<String> batch = new ArrayList<>();
+            batch.add("revoke all on " + tables + " from " + ProvisioningTargets.quote(orphan) + ";");
+            batch.add("drop role " + ProvisioningTargets.quote(orphan) + ";");
+            statements.add(batch);
+        }
+        this.executeBatches(connection, report, orphans, statements, report.droppedRoles, DROPPED);
+    }
+
+    private void grantMissing(Connection connection, Report report, Map<String, List<String>> missingGrants)
+            throws SQLException {
+        List<String> userNames = new ArrayList<>(missingGrants.keySet());
+        List<List<String>> statements = new ArrayList<>();
+        for (String userName : userNames) {
+            statements.add(Collections.singletonList("grant select on " + String.join(", ", missingGrants.get(userName))
+                    + " to " + ProvisioningTargets.quote(userName) + ";"));
+        }
+        this.executeBatches(connection, report, userNames, statements, report.grantedRoles, GRANTED);
+    }
+
+    /**
+     * Runs the statements of each role in batches, a batch that fails is rolled back and counted as failed.
+     *
+     * @param connection the database connection
+     * @param report     the report to add the results to
+     * @param userNames  the roles that are repaired
+     * @param statements the statements of each role
+     * @param repaired   the list of the report to add the repaired roles to
+     * @param repair     the name of the repair for the metrics
+     * @throws SQLException thrown when the connection cannot be returned to auto commit
+     * @since 1
+     */
+    private void executeBatches(Connection connection, Report report, List<String> userNames,
+                                List<List<String>> statements, List<String> repaired, String repair)
+            throws SQLException {
+        int batchSize = this.batchSize;
+        for (int from = 0; from < userNames.size(); from += batchSize) {
+            int to = Math.min(userNames.size(), from + batchSize);
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                for (int i = from; i < to; i++) {
+                    for (String sql : statements.get(i)) {
+                        statement.addBatch(sql);
+                    }
+                }
+                statement.executeBatch();
+                connection.commit();
+                repaired.addAll(userNames.subList(from, to));
+                repairs(report.target, repair).inc(to - from);
+            } catch (SQLException e) {
+                connection.rollback();
+                e.printStackTrace();
+                report.failed += to - from;
+                repairs(report.target, FAILED).inc(to - from);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Marks the accounts whose role is missing on the primary target as deleted, their roles are dropped from the
+     * other targets as well.
+     *
+     * @param report       the report to add the results to
+     * @param missingRoles the accounts whose role is missing
+     * @throws SQLException thrown on an sql error
+     * @since 1
+     */
+    private void deactivateStale(Report report, List<DatabaseUser> missingRoles) throws SQLException {
+        Map<UUID, DatabaseUser> byID = new HashMap<>();
+        for (DatabaseUser databaseUser : missingRoles) {
+            byID.put(databaseUser.getDatabaseUserID(), databaseUser);
+        }
+
+        int batchSize = this.batchSize;
+        for (int from = 0; from < missingRoles.size(); from += batchSize) {
+            List<DatabaseUser> batch = missingRoles.subList(from, Math.min(missingRoles.size(), from + batchSize));
+            UUID[] ids = new UUID[batch.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = batch.get(i).getDatabaseUserID();
+            }
+
+            List<DatabaseUser> deactivated = new ArrayList<>();
+            try {
+                boolean updated = this.botManager.getDatabaseLogin().connectAndExec(connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "update DatabaseUsers set Active = false, DeletionTime = now() " +
+                                    "where DatabaseUserID = any(?) and Active returning DatabaseUserID;")) {
+                        statement.setArray(1, connection.createArrayOf("uuid", ids));
+                        try (ResultSet result = statement.executeQuery()) {
+                            while (result.next()) {
+                                deactivated.add(byID.get((UUID) result.getObject(1)));
+                            }
+                        }
+                    }
+                });
+                if (!updated) {
+                    report.failed += batch.size();
+                    repairs(report.target, FAILED).inc(batch.size());
+                    continue;
+                }
+            } catch (ClassNotFoundException e) {
+                throw new SQLException(e);
+            }
+
+            for (DatabaseUser databaseUser : deactivated) {
+                this.botManager.getAccountCounters().accountDeleted(databaseUser.getGuildID(),
+                        databaseUser.getDiscordID());
+                this.botManager.getProvisioningTargets().dropRole(databaseUser.getUserName());
+                this.botManager.getAuditLogWriter().record(new AuditEvent(AuditEvent.Type.USER_DELETED,
+                        databaseUser.getGuildID(), databaseUser.getDiscordID(), databaseUser.getDatabaseUserID(),
+                        "deleted " + databaseUser.getUserName() + ", its role was missing"));
+                this.auditFeed.recordDeleted(databaseUser, "its role was missing");
+                report.deactivatedAccounts.add(databaseUser.getUserName());
+            }
+            repairs(report.target, DEACTIVATED).inc(deactivated.size());
+        }
+    }
+
+    private static Counter repairs(String target, String repair) {
+        return Metrics.counter("userbot_drift_repairs_total", "Drift repaired by the grant drift scanner.",
+                String.format("target=\"%s\",repair=\"%s\"", target, repair));
+    }
+
+    /**
+     * The drift found on one target, before it is repaired.
+     *
+     * @since 1
+     */
+    public static class Drift {
+
+        private final List<String> orphans = new ArrayList<>();
+        private final Map<String, List<String>> missingGrants = new LinkedHashMap<>();
+        private final List<DatabaseUser> missingRoles = new ArrayList<>();
+
+        private Drift() {
+        }
+
+        /**
+         * Get the roles of the bot that have no active account in the cache.
+         *
+         * @return the names of the orphaned roles
+         * @since 1
+         */
+        public List<String> getOrphans() {
+            return this.orphans;
+        }
+
+        /**
+         * Get the roles of active accounts that are missing tables.
+         *
+         * @return maps the role names to the tables they are missing
+         * @since 1
+         */
+        public Map<String, List<String>> getMissingGrants() {
+            return this.missingGrants;
+        }
+
+        /**
+         * Get the active accounts, older than the cutoff, whose role is missing.
+         *
+         * @return the accounts whose role is missing
+         * @since 1
+         */
+        public List<DatabaseUser> getMissingRoles() {
+            return this.missingRoles;
+        }
+
+    }
+
+    /**
+     * What one scan of a target found and repaired.
+     *
+     * @since 1
+     */
+    public static class Report {
+
+        private final String target;
+        private final List<String> droppedRoles = new ArrayList<>();
+        private final List<String> grantedRoles = new ArrayList<>();
+        private final List<String> deactivatedAccounts = new ArrayList<>();
+        private final List<String> missingRoles = new ArrayList<>();
+        private int failed;
+
+        private Report(String target) {
+            this.target = target;
+        }
+
+        public String getTarget() {
+            return this.target;
+        }
+
+        /**
+         * Get the roles that had no active account and were dropped.
+         *
+         * @return the names of the dropped roles
+         * @since 1
+         */
+        public List<String> getDroppedRoles() {
+            return this.droppedRoles;
+        }
+
+        /**
+         * Get the roles that were granted the tables they were missing.
+         *
+         * @return the names of the granted roles
+         * @since 1
+         */
+        public List<String> getGrantedRoles() {
+            return this.grantedRoles;
+        }
+
+        /**
+         * Get the accounts that were marked as deleted as their role was missing on the primary target.
+         *
+         * @return the usernames of the deactivated accounts
+         * @since 1
+         */
+        public List<String> getDeactivatedAccounts() {
+            return this.deactivatedAccounts;
+        }
+
+        /**
+         * Get the active accounts whose role is missing on a target other than the primary target.
+         *
+         * @return the usernames of the accounts
+         * @since 1
+         */
+        public List<String> getMissingRoles() {
+            return this.missingRoles;
+        }
+
+        public int getFailed() {
+            return this.failed;
+        }
+
+        /**
+         * Checks whether the scan found anything.
+         *
+         * @return whether any drift was found
+         * @since 1
+         */
+        public boolean hasDrift() {
+            return !this.droppedRoles.isEmpty() || !this.grantedRoles.isEmpty() || !this.deactivatedAccounts.isEmpty()
+                    || !this.missingRoles.isEmpty() || this.failed > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("dropped %d orphaned roles %s, granted missing tables to %d roles %s, " +
+                            "deactivated %d accounts without a role %s, %d roles missing %s, %d repairs failed",
+                    this.droppedRoles.size(), this.droppedRoles, this.grantedRoles.size(), this.grantedRoles,
+                    this.deactivatedAccounts.size(), this.deactivatedAccounts, this.missingRoles.size(),
+                    this.missingRoles, this.failed);
+        }
+
+    }
+
+}
@@ -2,19 +2,34 @@ package cards.monarch.db;
 
 import cards.monarch.db.database.DatabaseLogin;
 import cards.monarch.db.database.DatabaseUser;
-import cards.monarch.db.database.DiscordUser;
+import cards.monarch.db.database.DatabaseUserArchive;
 import cards.monarch.db.database.GuildConfig;
+import cards.monarch.db.database.LeaderElection;
+import cards.monarch.db.database.MigrationRunner;
+import cards.monarch.db.database.ProvisioningTargets;
+import cards.monarch.db.database.SlowQueryLog;
+import cards.monarch.db.database.WriteBehindBuffer;
+import cards.monarch.db.metrics.Histogram;
+import cards.monarch.db.metrics.Metrics;
+import cards.monarch.db.metrics.MetricsServer;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.GenericEvent;
 import net.dv8tion.jda.api.events.ReadyEvent;
+import net.dv8tion.jda.api.events.guild.GenericGuildEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
-import java.sql.Connection;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * starts the discord bot and, rads the configs, inits the data sources and, adds commands
@@ -32,18 +47,11 @@ public class Main {
     public static final String MONARCH_DB = "monarchdb";
 
     /**
-     * The url of the database.
+     * The time the jvm started, the startup phases are logged relative to this.
      *
      * @since 1
      */
-    private static final String HOST = "127.0.0.1";
-
-    /**
-     * The port of the database.
-     *
-     * @since 1
-     */
-    private static final int PORT = 6446;
+    private static final long processStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
 
     /**
      * utils class
@@ -52,6 +60,8 @@ public class Main {
     }
 
     public static void main(String[] args) {
+        long startTime = System.currentTimeMillis();
+
         // Get token
         if (args.length != 1) {
             System.out.println("Usage: java -jar bot.jar <token>");
@@ -60,48 +70,210 @@ public class Main {
         }
         String token = args[0];
 
+        // Load the settings, they are reloaded whenever the file changes
+        BotConfig config = null;
+        try {
+            config = new BotConfig(Paths.get(BotConfig.BOT_CONF));
+            config.startWatching();
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.err.printf("Unable to load %s - exiting.\n", BotConfig.BOT_CONF);
+            System.exit(1);
+        }
+
         // Load database configuration
         DatabaseLogin databaseLogin = null;
 
         try {
-            databaseLogin = new DatabaseLogin(HOST, PORT, MONARCH_DB);
+            databaseLogin = new DatabaseLogin(config.getDatabaseHost(), config.getDatabasePort(),
+                    config.getDatabaseName());
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Unable to load database config - exiting.");
             System.exit(1);
         }
 
-        // Load bot configuration from database
-        BotManager botManager = new BotManager(databaseLogin, token);
+        // Reads that may be a little out of date go to the replicas, the rest stays on the primary
+        for (BotConfig.DatabaseEndpoint replica : config.getDatabaseReplicas()) {
+            try {
+                databaseLogin.addReplica(replica.getName(), new DatabaseLogin(replica.getHost(), replica.getPort(),
+                        replica.getDatabaseName()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Unable to read the login for the database replicas - exiting.");
+                System.exit(1);
+            }
+        }
+        databaseLogin.startReplicaChecks();
+
+        // Log slow statements to find what to tune
+        try {
+            SlowQueryLog slowQueryLog = new SlowQueryLog(databaseLogin, SlowQueryLog.DEFAULT_THRESHOLD_MS,
+                    SlowQueryLog.DEFAULT_EXPLAIN_SAMPLE_RATE);
+            databaseLogin.setSlowQueryLog(slowQueryLog);
+            config.addListener(c -> {
+                slowQueryLog.setThresholdMs(c.getSlowQueryThresholdMs());
+                slowQueryLog.setExplainSampleRate(c.getSlowQueryExplainSampleRate());
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Unable to open the slow query log - continuing without it.");
+        }
+
+        // Serve the metrics locally
+        try {
+            new MetricsServer(MetricsServer.DEFAULT_PORT).start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Unable to start the metrics endpoint - continuing without it.");
+        }
+
+        // Create the caches, they are loaded in parallel with the gateway login below
+        BotManager botManager = new BotManager(databaseLogin, token, false);
+        botManager.getAuditLogWriter().start();
+        botManager.getWriteBehindBuffer().start(WriteBehindBuffer.DEFAULT_FLUSH_INTERVAL_MS);
+        ProvisioningTargets provisioningTargets = botManager.getProvisioningTargets();
+        for (BotConfig.DatabaseEndpoint target : config.getProvisioningTargets()) {
+            try {
+                provisioningTargets.addTarget(target.getName(), new DatabaseLogin(target.getHost(), target.getPort(),
+                        target.getDatabaseName()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Unable to read the login for the provisioning targets - exiting.");
+                System.exit(1);
+            }
+        }
+        provisioningTargets.start();
+        StripedExecutor eventExecutor = new StripedExecutor("Event", config.getEventStripes(), true);
+        System.out.printf("Handling events on %d stripes (%s threads).\n", config.getEventStripes(),
+                eventExecutor.isVirtual() ? "virtual" : "platform");
+        AuditFeed auditFeed = new AuditFeed(botManager, AuditFeed.DEFAULT_FLUSH_INTERVAL_MS, AuditFeed.DEFAULT_MAX_EVENTS);
+        MembershipTracker membershipTracker = new MembershipTracker(botManager, auditFeed,
+                MembershipTracker.DEFAULT_FLUSH_INTERVAL_MS, MembershipTracker.DEFAULT_MAX_PENDING);
+        EventListener eventListener = new EventListener(botManager, membershipTracker, eventExecutor);
+        ShutdownCoordinator shutdownCoordinator = new ShutdownCoordinator(botManager, eventExecutor, membershipTracker,
+                auditFeed, ShutdownCoordinator.DEFAULT_DEADLINE_MS);
+        shutdownCoordinator.install();
+        DatabaseLogin login = databaseLogin;
+        DatabaseUserArchive databaseUserArchive = new DatabaseUserArchive(databaseLogin);
+        shutdownCoordinator.setDatabaseUserArchive(databaseUserArchive);
+        GrantDriftScanner grantDriftScanner = new GrantDriftScanner(botManager, auditFeed);
+        shutdownCoordinator.setGrantDriftScanner(grantDriftScanner);
+
+        // Only the leader reconciles, expires accounts and syncs names, a newly elected leader reconciles first
+        LeaderElection leaderElection = new LeaderElection(databaseLogin, config.getLeaderLeaseMs());
+        AtomicBoolean reconcileNeeded = new AtomicBoolean(true);
+        leaderElection.addListener(leader -> {
+            if (leader) reconcileNeeded.set(true);
+        });
+        botManager.setLeaderElection(leaderElection);
+        databaseUserArchive.setLeaderElection(leaderElection);
+        provisioningTargets.setLeaderElection(leaderElection);
+        shutdownCoordinator.setLeaderElection(leaderElection);
+        config.addListener(c -> {
+            databaseUserArchive.setRetentionDays(c.getArchiveRetentionDays());
+            databaseUserArchive.setBatchSize(c.getArchiveBatchSize());
+            grantDriftScanner.setBatchSize(c.getDriftScanBatchSize());
+            login.setMaxIdleConnections(c.getMaxIdleConnections());
+            login.setMaxReplicaLagMs(c.getReplicaMaxLagMs());
+            provisioningTargets.setMaxIdleConnections(c.getMaxIdleConnections());
+            botManager.setCacheLifeMs(c.getCacheRefreshIntervalMs());
+            botManager.setFetchSize(c.getFetchSize());
+            botManager.getAuditLogWriter().setBatchSize(c.getAuditLogBatchSize());
+            botManager.getAuditLogWriter().setMaxQueued(c.getAuditLogMaxQueued());
+            auditFeed.setFlushIntervalMs(c.getAuditFeedFlushIntervalMs());
+            auditFeed.setMaxEvents(c.getAuditFeedMaxEvents());
+            membershipTracker.setFlushIntervalMs(c.getMembershipFlushIntervalMs());
+            membershipTracker.setMaxPending(c.getMembershipMaxPending());
+            botManager.getWriteBehindBuffer().setMaxPending(c.getWriteBehindMaxPending());
+            shutdownCoordinator.setDeadlineMs(c.getShutdownDeadlineMs());
+        });
+        logPhase("Setup", startTime);
+
+        // Migrate the schema then load the database cache
+        CompletableFuture<Boolean> cacheLoad = CompletableFuture.supplyAsync(() -> {
+            long migrationStartTime = System.currentTimeMillis();
+            try {
+                if (!new MigrationRunner(login).migrate()) {
+                    System.err.println("Unable to migrate the database schema - exiting.");
+                    System.exit(1);
+                }
+            } catch (SQLException | ClassNotFoundException | IOException e) {
+                e.printStackTrace();
+                System.err.println("Unable to migrate the database schema - exiting.");
+                System.exit(1);
+            }
+            logPhase("Schema migration", migrationStartTime);
+
+            long electionStartTime = System.currentTimeMillis();
+            leaderElection.start();
+            logPhase(leaderElection.isLeader() ? "Leader election (leader)" : "Leader election (follower)",
+                    electionStartTime);
+
+            long cacheStartTime = System.currentTimeMillis();
+            boolean loaded = botManager.refreshDatabaseCache();
+            logPhase(loaded ? "Database cache load" : "Failed database cache load", cacheStartTime);
+            databaseUserArchive.start();
+            grantDriftScanner.start();
+            return loaded;
+        });
 
         // Start bot
         try {
-            final JDA jda = JDABuilder.createDefault("token")
-                    .addEventListeners(new EventListener(botManager))
+            long gatewayStartTime = System.currentTimeMillis();
+            final JDA jda = JDABuilder.createDefault(token)
+                    .addEventListeners(eventListener)
                     .build();
+            shutdownCoordinator.setJDA(jda);
             try {
                 jda.awaitReady();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            logPhase("Gateway login", gatewayStartTime);
+
+            auditFeed.start(jda);
 
-            // Updates the cache and deletes expired accounts
+            // Reconcile once both the gateway and the cache are ready, the polling thread retries a failed load
+            boolean loaded = cacheLoad.join();
+            if (loaded && botManager.isLeader() && reconcileNeeded.getAndSet(false)) {
+                long reconcileStartTime = System.currentTimeMillis();
+                eventListener.reconcile(jda);
+                logPhase("Reconciliation", reconcileStartTime);
+            }
+
+            // Renders the database status into the status channels
+            StatusUpdater statusUpdater = new StatusUpdater(jda, botManager, StatusUpdater.DEFAULT_EDIT_WINDOW_MS);
+            config.addListener(c -> {
+                statusUpdater.setEditWindowMs(c.getStatusEditWindowMs());
+                statusUpdater.setMaxEditsPerTick(c.getStatusMaxEditsPerTick());
+            });
+            statusUpdater.markAllDirty();
+            statusUpdater.start();
+            shutdownCoordinator.setStatusUpdater(statusUpdater);
+            logPhase("Startup", processStartTime);
+
+            // Updates the cache on every instance, the leader also reconciles and syncs the names
             Thread pollingThread = new Thread(() -> {
-                while (true) {
+                boolean cacheLoaded = loaded;
+                // Interrupted by the shutdown coordinator
+                while (!Thread.currentThread().isInterrupted()) {
+                    boolean reconcile = reconcileNeeded.get() && botManager.isLeader();
                     // Update database cache if needed
-                    if (botManager.needsUpdate()) {
+                    if (!cacheLoaded || reconcile || botManager.needsUpdate()) {
                         if (botManager.refreshDatabaseCache()) {
-                            // Update the name cache on success
-                            try {
-                                botManager.getDatabaseLogin().connectAndExec(connection -> {
-                                    botManager.updateNameCache(jda, connection);
-                                });
-                            } catch (SQLException | ClassNotFoundException e) {
-                                e.printStackTrace();
+                            cacheLoaded = true;
+                            // The other instances only read what the leader writes
+                            if (botManager.isLeader() && reconcileNeeded.getAndSet(false)) {
+                                // This instance was elected or, the cache failed to load at startup
+                                eventListener.reconcile(jda);
+                            } else if (botManager.isLeader()) {
+                                // Update the name cache on success
+                                botManager.updateNameCache(jda);
                             }
-                        } else {
-                            System.err.println("Failed to update cache, will try again soon.");
                         }
+                        // A failed refresh is logged by the bot manager when the outage starts
+                        statusUpdater.markAllDirty();
                     }
 
                     // Delete old accounts
@@ -109,11 +281,12 @@ public class Main {
                     try {
                         Thread.sleep(1000);
                     } catch (InterruptedException e) {
-                        e.printStackTrace();
+                        Thread.currentThread().interrupt();
                     }
                 }
             }, "Polling thread.");
             pollingThread.setDaemon(true);
+            shutdownCoordinator.setPollingThread(pollingThread);
             pollingThread.start();
         } catch (LoginException e) {
             System.out.println("Unable to login.");
@@ -122,98 +295,120 @@ public class Main {
         }
     }
 
+    /**
+     * Logs how long a startup phase took and, how long it has been since the process started.
+     *
+     * @param phase     the name of the phase
+     * @param startTime the time the phase started from {@link System#currentTimeMillis()}
+     * @since 1
+     */
+    private static void logPhase(String phase, long startTime) {
+        long now = System.currentTimeMillis();
+        System.out.printf("[Startup]: %s took %dms (%dms since process start).\n", phase, now - startTime,
+                now - processStartTime);
+    }
+
 }
 
 /**
- * Parses the on ready event.
+ * Parses the on ready event and, the membership events. Events are handled off the JDA event thread on a striped
+ * executor keyed by guild id, so the events of a guild stay in order while different guilds are handled in parallel.
  *
  * @author danny
  * @version 1
  */
 class EventListener implements net.dv8tion.jda.api.hooks.EventListener {
 
+    /**
+     * The handler time histogram of each event class, so that dispatching does not build the labels every event.
+     *
+     * @since 1
+     */
+    private static final ClassValue<Histogram> HANDLER_SECONDS = new ClassValue<Histogram>() {
+        @Override
+        protected Histogram computeValue(Class<?> type) {
+            return Metrics.histogram("userbot_event_handler_seconds",
+                    "Time taken to handle each type of gateway event.", "event=\"" + type.getSimpleName() + "\"");
+        }
+    };
+
     private final BotManager botManager;
+    private final MembershipTracker membershipTracker;
+    private final StripedExecutor executor;
 
-    public EventListener(BotManager botManager) {
+    public EventListener(BotManager botManager, MembershipTracker membershipTracker, StripedExecutor executor) {
         this.botManager = botManager;
+        this.membershipTracker = membershipTracker;
+        this.executor = executor;
     }
 
     @Override
     public void onEvent(GenericEvent event) {
-        // Yucky instanceof statements
-        if (event instanceof ReadyEvent) {
-            System.out.println("API is ready!");
-            this.botManager.refreshDatabaseCache();
+        this.dispatch(event);
+    }
 
-            // Update the name cache in the database and the name cache to make manual database lookups easier
+    /**
+     * Queues an event on the stripe of its guild, events that are not for a guild share the stripe of key 0.
+     *
+     * @param event the event to handle
+     * @return a future that completes when the event has been handled
+     * @since 1
+     */
+    CompletableFuture<Void> dispatch(GenericEvent event) {
+        long key = event instanceof GenericGuildEvent ? ((GenericGuildEvent) event).getGuild().getIdLong() : 0L;
+        return this.executor.submit(key, () -> {
+            long start = System.nanoTime();
             try {
-                this.botManager.getDatabaseLogin().connectAndExec(connection -> {
-                    this.botManager.updateNameCache(event.getJDA(), connection);
-                });
-            } catch (SQLException e) {
-                e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-                System.err.println("Unable to find the postgresql driver. Exiting.");
-                event.getJDA().shutdownNow();
+                this.handleEvent(event);
+            } finally {
+                HANDLER_SECONDS.get(event.getClass()).recordSince(start);
             }
+        });
+    }
 
-            // Add all guilds that the bot is in but has no record of.
-            for (Guild guild : event.getJDA().getGuilds()) {
-                if (!this.botManager.getGuildConfigs().containsKey(guild.getIdLong())) {
-                    try {
-                        this.botManager.getDatabaseLogin().connectAndExec((Connection connection) -> {
-                            GuildConfig guildConfig = new GuildConfig(guild.getIdLong(), connection);
-                            this.botManager.getGuildConfigs().put(guild.getIdLong(), guildConfig);
-                        });
-                    } catch (SQLException | ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+    private void handleEvent(GenericEvent event) {
+        // Yucky instanceof statements
+        if (event instanceof GuildMemberRemoveEvent) {
+            GuildMemberRemoveEvent removeEvent = (GuildMemberRemoveEvent) event;
+            this.membershipTracker.memberLeft(removeEvent.getGuild().getIdLong(), removeEvent.getUser().getIdLong());
+        } else if (event instanceof GuildLeaveEvent) {
+            this.membershipTracker.guildLeft(((GuildLeaveEvent) event).getGuild().getIdLong());
+        } else if (event instanceof GuildMemberJoinEvent) {
+            User user = ((GuildMemberJoinEvent) event).getUser();
+            this.membershipTracker.memberJoined(user.getIdLong(), user.getAsTag());
+        } else if (event instanceof ReadyEvent) {
+            System.out.println("API is ready!");
+        }
+    }
 
-            // Update name cache and add missing users
-            for (User user : event.getJDA().getUsers()) {
-                if (this.botManager.getDiscordUsers().containsKey(user.getIdLong())) {
-                    // Update name caches
-                    try {
-                        this.botManager.getDatabaseLogin().connectAndExec((Connection connection) -> {
-                            this.botManager.getDiscordUsers().get(user.getIdLong()).setNameCache(event.getJDA(), connection);
-                        });
-                    } catch (SQLException | ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                } else {
-                    // Add all discord users to the database that the bot has no record of
-                    try {
-                        this.botManager.getDatabaseLogin().connectAndExec((Connection connection) -> {
-                            DiscordUser discordUser = new DiscordUser(user.getIdLong(), user.getAsTag(), connection);
-                            this.botManager.getDiscordUsers().put(user.getIdLong(), discordUser);
-                        });
-                    } catch (SQLException | ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+    /**
+     * Brings the database in line with the gateway after startup, this must run once both the gateway is ready and
+     * the database cache has been loaded. Missing guilds are added, the name cache is updated and, users that joined
+     * or left while the bot was offline are handed to the membership tracker.
+     *
+     * @param jda the jda of the discord bot
+     * @since 1
+     */
+    void reconcile(JDA jda) {
+        // Update the name cache in the database to make manual database lookups easier
+        this.botManager.updateNameCache(jda);
 
-            // Delete database accounts for users which are no longer in the guild/deleted
-            for (DiscordUser user : this.botManager.getDiscordUsers().values()) {
-                if (event.getJDA().getUserById(user.getDiscordID()) == null) {
-                    try {
-                        botManager.getDatabaseLogin().connectAndExec((Connection connection) -> {
-                            for (DatabaseUser databaseUser : this.botManager.getDatabaseUsers()) {
-                                if (databaseUser.getDiscordID() == user.getDiscordID()) {
-                                    databaseUser.deleteUser(connection);
-                                    break;
-                                }
-                            }
-                        });
-                    } catch (SQLException | ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
+        // Add all guilds that the bot is in but has no record of.
+        for (Guild guild : jda.getGuilds()) {
+            if (!this.botManager.getGuildConfigs().containsKey(guild.getIdLong())) {
+                this.botManager.getWriteBehindBuffer().addGuildConfig(new GuildConfig(guild.getIdLong()));
             }
         }
+
+        // Add all discord users to the database that the bot has no record of
+        for (User user : jda.getUsers()) {
+            this.membershipTracker.memberJoined(user.getIdLong(), user.getAsTag());
+        }
+
+        // Delete database accounts for users which left while the bot was offline
+        for (DatabaseUser databaseUser : this.botManager.getStaleDatabaseUsers(id -> jda.getUserById(id) != null)) {
+            this.membershipTracker.memberLeft(databaseUser.getGuildID(), databaseUser.getDiscordID());
+        }
     }
 
 }
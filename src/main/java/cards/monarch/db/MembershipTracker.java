@@ -0,0 +1,298 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.DatabaseUser;
+import cards.monarch.db.database.WriteBehindBuffer;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the database in step with guild membership as it changes, rather than only on the ready event. Members that
+ * leave have their database accounts for that guild deleted, all accounts of a guild are deleted when the bot leaves
+ * it and, members that join are added to DiscordUsers through the {@link WriteBehindBuffer}. Departures are coalesced
+ * and applied in batches every flush interval (or once enough are pending) so that bursts such as a mass kick cost one
+ * pass over the cache and one connection. A batch that cannot be applied, as the database is down or the connection is
+ * lost part way, is kept for the next flush.
+ *
+ * @author danny
+ * @version 1
+ */
+public class MembershipTracker {
+
+    /**
+     * Default time that changes are coalesced for.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 500L;
+    /**
+     * Default amount of pending changes that triggers an early flush.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_MAX_PENDING = 500;
+
+    private final BotManager botManager;
+    private final AuditFeed auditFeed;
+    private volatile long flushIntervalMs;
+    private volatile int maxPending;
+    private final ScheduledExecutorService executor;
+    /**
+     * Guards the pending changes.
+     *
+     * @since 1
+     */
+    private final Object lock;
+    /**
+     * Maps guild ids to the discord ids of members that left them.
+     *
+     * @since 1
+     */
+    private Map<Long, Set<Long>> departedMembers;
+    private Set<Long> departedGuilds;
+    private int pending;
+    /**
+     * Whether an early flush has been queued since the last flush.
+     *
+     * @since 1
+     */
+    private boolean flushQueued;
+
+    /**
+     * Creates the tracker and starts flushing the changes.
+     *
+     * @param botManager      the bot manager with the caches to update
+     * @param auditFeed       the audit feed to log deletions in
+     * @param flushIntervalMs the time that changes are coalesced for
+     * @param maxPending      the amount of pending changes that triggers an early flush
+     * @since 1
+     */
+    public MembershipTracker(BotManager botManager, AuditFeed auditFeed, long flushIntervalMs, int maxPending) {
+        this.botManager = botManager;
+        this.auditFeed = auditFeed;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxPending = maxPending;
+        this.lock = new Object();
+        this.departedMembers = new HashMap<>();
+        this.departedGuilds = new HashSet<>();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Membership thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The next flush is dropped when stopping, stop flushes itself
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+        this.scheduleFlush();
+    }
+
+    /**
+     * Schedules the next periodic flush, each flush schedules the next one so that a new interval applies.
+     *
+     * @since 1
+     */
+    private void scheduleFlush() {
+        try {
+            this.executor.schedule(() -> {
+                try {
+                    this.flush();
+                } finally {
+                    this.scheduleFlush();
+                }
+            }, this.flushIntervalMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped, the pending changes are applied by stop
+        }
+    }
+
+    /**
+     * Stops the periodic flushes then applies the pending changes.
+     *
+     * @param timeoutMs the maximum time to wait for a flush that is running
+     * @since 1
+     */
+    public void stop(long timeoutMs) {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        this.flush();
+    }
+
+    /**
+     * Sets the time that changes are coalesced for, this applies from the next flush.
+     *
+     * @param flushIntervalMs the time that changes are coalesced for
+     * @since 1
+     */
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    /**
+     * Sets the amount of pending changes that triggers an early flush.
+     *
+     * @param maxPending the amount of pending changes that triggers an early flush
+     * @since 1
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Queues the deletion of a member's accounts in a guild.
+     *
+     * @param guildID   the id of the guild the member left
+     * @param discordID the discord id of the member
+     * @since 1
+     */
+    public void memberLeft(long guildID, long discordID) {
+        synchronized (this.lock) {
+            this.departedMembers.computeIfAbsent(guildID, id -> new HashSet<>()).add(discordID);
+            this.changed();
+        }
+    }
+
+    /**
+     * Queues the deletion of all accounts in a guild.
+     *
+     * @param guildID the id of the guild that the bot left
+     * @since 1
+     */
+    public void guildLeft(long guildID) {
+        synchronized (this.lock) {
+            this.departedGuilds.add(guildID);
+            this.changed();
+        }
+    }
+
+    /**
+     * Adds a member to DiscordUsers, members that are already known are ignored.
+     *
+     * @param discordID the discord id of the member
+     * @param tag       the tag of the member
+     * @since 1
+     */
+    public void memberJoined(long discordID, String tag) {
+        if (this.botManager.getDiscordUsers().containsKey(discordID)) return;
+        this.botManager.getWriteBehindBuffer().putDiscordUser(discordID, tag);
+    }
+
+    /**
+     * Gets the amount of departures that are waiting to be applied.
+     *
+     * @return the amount of pending departures
+     * @since 1
+     */
+    public int getPending() {
+        synchronized (this.lock) {
+            return this.pending;
+        }
+    }
+
+    /**
+     * Counts a pending change and flushes early if there are too many. Must hold the lock.
+     *
+     * @since 1
+     */
+    private void changed() {
+        if (++this.pending >= this.maxPending && !this.flushQueued) {
+            this.flushQueued = true;
+            this.executor.execute(this::flush);
+        }
+    }
+
+    /**
+     * Applies all pending changes using one connection.
+     *
+     * @since 1
+     */
+    void flush() {
+        Map<Long, Set<Long>> departedMembers;
+        Set<Long> departedGuilds;
+        synchronized (this.lock) {
+            if (this.pending == 0) return;
+            departedMembers = this.departedMembers;
+            departedGuilds = this.departedGuilds;
+            this.departedMembers = new HashMap<>();
+            this.departedGuilds = new HashSet<>();
+            this.pending = 0;
+            this.flushQueued = false;
+        }
+        // The leader receives the same events and applies them
+        if (!this.botManager.isLeader()) return;
+
+        // One pass over the cache for the whole batch
+        List<DatabaseUser> departedAccounts = new ArrayList<>();
+        for (DatabaseUser databaseUser : this.botManager.getDatabaseUsers()) {
+            if (!databaseUser.isActive()) continue;
+            Set<Long> departed = departedMembers.get(databaseUser.getGuildID());
+            if (departedGuilds.contains(databaseUser.getGuildID())
+                    || (departed != null && departed.contains(databaseUser.getDiscordID()))) {
+                departedAccounts.add(databaseUser);
+            }
+        }
+        if (departedAccounts.isEmpty()) return;
+
+        boolean applied = false;
+        try {
+            applied = this.botManager.getDatabaseLogin().connectAndExec(connection -> {
+                for (DatabaseUser databaseUser : departedAccounts) {
+                    try {
+                        databaseUser.deleteUser(connection, this.botManager.getProvisioningTargets(),
+                                this.botManager.getAuditLogWriter(), this.botManager.getAccountCounters());
+                        this.auditFeed.recordDeleted(databaseUser, departedGuilds.contains(databaseUser.getGuildID())
+                                ? "bot left the guild" : "owner left the guild");
+                    } catch (SQLException e) {
+                        // The rest of the batch would fail as well, fail the batch so that it is retried
+                        if (DatabaseLogin.isConnectionFailure(e)) throw e;
+                        e.printStackTrace();
+                    } catch (IllegalAccessError e) {
+                        // Carry on with the rest of the batch
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        // Accounts deleted before the connection failed are inactive in the cache, so the retry skips them
+        if (!applied) this.requeue(departedMembers, departedGuilds);
+    }
+
+    /**
+     * Puts the departures of a batch that failed back into the pending changes. This does not flush early, so that a
+     * database that is down is only retried every flush interval.
+     *
+     * @param departedMembers the departed members of the batch
+     * @param departedGuilds  the departed guilds of the batch
+     * @since 1
+     */
+    private void requeue(Map<Long, Set<Long>> departedMembers, Set<Long> departedGuilds) {
+        synchronized (this.lock) {
+            for (Map.Entry<Long, Set<Long>> departed : departedMembers.entrySet()) {
+                Set<Long> pending = this.departedMembers.computeIfAbsent(departed.getKey(), id -> new HashSet<>());
+                for (long discordID : departed.getValue()) {
+                    if (pending.add(discordID)) this.pending++;
+                }
+            }
+            for (long guildID : departedGuilds) {
+                if (this.departedGuilds.add(guildID)) this.pending++;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.DatabaseUserArchive;
+import cards.monarch.db.database.LeaderElection;
+import net.dv8tion.jda.api.JDA;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shuts the bot down in order when the jvm is asked to exit, so that no database work is lost or left half done. The
+ * events stop being accepted, the queued events, name syncs, membership and role changes are drained until a
+ * deadline, the batched writers are flushed, the database connections are closed and lastly, the bot disconnects from
+ * discord.
+ * <p>
+ * The parts that are created later in startup are set when they are ready, the shutdown skips any that are not set.
+ *
+ * @author danny
+ * @version 1
+ */
+public class ShutdownCoordinator {
+
+    /**
+     * Default time allowed for draining the queued work, the writers are always flushed after it.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_DEADLINE_MS = 20L * 1000L;
+
+    private final BotManager botManager;
+    private final StripedExecutor eventExecutor;
+    private final MembershipTracker membershipTracker;
+    private final AuditFeed auditFeed;
+    private volatile long deadlineMs;
+    private volatile JDA jda;
+    private volatile StatusUpdater statusUpdater;
+    private volatile Thread pollingThread;
+    private volatile DatabaseUserArchive databaseUserArchive;
+    private volatile LeaderElection leaderElection;
+    private volatile GrantDriftScanner grantDriftScanner;
+
+    /**
+     * Creates the coordinator, call {@link #install()} to run it on jvm shutdown.
+     *
+     * @param botManager        the bot manager with the database login and audit log writer
+     * @param eventExecutor     the executor that handles the gateway events
+     * @param membershipTracker the membership tracker to drain
+     * @param auditFeed         the audit feed to flush
+     * @param deadlineMs        the time allowed for draining the queued work
+     * @since 1
+     */
+    public ShutdownCoordinator(BotManager botManager, StripedExecutor eventExecutor,
+                               MembershipTracker membershipTracker, AuditFeed auditFeed, long deadlineMs) {
+        this.botManager = botManager;
+        this.eventExecutor = eventExecutor;
+        this.membershipTracker = membershipTracker;
+        this.auditFeed = auditFeed;
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Runs the shutdown when the jvm exits.
+     *
+     * @since 1
+     */
+    public void install() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Shutdown thread."));
+    }
+
+    public void setDeadlineMs(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+    }
+
+    public void setJDA(JDA jda) {
+        this.jda = jda;
+    }
+
+    public void setStatusUpdater(StatusUpdater statusUpdater) {
+        this.statusUpdater = statusUpdater;
+    }
+
+    public void setPollingThread(Thread pollingThread) {
+        this.pollingThread = pollingThread;
+    }
+
+    public void setDatabaseUserArchive(DatabaseUserArchive databaseUserArchive) {
+        this.databaseUserArchive = databaseUserArchive;
+    }
+
+    public void setLeaderElection(LeaderElection leaderElection) {
+        this.leaderElection = leaderElection;
+    }
+
+    public void setGrantDriftScanner(GrantDriftScanner grantDriftScanner) {
+        this.grantDriftScanner = grantDriftScanner;
+    }
+
+    /**
+     * Shuts the bot down, each step is logged with how long it took.
+     *
+     * @since 1
+     */
+    public void shutdown() {
+        long shutdownStartTime = System.currentTimeMillis();
+        long deadline = shutdownStartTime + this.deadlineMs;
+        System.out.println("[Shutdown]: Shutting down.");
+
+        // Stop accepting events and commands, then finish the ones that are queued
+        long startTime = System.currentTimeMillis();
+        try {
+            if (!this.eventExecutor.shutdown(remaining(deadline), TimeUnit.MILLISECONDS)) {
+                System.err.println("[Shutdown]: Queued events were dropped at the deadline.");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        logStep("Event handling", startTime);
+
+        // Let the name sync finish its current pass
+        startTime = System.currentTimeMillis();
+        Thread pollingThread = this.pollingThread;
+        if (pollingThread != null) {
+            pollingThread.interrupt();
+            try {
+                pollingThread.join(Math.max(1L, remaining(deadline)));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (pollingThread.isAlive()) {
+                System.err.println("[Shutdown]: The name sync did not finish before the deadline.");
+            }
+        }
+        StatusUpdater statusUpdater = this.statusUpdater;
+        if (statusUpdater != null) {
+            statusUpdater.stop();
+        }
+        logStep("Name sync", startTime);
+
+        // Apply the membership changes that are still pending and finish a drift scan, then the role changes and the
+        // feed lines they queued
+        startTime = System.currentTimeMillis();
+        this.membershipTracker.stop(remaining(deadline));
+        GrantDriftScanner grantDriftScanner = this.grantDriftScanner;
+        if (grantDriftScanner != null) {
+            grantDriftScanner.stop();
+        }
+        if (!this.botManager.getProvisioningTargets().shutdown(remaining(deadline))) {
+            System.err.println("[Shutdown]: Queued role changes were dropped at the deadline.");
+        }
+        logStep("Provisioning", startTime);
+
+        // Flush the writers while discord and the database are still connected
+        startTime = System.currentTimeMillis();
+        this.auditFeed.stop();
+        this.botManager.getWriteBehindBuffer().stop();
+        this.botManager.getAuditLogWriter().stop();
+        logStep("Audit flush", startTime);
+
+        startTime = System.currentTimeMillis();
+        DatabaseUserArchive databaseUserArchive = this.databaseUserArchive;
+        if (databaseUserArchive != null) {
+            databaseUserArchive.stop();
+        }
+        // Hand over to another instance once this one has no more work
+        LeaderElection leaderElection = this.leaderElection;
+        if (leaderElection != null) {
+            leaderElection.stop();
+        }
+        DatabaseLogin databaseLogin = this.botManager.getDatabaseLogin();
+        databaseLogin.close();
+        logStep("Database close", startTime);
+
+        startTime = System.currentTimeMillis();
+        JDA jda = this.jda;
+        if (jda != null) {
+            jda.shutdown();
+        }
+        logStep("Discord disconnect", startTime);
+        logStep("Shutdown", shutdownStartTime);
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0L, deadline - System.currentTimeMillis());
+    }
+
+    private static void logStep(String step, long startTime) {
+        System.out.printf("[Shutdown]: %s took %dms.\n", step, System.currentTimeMillis() - startTime);
+    }
+
+}
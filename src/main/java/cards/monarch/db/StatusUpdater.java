@@ -0,0 +1,261 @@
+package cards.monarch.db;
+
+import cards.monarch.db.database.GuildConfig;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Category;
+import net.dv8tion.jda.api.entities.GuildChannel;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders the database status into the status category and active user channel of each guild. Changes are coalesced
+ * per guild so that at most one edit is pushed per guild per edit window, as Discord heavily rate limits channel
+ * renames (two per channel every ten minutes).
+ *
+ * @author danny
+ * @version 1
+ * @see GuildConfig#getDatabaseStatusCategoryID()
+ * @see GuildConfig#getActiveUserChannelID()
+ */
+public class StatusUpdater {
+
+    /**
+     * Default minimum time between two edits of a guild's status channels.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_EDIT_WINDOW_MS = 5L * 60L * 1000L;
+    /**
+     * How often the pending guilds are checked.
+     *
+     * @since 1
+     */
+    private static final long TICK_MS = 1000L;
+    /**
+     * Default maximum amount of guilds to edit per tick, this stops a mass refresh from flooding the rate limiter.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_MAX_EDITS_PER_TICK = 5;
+    /**
+     * Format of the time the cache went stale. It is only rendered while the database is offline, where it stays the
+     * same until the database is back, so that a refresh does not change the rendered text.
+     *
+     * @since 1
+     */
+    private static final String TIME_FORMAT = "HH:mm";
+
+    private final JDA jda;
+    private final BotManager botManager;
+    private volatile long editWindowMs;
+    private volatile int maxEditsPerTick;
+    /**
+     * Maps guild ids to the status of their channels.
+     *
+     * @since 1
+     */
+    private final Map<Long, GuildStatus> guildStatuses;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Creates the status updater, call {@link #start()} to start pushing edits.
+     *
+     * @param jda          the jda of the discord bot
+     * @param botManager   the bot manager to read the status from
+     * @param editWindowMs the minimum time between two edits of one guild's status
+     * @since 1
+     */
+    public StatusUpdater(JDA jda, BotManager botManager, long editWindowMs) {
+        this.jda = jda;
+        this.botManager = botManager;
+        this.editWindowMs = editWindowMs;
+        this.maxEditsPerTick = DEFAULT_MAX_EDITS_PER_TICK;
+        this.guildStatuses = new ConcurrentHashMap<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Status updater thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts checking the pending guilds.
+     *
+     * @since 1
+     */
+    public void start() {
+        this.executor.scheduleWithFixedDelay(() -> {
+            try {
+                this.pushPendingEdits();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void setEditWindowMs(long editWindowMs) {
+        this.editWindowMs = editWindowMs;
+    }
+
+    public void setMaxEditsPerTick(int maxEditsPerTick) {
+        this.maxEditsPerTick = maxEditsPerTick;
+    }
+
+    /**
+     * Stops checking the pending guilds, edits that are already queued in JDA are still sent.
+     *
+     * @since 1
+     */
+    public void stop() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * Marks a guild as having a pending change, this is cheap and can be called on every change.
+     *
+     * @param guildID the id of the guild that changed
+     * @since 1
+     */
+    public void markDirty(long guildID) {
+        GuildStatus status = this.guildStatuses.computeIfAbsent(guildID, GuildStatus::new);
+        status.dirtySince.compareAndSet(0L, System.currentTimeMillis());
+    }
+
+    /**
+     * Marks all guilds with a config as having a pending change, used after a database refresh.
+     *
+     * @since 1
+     */
+    public void markAllDirty() {
+        for (long guildID : this.botManager.getGuildConfigs().keySet()) {
+            this.markDirty(guildID);
+        }
+    }
+
+    /**
+     * Pushes the edits of the guilds that have pending changes and are out of their edit window. The guilds that have
+     * been waiting for the longest are edited first.
+     *
+     * @since 1
+     */
+    void pushPendingEdits() {
+        // The guilds stay dirty until this instance is the one editing the status
+        if (!this.botManager.isLeader()) return;
+
+        long now = System.currentTimeMillis();
+        List<GuildStatus> pending = new ArrayList<>();
+        for (GuildStatus status : this.guildStatuses.values()) {
+            if (status.dirtySince.get() != 0L && now - status.lastEditTime >= this.editWindowMs) {
+                pending.add(status);
+            }
+        }
+        pending.sort(Comparator.comparingLong(status -> status.dirtySince.get()));
+
+        int edits = 0;
+        for (GuildStatus status : pending) {
+            if (edits >= this.maxEditsPerTick) break;
+
+            // Clear the flag before rendering so that changes during the render are not lost
+            status.dirtySince.set(0L);
+            if (this.pushEdit(status)) {
+                status.lastEditTime = now;
+                edits++;
+            }
+        }
+    }
+
+    /**
+     * Renders the status of a guild and, edits the channels whose rendered text has changed.
+     *
+     * @param status the status of the guild to edit
+     * @return whether an edit was sent to discord
+     * @since 1
+     */
+    private boolean pushEdit(GuildStatus status) {
+        GuildConfig guildConfig = this.botManager.getGuildConfigs().get(status.guildID);
+        if (guildConfig == null) return false;
+
+        boolean edited = false;
+        if (guildConfig.getDatabaseStatusCategoryID() != -1) {
+            String name = this.renderStatusName();
+            Category category = this.jda.getCategoryById(guildConfig.getDatabaseStatusCategoryID());
+            if (category != null && !name.equals(status.lastStatusName)) {
+                category.getManager().setName(name).queue(null, Throwable::printStackTrace);
+                status.lastStatusName = name;
+                edited = true;
+            }
+        }
+
+        if (guildConfig.getActiveUserChannelID() != -1) {
+            String name = this.renderActiveUserName(status.guildID);
+            GuildChannel channel = this.jda.getGuildChannelById(guildConfig.getActiveUserChannelID());
+            if (channel != null && !name.equals(status.lastActiveUserName)) {
+                channel.getManager().setName(name).queue(null, Throwable::printStackTrace);
+                status.lastActiveUserName = name;
+                edited = true;
+            }
+        }
+
+        return edited;
+    }
+
+    /**
+     * Renders the name of the status category. Only whether the database is online is rendered, with the time of the
+     * last refresh while it is offline, so that the name only changes when the database goes down or comes back.
+     *
+     * @return the name for the status category
+     * @since 1
+     */
+    private String renderStatusName() {
+        if (!this.botManager.isCacheStale()) return "Database online";
+        String time = new SimpleDateFormat(TIME_FORMAT).format(new Date(this.botManager.getDatabaseLastUpdateTime()));
+        return String.format("Database offline (stale since %s)", time);
+    }
+
+    /**
+     * Renders the name of the active user channel.
+     *
+     * @param guildID the id of the guild to render the name for
+     * @return the name for the active user channel
+     * @since 1
+     */
+    private String renderActiveUserName(long guildID) {
+        return String.format("Active users: %d", this.botManager.getActiveUserCount(guildID));
+    }
+
+    /**
+     * The last pushed status of a guild.
+     *
+     * @since 1
+     */
+    private static class GuildStatus {
+
+        private final long guildID;
+        /**
+         * Time of the first unpushed change, 0 when there are no pending changes.
+         *
+         * @since 1
+         */
+        private final AtomicLong dirtySince;
+        private volatile long lastEditTime;
+        private volatile String lastStatusName;
+        private volatile String lastActiveUserName;
+
+        private GuildStatus(long guildID) {
+            this.guildID = guildID;
+            this.dirtySince = new AtomicLong(0L);
+        }
+
+    }
+
+}
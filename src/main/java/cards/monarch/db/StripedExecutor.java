@@ -0,0 +1,258 @@
+package cards.monarch.db;
+
+import cards.monarch.db.metrics.Metrics;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks off the calling thread, keeping the tasks with the same key in order. Keys are hashed onto a fixed set of
+ * stripes, each stripe runs its tasks one at a time while different stripes run in parallel. This is used to keep the
+ * events of one guild in order without one guild's database work blocking the others.
+ * <p>
+ * The stripes are drained on a pool of platform threads or, where the runtime supports them, on virtual threads.
+ *
+ * @author danny
+ * @version 1
+ */
+public class StripedExecutor {
+
+    /**
+     * The default amount of stripes.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_STRIPES = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final Stripe[] stripes;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private volatile boolean shutdown;
+
+    /**
+     * Creates the executor and registers a queue depth gauge per stripe.
+     *
+     * @param name          the name of the executor, used for the thread and metric names
+     * @param stripes       the amount of stripes
+     * @param preferVirtual whether to use virtual threads if the runtime supports them
+     * @since 1
+     */
+    public StripedExecutor(String name, int stripes, boolean preferVirtual) {
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            Stripe stripe = new Stripe();
+            this.stripes[i] = stripe;
+            Metrics.gauge("userbot_stripe_queue_depth", "Tasks waiting in each stripe of the striped executors.",
+                    String.format("executor=\"%s\",stripe=\"%d\"", name, i), () -> stripe.depth.get());
+        }
+
+        ExecutorService virtualExecutor = preferVirtual ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        if (this.virtual) {
+            this.executor = virtualExecutor;
+        } else {
+            AtomicInteger threads = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(stripes, runnable -> {
+                Thread thread = new Thread(runnable, String.format("%s thread %d.", name, threads.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task, this is looked up reflectively as the bot is built
+     * for Java 8.
+     *
+     * @return the executor or null if the runtime does not support virtual threads
+     * @since 1
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Queues a task on the stripe of its key.
+     *
+     * @param key  the key of the task, tasks with the same key run in the order they were submitted
+     * @param task the task to run
+     * @return a future that completes when the task has run, this fails if the executor has been shut down
+     * @since 1
+     */
+    public CompletableFuture<Void> submit(long key, Runnable task) {
+        Task queued = new Task(task);
+        if (this.shutdown) {
+            queued.future.completeExceptionally(new RejectedExecutionException("The executor has been shut down."));
+            return queued.future;
+        }
+
+        Stripe stripe = this.stripes[Math.floorMod(Long.hashCode(key), this.stripes.length)];
+        stripe.depth.incrementAndGet();
+        stripe.tasks.offer(queued);
+        this.schedule(stripe);
+        return queued.future;
+    }
+
+    /**
+     * Schedules a stripe to be drained, unless it is already scheduled. If the pool has shut down the tasks of the
+     * stripe are failed instead, as nothing would run them.
+     *
+     * @param stripe the stripe to drain
+     * @since 1
+     */
+    private void schedule(Stripe stripe) {
+        if (stripe.scheduled.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(() -> this.drain(stripe));
+            } catch (RejectedExecutionException e) {
+                // A task that passed the shutdown check just before the pool was shut down
+                Task task;
+                while ((task = stripe.tasks.poll()) != null) {
+                    stripe.depth.decrementAndGet();
+                    task.future.completeExceptionally(e);
+                }
+
+                stripe.scheduled.set(false);
+                if (!stripe.tasks.isEmpty()) {
+                    this.schedule(stripe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks of a stripe until it is empty.
+     *
+     * @param stripe the stripe to drain
+     * @since 1
+     */
+    private void drain(Stripe stripe) {
+        Task task;
+        while ((task = stripe.tasks.poll()) != null) {
+            stripe.depth.decrementAndGet();
+            task.run();
+        }
+
+        stripe.scheduled.set(false);
+        // A task may have been queued after the last poll but before the flag was cleared
+        if (!stripe.tasks.isEmpty()) {
+            this.schedule(stripe);
+        }
+    }
+
+    /**
+     * Get the amount of tasks waiting in each stripe.
+     *
+     * @return the queue depth of each stripe
+     * @since 1
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[this.stripes.length];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = this.stripes[i].depth.get();
+        }
+        return depths;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Stops accepting tasks, then waits for the queued tasks to run.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return whether all tasks ran before the timeout
+     * @throws InterruptedException thrown when interrupted while waiting
+     * @since 1
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        this.shutdown = true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // Stripes reschedule themselves, so wait for them to empty before shutting the pool down
+        while (!this.isIdle()) {
+            if (System.nanoTime() >= deadline) {
+                this.executor.shutdownNow();
+                return false;
+            }
+            Thread.sleep(10L);
+        }
+
+        this.executor.shutdown();
+        return this.executor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Checks whether no tasks are queued or running.
+     *
+     * @return whether all stripes are idle
+     * @since 1
+     */
+    public boolean isIdle() {
+        for (Stripe stripe : this.stripes) {
+            if (stripe.scheduled.get() || !stripe.tasks.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A queue of tasks that are run one at a time.
+     *
+     * @since 1
+     */
+    private static class Stripe {
+
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * Whether a drain of this stripe is scheduled or running.
+         *
+         * @since 1
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger depth = new AtomicInteger();
+
+    }
+
+    /**
+     * A queued task and the future that completes once it has run.
+     *
+     * @since 1
+     */
+    private static class Task implements Runnable {
+
+        private final Runnable task;
+        private final CompletableFuture<Void> future;
+
+        private Task(Runnable task) {
+            this.task = task;
+            this.future = new CompletableFuture<>();
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.task.run();
+                this.future.complete(null);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                this.future.completeExceptionally(e);
+            }
+        }
+
+    }
+
+}
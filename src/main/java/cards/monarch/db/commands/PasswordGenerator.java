@@ -1,6 +1,8 @@
 package cards.monarch.db.commands;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 public class PasswordGenerator {
 
@@ -8,14 +10,25 @@ public class PasswordGenerator {
      * The length of the password.
      */
     public static final int PASSWORD_LEN = 15;
-    /**
-     * A secure random object to get the random chars from.
-     */
-    private static final SecureRandom random = new SecureRandom();
     /**
      * Chars that the password can compose of.
      */
     private static final char[] chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+    /**
+     * The most random bytes requested at once, larger batches refill the buffer.
+     */
+    private static final int MAX_BUFFER_BYTES = 64 * 1024;
+    /**
+     * A secure random object per thread to get the random bytes from, this stops bulk generation on several threads
+     * from contending on the lock of a shared generator. DRBG is used where the runtime supports it.
+     */
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(() -> {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    });
     /**
      * This is a utils class
      */
@@ -29,11 +42,93 @@ public class PasswordGenerator {
      * @return a secure alphanumeric password
      */
     public static String getPassword() {
-        char[] out = new char[PASSWORD_LEN];
-        for (int i = 0; i < PASSWORD_LEN; i++) {
-            out[i] = chars[random.nextInt(chars.length)];
+        char[] password = getPasswords(1)[0];
+        String out = new String(password);
+        clear(password);
+        return out;
+    }
+
+    /**
+     * Generates many secure alphanumeric passwords of length {@link #PASSWORD_LEN PASSWORD_LEN}.
+     *
+     * @param count the amount of passwords to generate
+     * @return the passwords, these should be cleared with {@link #clear(char[])} after use
+     * @see #getPasswords(int, char[], int)
+     */
+    public static char[][] getPasswords(int count) {
+        return getPasswords(count, chars, PASSWORD_LEN);
+    }
+
+    /**
+     * Generates many secure passwords from one buffer of random bytes. Each byte is mapped to a char of the alphabet
+     * with rejection sampling, bytes that would make some chars more likely than others are discarded.
+     *
+     * @param count    the amount of passwords to generate
+     * @param alphabet the chars that the passwords can compose of (between 2 and 256 chars)
+     * @param length   the length of each password
+     * @return the passwords, these should be cleared with {@link #clear(char[])} after use
+     * @throws IllegalArgumentException thrown when the alphabet size, count or length is invalid, or the count times the
+     *                                  length does not fit in an int
+     */
+    public static char[][] getPasswords(int count, char[] alphabet, int length) throws IllegalArgumentException {
+        if (alphabet.length < 2 || alphabet.length > 256)
+            throw new IllegalArgumentException("The alphabet must have between 2 and 256 chars.");
+        if (count < 0)
+            throw new IllegalArgumentException("The count must not be negative.");
+        if (length < 1)
+            throw new IllegalArgumentException("The length must be positive.");
+        int needed;
+        try {
+            needed = Math.multiplyExact(count, length);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("The count times the length must fit in an int.", e);
+        }
+
+        // Bytes at or above the limit are rejected so that every char is equally likely
+        int limit = 256 - (256 % alphabet.length);
+        // Request enough bytes to cover the expected rejections in one call, up to the maximum buffer
+        byte[] buffer = new byte[(int) Math.min(MAX_BUFFER_BYTES, (long) needed * 256 / limit + 16)];
+        SecureRandom secureRandom = random.get();
+        secureRandom.nextBytes(buffer);
+
+        char[][] passwords = new char[count][length];
+        int index = 0;
+        for (char[] password : passwords) {
+            for (int i = 0; i < length; ) {
+                if (index == buffer.length) {
+                    secureRandom.nextBytes(buffer);
+                    index = 0;
+                }
+
+                int value = buffer[index++] & 0xFF;
+                if (value < limit) {
+                    password[i++] = alphabet[value % alphabet.length];
+                }
+            }
         }
-        return new String(out);
+
+        Arrays.fill(buffer, (byte) 0);
+        return passwords;
+    }
+
+    /**
+     * Gets the entropy of a password, this is the amount of guesses needed to find it as a power of two.
+     *
+     * @param alphabetSize the amount of chars that the password can compose of
+     * @param length       the length of the password
+     * @return the entropy of the password in bits
+     */
+    public static double getEntropyBits(int alphabetSize, int length) {
+        return length * (Math.log(alphabetSize) / Math.log(2));
+    }
+
+    /**
+     * Overwrites a password so that it does not stay in memory.
+     *
+     * @param password the password to clear
+     */
+    public static void clear(char[] password) {
+        Arrays.fill(password, '\0');
     }
 
 }
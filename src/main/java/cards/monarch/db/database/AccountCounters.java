@@ -0,0 +1,249 @@
+package cards.monarch.db.database;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Counts the active database accounts of each guild and, of each discord user, so that the counts and the guild quotas
+ * are read in constant time rather than by a pass over the cache. Each guild and user has an atomic counter of its
+ * own, so changes to different guilds never contend.
+ * <p>
+ * The counters are changed as accounts are created and deleted, then set from the cache on each refresh. Changes made
+ * while a refresh reads are added on top of what it read, a change that the refresh also read is counted twice until
+ * the next refresh.
+ *
+ * @author danny
+ * @version 1
+ * @see DatabaseUserTable
+ */
+public class AccountCounters {
+
+    /**
+     * The quota of a guild without one.
+     *
+     * @since 1
+     */
+    public static final int NO_QUOTA = -1;
+
+    private final LongToIntFunction quotas;
+    private final Map<Long, AtomicInteger> guildCounts;
+    private final Map<Long, AtomicInteger> userCounts;
+    /**
+     * Changes hold the read lock, so they can run together, setting the counters from a refresh holds the write lock.
+     *
+     * @since 1
+     */
+    private final ReentrantReadWriteLock lock;
+    /**
+     * The changes made since the running refresh started, null when no refresh is running.
+     *
+     * @since 1
+     */
+    private volatile Deltas deltas;
+
+    /**
+     * Creates the counters with every count at zero.
+     *
+     * @param quotas maps guild ids to the maximum amount of active accounts in the guild, {@link #NO_QUOTA} for none
+     * @since 1
+     */
+    public AccountCounters(LongToIntFunction quotas) {
+        this.quotas = quotas;
+        this.guildCounts = new ConcurrentHashMap<>();
+        this.userCounts = new ConcurrentHashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Gets the amount of active accounts in a guild.
+     *
+     * @param guildID the id of the guild
+     * @return the amount of active accounts
+     * @since 1
+     */
+    public int getGuildCount(long guildID) {
+        AtomicInteger count = this.guildCounts.get(guildID);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Gets the amount of active accounts that a discord user owns over all guilds.
+     *
+     * @param discordID the discord id of the user
+     * @return the amount of active accounts
+     * @since 1
+     */
+    public int getUserCount(long discordID) {
+        AtomicInteger count = this.userCounts.get(discordID);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Counts an account towards its guild unless the guild has reached its quota, the check and the count are one
+     * atomic step so that concurrent creations cannot overrun the quota. An account that could not be created must be
+     * handed back with {@link #release(long, long)}.
+     *
+     * @param guildID   the id of the guild the account is for
+     * @param discordID the discord id of the owner of the account
+     * @return whether the account was counted, false if the guild has reached its quota
+     * @since 1
+     */
+    public boolean tryReserve(long guildID, long discordID) {
+        int quota = this.quotas.applyAsInt(guildID);
+        this.lock.readLock().lock();
+        try {
+            AtomicInteger count = counter(this.guildCounts, guildID);
+            int current;
+            do {
+                current = count.get();
+                if (quota != NO_QUOTA && current >= quota) return false;
+            } while (!count.compareAndSet(current, current + 1));
+            counter(this.userCounts, discordID).incrementAndGet();
+
+            Deltas deltas = this.deltas;
+            if (deltas != null) deltas.add(guildID, discordID, 1);
+            return true;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hands back an account counted by {@link #tryReserve(long, long)} that was not created.
+     *
+     * @param guildID   the id of the guild the account was for
+     * @param discordID the discord id of the owner of the account
+     * @since 1
+     */
+    public void release(long guildID, long discordID) {
+        this.add(guildID, discordID, -1);
+    }
+
+    /**
+     * Uncounts an account that was deleted.
+     *
+     * @param guildID   the id of the guild the account was issued in
+     * @param discordID the discord id of the owner of the account
+     * @since 1
+     */
+    public void accountDeleted(long guildID, long discordID) {
+        this.add(guildID, discordID, -1);
+    }
+
+    private void add(long guildID, long discordID, int amount) {
+        this.lock.readLock().lock();
+        try {
+            counter(this.guildCounts, guildID).addAndGet(amount);
+            counter(this.userCounts, discordID).addAndGet(amount);
+
+            Deltas deltas = this.deltas;
+            if (deltas != null) deltas.add(guildID, discordID, amount);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts recording the changes so that they are kept when the refresh finishes, call this before the refresh
+     * reads the database.
+     *
+     * @since 1
+     */
+    public void beginRefresh() {
+        this.lock.writeLock().lock();
+        try {
+            this.deltas = new Deltas();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the counters from the active accounts read by a refresh plus the changes made since it started.
+     *
+     * @param databaseUsers the database accounts read by the refresh
+     * @since 1
+     */
+    public void finishRefresh(List<DatabaseUser> databaseUsers) {
+        // Counted outside of the lock so that changes are not held up by the pass
+        Map<Long, int[]> guildCounts = new HashMap<>();
+        Map<Long, int[]> userCounts = new HashMap<>();
+        for (DatabaseUser databaseUser : databaseUsers) {
+            if (!databaseUser.isActive()) continue;
+            guildCounts.computeIfAbsent(databaseUser.getGuildID(), id -> new int[1])[0]++;
+            userCounts.computeIfAbsent(databaseUser.getDiscordID(), id -> new int[1])[0]++;
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            Deltas deltas = this.deltas;
+            if (deltas != null) {
+                deltas.mergeInto(guildCounts, deltas.guilds);
+                deltas.mergeInto(userCounts, deltas.users);
+            }
+            set(this.guildCounts, guildCounts);
+            set(this.userCounts, userCounts);
+            this.deltas = null;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops recording the changes of a refresh that failed.
+     *
+     * @since 1
+     */
+    public void cancelRefresh() {
+        this.deltas = null;
+    }
+
+    private static AtomicInteger counter(Map<Long, AtomicInteger> counts, long id) {
+        return counts.computeIfAbsent(id, key -> new AtomicInteger());
+    }
+
+    /**
+     * Sets the counters to the counts, removing the counters of ids that have no accounts. Must hold the write lock.
+     *
+     * @since 1
+     */
+    private static void set(Map<Long, AtomicInteger> counters, Map<Long, int[]> counts) {
+        counters.keySet().retainAll(counts.keySet());
+        for (Map.Entry<Long, int[]> count : counts.entrySet()) {
+            if (count.getValue()[0] <= 0) {
+                counters.remove(count.getKey());
+            } else {
+                counter(counters, count.getKey()).set(count.getValue()[0]);
+            }
+        }
+    }
+
+    /**
+     * The changes to the counts made while a refresh runs.
+     *
+     * @since 1
+     */
+    private static class Deltas {
+
+        private final Map<Long, AtomicInteger> guilds = new ConcurrentHashMap<>();
+        private final Map<Long, AtomicInteger> users = new ConcurrentHashMap<>();
+
+        private void add(long guildID, long discordID, int amount) {
+            counter(this.guilds, guildID).addAndGet(amount);
+            counter(this.users, discordID).addAndGet(amount);
+        }
+
+        private void mergeInto(Map<Long, int[]> counts, Map<Long, AtomicInteger> deltas) {
+            for (Map.Entry<Long, AtomicInteger> delta : deltas.entrySet()) {
+                counts.computeIfAbsent(delta.getKey(), id -> new int[1])[0] += delta.getValue().get();
+            }
+        }
+
+    }
+
+}
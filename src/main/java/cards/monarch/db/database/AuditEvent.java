@@ -0,0 +1,77 @@
+package cards.monarch.db.database;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * An entry of the append only audit log.
+ *
+ * @author danny
+ * @version 1
+ * @see AuditLogWriter
+ */
+public class AuditEvent {
+
+    /**
+     * The types of audited events.
+     *
+     * @since 1
+     */
+    public enum Type {
+        USER_CREATED,
+        USER_DELETED,
+        GUILD_CONFIG_CREATED,
+        GUILD_CONFIG_UPDATED
+    }
+
+    private final Type type;
+    private final Date eventTime;
+    private final long guildID;
+    private final long discordID;
+    private final UUID databaseUserID;
+    private final String detail;
+
+    /**
+     * Creates an audit event that happened now.
+     *
+     * @param type           the type of the event
+     * @param guildID        the id of the guild the event happened in
+     * @param discordID      the discord id of the affected user. -1 for no user.
+     * @param databaseUserID the id of the affected database account. null for no account.
+     * @param detail         a human readable description of the event
+     * @since 1
+     */
+    public AuditEvent(Type type, long guildID, long discordID, UUID databaseUserID, String detail) {
+        this.type = type;
+        this.eventTime = new Date();
+        this.guildID = guildID;
+        this.discordID = discordID;
+        this.databaseUserID = databaseUserID;
+        this.detail = detail;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Date getEventTime() {
+        return eventTime;
+    }
+
+    public long getGuildID() {
+        return guildID;
+    }
+
+    public long getDiscordID() {
+        return discordID;
+    }
+
+    public UUID getDatabaseUserID() {
+        return databaseUserID;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+}
@@ -0,0 +1,308 @@
+package cards.monarch.db.database;
+
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes audit events to the AuditLog table in the background. Recording an event only adds it to a lock free queue,
+ * the queue is drained by a background thread with multi-row inserts so that recording never waits on the database.
+ * <p>
+ * Events are written in the order they were recorded, a batch that fails is put back at the head of the queue. An event
+ * that the database rejects is dropped on its own so that it does not hold up the events behind it. The queue is
+ * capped so that it cannot use up the memory while the database is down, once full the oldest events are dropped and
+ * counted.
+ *
+ * @author danny
+ * @version 1
+ * @see AuditEvent
+ */
+public class AuditLogWriter {
+
+    /**
+     * Time between drains of the queue.
+     *
+     * @since 1
+     */
+    private static final long FLUSH_INTERVAL_MS = 1000L;
+    /**
+     * Default maximum amount of rows in one insert statement.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /**
+     * Maximum amount of rows in one insert statement, this keeps the six parameters of each row well under the
+     * driver's limit.
+     *
+     * @since 1
+     */
+    public static final int MAX_BATCH_SIZE = 5000;
+    /**
+     * Maximum time to wait for the last flush when stopping.
+     *
+     * @since 1
+     */
+    private static final long STOP_TIMEOUT_MS = 10L * 1000L;
+    /**
+     * Default maximum amount of events waiting to be written.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_MAX_QUEUED = 100000;
+    private static final Counter DROPPED = Metrics.counter("userbot_audit_log_dropped_total",
+            "Audit events dropped because the queue was full.");
+    private static final Counter REJECTED = Metrics.counter("userbot_audit_log_rejected_total",
+            "Audit events that the database rejected.");
+
+    private final DatabaseLogin databaseLogin;
+    /**
+     * The events waiting to be written, oldest first.
+     *
+     * @since 1
+     */
+    private final Deque<AuditEvent> queue;
+    /**
+     * The amount of events in the queue, as the size of the queue is not constant time.
+     *
+     * @since 1
+     */
+    private final AtomicInteger queued;
+    private final ScheduledExecutorService executor;
+    private volatile int batchSize;
+    private volatile int maxQueued;
+    /**
+     * Whether events were dropped since the last written batch, so that an outage is only logged once.
+     *
+     * @since 1
+     */
+    private final AtomicBoolean dropping;
+
+    /**
+     * Creates the writer, call {@link #start()} to start writing events.
+     *
+     * @param databaseLogin login details for the database
+     * @since 1
+     */
+    public AuditLogWriter(DatabaseLogin databaseLogin) {
+        this.databaseLogin = databaseLogin;
+        this.queue = new ConcurrentLinkedDeque<>();
+        this.queued = new AtomicInteger();
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.maxQueued = DEFAULT_MAX_QUEUED;
+        this.dropping = new AtomicBoolean();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Audit log writer thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts draining the queue in the background.
+     *
+     * @since 1
+     */
+    public void start() {
+        this.executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread then writes all events that are still queued.
+     *
+     * @since 1
+     */
+    public void stop() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+
+        this.flush();
+        if (this.getQueued() > 0) {
+            System.err.println("[ERROR]: Unable to write all audit events before stopping.");
+        }
+    }
+
+    /**
+     * Sets the maximum amount of rows in one insert statement, this applies from the next flush.
+     *
+     * @param batchSize the maximum amount of rows in one insert, at most {@link #MAX_BATCH_SIZE}
+     * @since 1
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.min(batchSize, MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Sets the maximum amount of events waiting to be written, this applies from the next event recorded.
+     *
+     * @param maxQueued the maximum amount of queued events
+     * @since 1
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Get the amount of events waiting to be written.
+     *
+     * @return the amount of queued events
+     * @since 1
+     */
+    public int getQueued() {
+        return this.queued.get();
+    }
+
+    /**
+     * Queues an audit event to be written. This does not touch the database, when the queue is full the oldest event
+     * is dropped.
+     *
+     * @param event the event to write
+     * @since 1
+     */
+    public void record(AuditEvent event) {
+        this.queue.offerLast(event);
+        this.queued.incrementAndGet();
+        this.trim();
+    }
+
+    /**
+     * Writes all queued events in batches, oldest first. The events of a failed batch are put back at the head of the
+     * queue to be retried first on the next flush.
+     *
+     * @since 1
+     */
+    void flush() {
+        int batchSize = this.batchSize;
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        while (true) {
+            AuditEvent event;
+            while (batch.size() < batchSize && (event = this.queue.pollFirst()) != null) {
+                this.queued.decrementAndGet();
+                batch.add(event);
+            }
+            if (batch.isEmpty()) return;
+
+            if (!this.writeBatch(batch)) {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    this.queue.offerFirst(batch.get(i));
+                }
+                this.queued.addAndGet(batch.size());
+                this.trim();
+                return;
+            }
+            this.dropping.set(false);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Drops the oldest events until the queue is within its cap.
+     *
+     * @since 1
+     */
+    private void trim() {
+        int maxQueued = this.maxQueued;
+        int dropped = 0;
+        while (this.queued.get() > maxQueued && this.queue.pollFirst() != null) {
+            this.queued.decrementAndGet();
+            dropped++;
+        }
+        if (dropped == 0) return;
+
+        DROPPED.inc(dropped);
+        if (this.dropping.compareAndSet(false, true)) {
+            System.err.printf("[ERROR]: The audit log queue is full at %d events, dropping the oldest events until "
+                    + "a batch is written.\n", maxQueued);
+        }
+    }
+
+    /**
+     * Inserts a batch of events with a single multi-row insert.
+     *
+     * @param batch the events to insert
+     * @return whether the events were written or rejected, false if they are to be retried
+     * @since 1
+     */
+    private boolean writeBatch(List<AuditEvent> batch) {
+        try {
+            return this.databaseLogin.connectAndExec(connection -> this.insertOrDrop(connection, batch));
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Inserts a batch of events, when the database rejects the batch the events are inserted one at a time and the
+     * rejected ones are dropped.
+     *
+     * @param connection the database connection
+     * @param batch      the events to insert
+     * @throws SQLException thrown on an sql error other than a rejected event
+     * @since 1
+     */
+    private void insertOrDrop(Connection connection, List<AuditEvent> batch) throws SQLException {
+        try {
+            this.insertBatch(connection, batch);
+        } catch (SQLException e) {
+            if (!DatabaseLogin.isRejectedRow(e)) throw e;
+            if (batch.size() > 1) {
+                // Find the rejected events so that the rest of the batch is written
+                for (AuditEvent event : batch) {
+                    this.insertOrDrop(connection, Collections.singletonList(event));
+                }
+                return;
+            }
+            REJECTED.inc();
+            System.err.printf("[ERROR]: The %s audit event was rejected by the database and dropped: %s\n",
+                    batch.get(0).getType(), e.getMessage());
+        }
+    }
+
+    private void insertBatch(Connection connection, List<AuditEvent> batch) throws SQLException {
+        StringBuilder sql = new StringBuilder(
+                "insert into AuditLog (EventTime, EventType, GuildID, DiscordID, DatabaseUserID, Detail) values ");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+        }
+        sql.append(';');
+
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int i = 1;
+            for (AuditEvent event : batch) {
+                statement.setTimestamp(i++, new Timestamp(event.getEventTime().getTime()));
+                statement.setString(i++, event.getType().name());
+                statement.setLong(i++, event.getGuildID());
+                statement.setLong(i++, event.getDiscordID());
+                if (event.getDatabaseUserID() == null) {
+                    statement.setNull(i++, Types.OTHER);
+                } else {
+                    statement.setObject(i++, event.getDatabaseUserID());
+                }
+                statement.setString(i++, event.getDetail());
+            }
+            statement.executeUpdate();
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package cards.monarch.db.database;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Stops the calls to a database that is down from each waiting for a connection to time out. The breaker is closed
+ * while the database can be reached and, opens once at least half of the last calls could not reach it. While it is
+ * open calls fail at once without trying to connect and, a single probe on a background thread tries a connection after
+ * a back off. The breaker is half open while the probe runs, it closes when the probe connects or opens again with
+ * twice the back off.
+ * <p>
+ * Only failures to reach the database count, an SQL error from a call shows that the database is up.
+ *
+ * @author danny
+ * @version 1
+ * @see DatabaseLogin
+ */
+public class CircuitBreaker {
+
+    /**
+     * Default back off before the first probe, it doubles after each failed probe up to the maximum.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_MIN_OPEN_MS = 1000L;
+    public static final long DEFAULT_MAX_OPEN_MS = 30L * 1000L;
+    /**
+     * The amount of last calls that the failure rate is taken over.
+     *
+     * @since 1
+     */
+    private static final int WINDOW_SIZE = 20;
+    /**
+     * The amount of calls needed before the breaker can open, so that a single failure does not open it.
+     *
+     * @since 1
+     */
+    private static final int MIN_CALLS = 5;
+
+    /**
+     * The states of the breaker.
+     *
+     * @since 1
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final BooleanSupplier probe;
+    private final long minOpenMs;
+    private final long maxOpenMs;
+    /**
+     * The outcomes of the last calls as a ring, true for a failure.
+     *
+     * @since 1
+     */
+    private final boolean[] window;
+    private int calls;
+    private int failures;
+    private int next;
+    private volatile State state;
+    private long openMs;
+    private ScheduledExecutorService prober;
+    private boolean shutdown;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param name      the name of what the breaker guards, for the log
+     * @param probe     tries to reach the database, returns whether it could
+     * @param minOpenMs the back off before the first probe
+     * @param maxOpenMs the maximum back off between probes
+     * @since 1
+     */
+    public CircuitBreaker(String name, BooleanSupplier probe, long minOpenMs, long maxOpenMs) {
+        this.name = name;
+        this.probe = probe;
+        this.minOpenMs = minOpenMs;
+        this.maxOpenMs = maxOpenMs;
+        this.window = new boolean[WINDOW_SIZE];
+        this.state = State.CLOSED;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * Checks whether a call may try the database, calls are only let through while the breaker is closed as the probe
+     * is the one call made while it is half open.
+     *
+     * @return whether the call may try the database
+     * @since 1
+     */
+    public boolean allowRequest() {
+        return this.state == State.CLOSED;
+    }
+
+    /**
+     * Records a call that reached the database.
+     *
+     * @since 1
+     */
+    public synchronized void recordSuccess() {
+        // Calls that started before the breaker opened do not close it, only the probe does
+        if (this.state == State.CLOSED) this.record(false);
+    }
+
+    /**
+     * Records a call that could not reach the database, this opens the breaker when the failure rate is reached.
+     *
+     * @return whether this failure opened the breaker
+     * @since 1
+     */
+    public synchronized boolean recordFailure() {
+        if (this.state != State.CLOSED) return false;
+        this.record(true);
+        if (this.calls < MIN_CALLS || this.failures * 2 < this.calls) return false;
+
+        System.err.printf("[Database]: %s cannot be reached, failing calls until a probe connects.\n", this.name);
+        this.open(this.minOpenMs);
+        return true;
+    }
+
+    private void record(boolean failure) {
+        if (this.calls == WINDOW_SIZE) {
+            if (this.window[this.next]) this.failures--;
+        } else {
+            this.calls++;
+        }
+        this.window[this.next] = failure;
+        if (failure) this.failures++;
+        this.next = (this.next + 1) % WINDOW_SIZE;
+    }
+
+    /**
+     * Opens the breaker and schedules the probe. Must hold the lock.
+     *
+     * @param openMs the back off before the probe
+     * @since 1
+     */
+    private void open(long openMs) {
+        this.state = State.OPEN;
+        this.openMs = openMs;
+        // The calls from before the outage do not count towards the next one
+        this.calls = 0;
+        this.failures = 0;
+        this.next = 0;
+        if (this.shutdown) return;
+
+        if (this.prober == null) {
+            this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Database probe thread.");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.prober.schedule(this::probe, openMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+        synchronized (this) {
+            if (this.state != State.OPEN || this.shutdown) return;
+            this.state = State.HALF_OPEN;
+        }
+
+        boolean reached;
+        try {
+            reached = this.probe.getAsBoolean();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            reached = false;
+        }
+
+        synchronized (this) {
+            if (reached) {
+                this.state = State.CLOSED;
+                System.out.printf("[Database]: %s can be reached again.\n", this.name);
+            } else {
+                this.open(Math.min(this.openMs * 2L, this.maxOpenMs));
+            }
+        }
+    }
+
+    /**
+     * Stops the probes, an open breaker stays open.
+     *
+     * @since 1
+     */
+    public synchronized void shutdown() {
+        this.shutdown = true;
+        if (this.prober != null) this.prober.shutdownNow();
+    }
+
+}
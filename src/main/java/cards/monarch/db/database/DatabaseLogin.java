@@ -1,18 +1,44 @@
 package cards.monarch.db.database;
 
 import cards.monarch.db.BotManager;
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Histogram;
+import cards.monarch.db.metrics.Metrics;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Stores the information to connect and login to the databse. The user.txt file always contains the user information
  * and the other data for connections are read in BotConfig.
+ * <p>
+ * Streaming replicas of the database can be added to take reads off the primary, see
+ * {@link #connectAndExecRead(DatabaseExec)}. Everything else, including all writes and DDL, runs on the primary.
+ * <p>
+ * Each login has a {@link CircuitBreaker}, while the database cannot be reached calls fail at once rather than each
+ * waiting for the connection to time out.
  *
  * @verison 1
  * @see BotManager
@@ -25,6 +51,59 @@ public class DatabaseLogin {
      * @since 1
      */
     private static final String USER_TXT = "user.txt";
+    private static final Histogram EXEC_LATENCY = Metrics.histogram("userbot_db_exec_seconds",
+            "Time taken to connect to the database and execute the code within connectAndExec.");
+    private static final Counter EXEC_ERRORS = Metrics.counter("userbot_db_exec_errors_total",
+            "Calls to connectAndExec that threw an exception.");
+    /**
+     * Default maximum amount of idle connections kept open for reuse.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+    /**
+     * Default replication lag above which a replica is not read from.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_MAX_REPLICA_LAG_MS = 5L * 1000L;
+    /**
+     * Time between checks of the replication lag.
+     *
+     * @since 1
+     */
+    private static final long REPLICA_CHECK_INTERVAL_MS = 1000L;
+    /**
+     * The amount of positions of the primary's write ahead log kept to measure the lag against, this covers two
+     * minutes of checks which is well past any sensible maximum lag.
+     *
+     * @since 1
+     */
+    private static final int MAX_LSN_SAMPLES = 120;
+    /**
+     * The lag of a replica that could not be checked or, is no longer a replica.
+     *
+     * @since 1
+     */
+    private static final long UNKNOWN_LAG = -1L;
+    /**
+     * Time a read waits for its replica to replay this instance's writes made before it started, the read runs on the
+     * primary instead if the replica takes longer.
+     *
+     * @since 1
+     */
+    private static final long REPLAY_WAIT_MS = 1000L;
+    private static final long REPLAY_POLL_MS = 10L;
+    private static final Counter REJECTED = Metrics.counter("userbot_db_circuit_rejected_total",
+            "Calls to connectAndExec that failed at once as the circuit breaker was open.");
+    /**
+     * Time the circuit breaker's probe waits for the database to answer.
+     *
+     * @since 1
+     */
+    private static final int PROBE_TIMEOUT_S = 5;
+    private static final Counter REPLICA_FALLBACKS = Metrics.counter("userbot_db_replica_fallbacks_total",
+            "Reads that ran on the primary as no replica was usable or, the read failed on the replica.");
 
     /**
      * The port of the database server.
@@ -57,6 +136,55 @@ public class DatabaseLogin {
      * @since 1
      */
     private String password;
+    /**
+     * Times the statements of the connections that are handed out, null to not time them.
+     *
+     * @since 1
+     */
+    private volatile SlowQueryLog slowQueryLog;
+    /**
+     * Connections that are open and not in use, they are reused rather than logging in for every call.
+     *
+     * @since 1
+     */
+    private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+    /**
+     * The size of the idle connections, kept separately as the size of the queue is not constant time.
+     *
+     * @since 1
+     */
+    private final AtomicInteger idleConnectionCount = new AtomicInteger();
+    private volatile int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private final CircuitBreaker circuitBreaker;
+    /**
+     * Whether the login has been closed, no connections are handed out after that.
+     *
+     * @since 1
+     */
+    private volatile boolean closed;
+    private final List<Replica> replicas = new CopyOnWriteArrayList<>();
+    /**
+     * Spreads the reads over the usable replicas.
+     *
+     * @since 1
+     */
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private volatile long maxReplicaLagMs = DEFAULT_MAX_REPLICA_LAG_MS;
+    /**
+     * The {@link System#nanoTime()} and position of the primary's write ahead log at each check, newest first. This
+     * is only used on the replica check thread.
+     *
+     * @since 1
+     */
+    private final Deque<long[]> lsnSamples = new ArrayDeque<>();
+    /**
+     * The position of the primary's write ahead log after the newest write made through this login, -1 if nothing
+     * has been written since the replicas were added. Reads from a replica wait for it to replay up to here.
+     *
+     * @since 1
+     */
+    private final AtomicLong lastWriteLsn = new AtomicLong(-1L);
+    private ScheduledExecutorService replicaChecker;
 
     /**
      * Reads the user.txt file and stores the username and password in this class.
@@ -99,35 +227,350 @@ public class DatabaseLogin {
         this.host = host;
         this.dataBaseName = dataBaseName;
         this.port = port;
+        Metrics.gauge("userbot_db_idle_connections", "Open database connections of each database waiting to be reused.",
+                String.format("endpoint=\"%s\"", this.getEndpoint()), this::getIdleConnectionCount);
+        this.circuitBreaker = this.createCircuitBreaker();
 
         if (!valid) {
             throw new IOException("user.txt does not contain a username and password");
         }
     }
 
+    /**
+     * Stores the login details without reading the user.txt file, this is used by the load test harness.
+     *
+     * @param host         database hostname
+     * @param port         database port
+     * @param dataBaseName database name
+     * @param username     database username
+     * @param password     database password
+     * @since 1
+     */
+    public DatabaseLogin(String host, int port, String dataBaseName, String username, String password) {
+        this.host = host;
+        this.port = port;
+        this.dataBaseName = dataBaseName;
+        this.username = username;
+        this.password = password;
+        Metrics.gauge("userbot_db_idle_connections", "Open database connections of each database waiting to be reused.",
+                String.format("endpoint=\"%s\"", this.getEndpoint()), this::getIdleConnectionCount);
+        this.circuitBreaker = this.createCircuitBreaker();
+    }
+
+    /**
+     * Get the database as host:port/name, for the log and the labels of the metrics.
+     *
+     * @return the database of the login
+     * @since 1
+     */
+    private String getEndpoint() {
+        return String.format("%s:%d/%s", this.host, this.port, this.dataBaseName);
+    }
+
+    private CircuitBreaker createCircuitBreaker() {
+        String endpoint = this.getEndpoint();
+        CircuitBreaker circuitBreaker = new CircuitBreaker(endpoint, this::probe, CircuitBreaker.DEFAULT_MIN_OPEN_MS,
+                CircuitBreaker.DEFAULT_MAX_OPEN_MS);
+        Metrics.gauge("userbot_db_circuit_state", "State of the circuit breaker of each database, 0 closed, 1 open " +
+                "and 2 half open.", String.format("endpoint=\"%s\"", endpoint), () -> circuitBreaker.getState().ordinal());
+        return circuitBreaker;
+    }
+
+    /**
+     * Tries a new connection for the circuit breaker, this is quiet as it is retried until the database is back.
+     *
+     * @return whether the database could be reached
+     * @since 1
+     */
+    private boolean probe() {
+        try (Connection connection = this.getUnwrappedConnection()) {
+            return connection.isValid(PROBE_TIMEOUT_S);
+        } catch (SQLException | ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether calls may try the database, this is false while the circuit breaker is open.
+     *
+     * @return whether the database is thought to be reachable
+     * @since 1
+     */
+    public boolean isAvailable() {
+        return this.circuitBreaker.allowRequest();
+    }
+
     /**
      * Combines the URL, port and database name to get the full URL for connecting to the database.
      *
      * @return the complete url for connecting to the database.
      */
     private String getDatabaseFullURL() {
-        return String.format("jdbc://%s:%d/%s", this.host, this.port, this.dataBaseName);
+        return String.format("jdbc:postgresql://%s:%d/%s", this.host, this.port, this.dataBaseName);
+    }
+
+    /**
+     * Takes an idle connection or, connects to the database if there are none.
+     *
+     * @return the connection to the database
+     * @throws ClassNotFoundException thrown is the postgresql driver could not be found
+     * @throws SQLException           thrown if there is an error connecting to the database or, the login is closed
+     */
+    private Connection borrowConnection() throws ClassNotFoundException, SQLException {
+        if (this.closed) throw new SQLException("The database login has been closed.");
+
+        Connection connection;
+        while ((connection = this.idleConnections.poll()) != null) {
+            this.idleConnectionCount.decrementAndGet();
+            if (!connection.isClosed()) return connection;
+        }
+        return this.getUnwrappedConnection();
+    }
+
+    /**
+     * Returns a connection to the idle connections or, closes it if it cannot be reused.
+     *
+     * @param connection the connection to return
+     * @param reusable   whether the connection was used without an error
+     * @since 1
+     */
+    private void releaseConnection(Connection connection, boolean reusable) {
+        try {
+            // Connections left in a transaction or, that had an error are not trusted
+            if (reusable && !this.closed && !connection.isClosed() && connection.getAutoCommit()) {
+                if (this.idleConnectionCount.incrementAndGet() <= this.maxIdleConnections) {
+                    this.idleConnections.offer(connection);
+                    // close() may have drained the idle connections before the offer
+                    if (this.closed) this.closeIdleConnections(0);
+                    return;
+                }
+                this.idleConnectionCount.decrementAndGet();
+            }
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes idle connections until there are at most the given amount left.
+     *
+     * @param keep the amount of idle connections to keep
+     * @since 1
+     */
+    private void closeIdleConnections(int keep) {
+        Connection connection;
+        while (this.idleConnectionCount.get() > keep && (connection = this.idleConnections.poll()) != null) {
+            this.idleConnectionCount.decrementAndGet();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops handing out connections, then closes the idle connections and the slow query log. Calls that are running
+     * close their connections when they finish.
+     *
+     * @since 1
+     */
+    public void close() {
+        this.closed = true;
+        this.circuitBreaker.shutdown();
+        synchronized (this.replicas) {
+            if (this.replicaChecker != null) this.replicaChecker.shutdownNow();
+        }
+        for (Replica replica : this.replicas) {
+            replica.login.close();
+        }
+        this.closeIdleConnections(0);
+        SlowQueryLog slowQueryLog = this.slowQueryLog;
+        if (slowQueryLog != null) {
+            this.slowQueryLog = null;
+            slowQueryLog.close();
+        }
+    }
+
+    /**
+     * Sets the maximum amount of idle connections kept open for reuse, extra idle connections are closed.
+     *
+     * @param maxIdleConnections the maximum amount of idle connections, 0 to connect for every call
+     * @since 1
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+        this.closeIdleConnections(maxIdleConnections);
+        for (Replica replica : this.replicas) {
+            replica.login.setMaxIdleConnections(maxIdleConnections);
+        }
+    }
+
+    /**
+     * Adds a streaming replica of this database to read from, it is not read from until {@link #startReplicaChecks()}
+     * has found its lag. The replica is closed with this login.
+     *
+     * @param name  the name of the replica, for the metrics
+     * @param login the login for the replica
+     * @since 1
+     */
+    public void addReplica(String name, DatabaseLogin login) {
+        Replica replica = new Replica(name, login);
+        login.setMaxIdleConnections(this.maxIdleConnections);
+        this.replicas.add(replica);
+        Metrics.gauge("userbot_db_replica_lag_ms", "Replication lag of each replica, -1 if it is unknown.",
+                String.format("replica=\"%s\"", name), () -> replica.lagMs);
+    }
+
+    /**
+     * Starts checking the replication lag of the replicas in the background.
+     *
+     * @since 1
+     */
+    public void startReplicaChecks() {
+        synchronized (this.replicas) {
+            if (this.replicas.isEmpty() || this.replicaChecker != null || this.closed) return;
+            this.replicaChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Replica check thread.");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.replicaChecker.scheduleWithFixedDelay(this::checkReplicas, 0L, REPLICA_CHECK_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the replication lag above which a replica is not read from.
+     *
+     * @param maxReplicaLagMs the maximum replication lag
+     * @since 1
+     */
+    public void setMaxReplicaLagMs(long maxReplicaLagMs) {
+        this.maxReplicaLagMs = maxReplicaLagMs;
+    }
+
+    /**
+     * Samples the position of the primary's write ahead log then, measures how far behind it each replica is. A
+     * replica's lag is the time since the newest sample that it has replayed up to, so an idle primary does not make
+     * its replicas look behind.
+     *
+     * @since 1
+     */
+    private void checkReplicas() {
+        long now = System.nanoTime();
+        long[] primaryLsn = {-1L};
+        try {
+            this.connectAndExec(connection -> primaryLsn[0] = queryLsn(connection, "select pg_current_wal_lsn()::text;"));
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        // Without a new sample the lag keeps growing, so the replicas are not trusted for long without the primary
+        if (primaryLsn[0] >= 0L) {
+            this.lsnSamples.addFirst(new long[]{now, primaryLsn[0]});
+            if (this.lsnSamples.size() > MAX_LSN_SAMPLES) this.lsnSamples.removeLast();
+        }
+
+        for (Replica replica : this.replicas) {
+            replica.lagMs = this.measureLag(replica, now);
+        }
+    }
+
+    private long measureLag(Replica replica, long now) {
+        boolean[] recovering = {false};
+        long[] replayedLsn = {-1L};
+        try {
+            boolean read = replica.login.connectAndExec(connection -> {
+                try (Statement statement = connection.createStatement();
+                     ResultSet result = statement.executeQuery(
+                             "select pg_is_in_recovery(), pg_last_wal_replay_lsn()::text;")) {
+                    if (result.next()) {
+                        recovering[0] = result.getBoolean(1);
+                        String lsn = result.getString(2);
+                        if (lsn != null) replayedLsn[0] = parseLsn(lsn);
+                    }
+                }
+            });
+            if (!read) return UNKNOWN_LAG;
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return UNKNOWN_LAG;
+        }
+        // A promoted replica no longer follows the primary
+        if (!recovering[0] || replayedLsn[0] == -1L) return UNKNOWN_LAG;
+        replica.replayedLsn = replayedLsn[0];
+
+        for (long[] sample : this.lsnSamples) {
+            if (Long.compareUnsigned(sample[1], replayedLsn[0]) <= 0) return TimeUnit.NANOSECONDS.toMillis(Math.max(0L, now - sample[0]));
+        }
+        long[] oldest = this.lsnSamples.peekLast();
+        return oldest == null ? UNKNOWN_LAG : TimeUnit.NANOSECONDS.toMillis(now - oldest[0]);
     }
 
     /**
-     * Connects to the database and returns the connection object.
+     * Parses a write ahead log position in the X/Y hex form of the pg_lsn type. Positions are unsigned, so they are
+     * compared with {@link Long#compareUnsigned(long, long)}.
+     *
+     * @param lsn the position
+     * @return the position as a number
+     * @throws NumberFormatException thrown when the position is not in the X/Y form
+     * @since 1
+     */
+    public static long parseLsn(String lsn) throws NumberFormatException {
+        int slash = lsn.indexOf('/');
+        if (slash < 0) throw new NumberFormatException(String.format("%s is not a write ahead log position.", lsn));
+        return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+    }
+
+    /**
+     * Takes the next replica whose lag is known and within the maximum.
+     *
+     * @return the replica, null if none are usable
+     * @since 1
+     */
+    private Replica nextUsableReplica() {
+        int size = this.replicas.size();
+        if (size == 0) return null;
+        long maxLagMs = this.maxReplicaLagMs;
+        int start = this.nextReplica.getAndIncrement();
+        for (int i = 0; i < size; i++) {
+            Replica replica = this.replicas.get(Math.floorMod(start + i, size));
+            long lagMs = replica.lagMs;
+            if (lagMs != UNKNOWN_LAG && lagMs <= maxLagMs) return replica;
+        }
+        return null;
+    }
+
+    public int getIdleConnectionCount() {
+        return this.idleConnectionCount.get();
+    }
+
+    /**
+     * Connects to the database without timing the statements, this is for the slow query log's own queries.
      *
      * @return the connection to the database
      * @throws ClassNotFoundException thrown is the postgresql driver could not be found
      * @throws SQLException           thrown if there is an error connecting to the database
      */
-    private Connection getConnection() throws ClassNotFoundException, SQLException {
+    Connection getUnwrappedConnection() throws ClassNotFoundException, SQLException {
         Class.forName("org.postgresql.Driver");
         return DriverManager.getConnection(this.getDatabaseFullURL(), this.username, this.password);
     }
 
     /**
-     * Executes the code within the functional interface with resource management for the connection.
+     * Sets the slow query log that times the statements of every connection handed out from now on.
+     *
+     * @param slowQueryLog the slow query log, null to stop timing statements
+     * @since 1
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    /**
+     * Executes the code within the functional interface with resource management for the connection. The connection
+     * is reused by later calls so the code must not close it or, leave it in a transaction.
      *
      * @param databaseExec functional interface for the code to execute with the connection
      * @return returns true if no exception was thrown during execution
@@ -135,18 +578,237 @@ public class DatabaseLogin {
      * @throws ClassNotFoundException thrown on an error with getting the class driver for connection
      */
     public boolean connectAndExec(DatabaseExec databaseExec) throws SQLException, ClassNotFoundException {
-        boolean res;
-        try (Connection connection = this.getConnection()) {
-            databaseExec.exec(connection);
+        if (!this.circuitBreaker.allowRequest()) {
+            REJECTED.inc();
+            return false;
+        }
+
+        long start = System.nanoTime();
+        boolean res = false;
+        boolean unreachable = false;
+        Connection connection = null;
+        boolean[] wrote = {false};
+        try {
+            connection = this.borrowConnection();
+            // Writes are only tracked for the reads from the replicas
+            Connection tracked = this.replicas.isEmpty() ? connection : trackWrites(connection, wrote);
+            SlowQueryLog slowQueryLog = this.slowQueryLog;
+            databaseExec.exec(slowQueryLog == null ? tracked : slowQueryLog.wrap(tracked));
             res = true;
         } catch (Exception e) {
             e.printStackTrace();
-            res = false;
+            unreachable = !this.closed && (connection == null || isConnectionFailure(e));
+        } finally {
+            // Statements before an error may have been committed
+            if (wrote[0] && !unreachable) this.recordWrite(connection);
+            if (connection != null) this.releaseConnection(connection, res);
+            EXEC_LATENCY.recordSince(start);
         }
 
+        if (!unreachable) {
+            this.circuitBreaker.recordSuccess();
+        } else if (this.circuitBreaker.recordFailure()) {
+            // The idle connections were opened before the outage
+            this.closeIdleConnections(0);
+        }
+        if (!res) EXEC_ERRORS.inc();
         return res;
     }
 
+    /**
+     * Records the position of the primary's write ahead log after a write, so that later reads wait for the replicas
+     * to replay it. A position that cannot be read is logged, the read may then miss the write.
+     *
+     * @param connection the connection the write was made on
+     * @since 1
+     */
+    private void recordWrite(Connection connection) {
+        try {
+            // Still in a transaction the write is not committed yet, the connection is then not reused anyway
+            if (!connection.getAutoCommit()) return;
+            long lsn = queryLsn(connection, "select pg_current_wal_lsn()::text;");
+            if (lsn == -1L) return;
+            this.lastWriteLsn.accumulateAndGet(lsn, (last, next) ->
+                    last == -1L || Long.compareUnsigned(next, last) > 0 ? next : last);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Wraps a connection to find out whether any of its statements wrote to the database, see {@link #isWrite(String)}.
+     *
+     * @param connection the connection to wrap
+     * @param wrote      set to true once a statement writes
+     * @return the wrapped connection
+     * @since 1
+     */
+    private static Connection trackWrites(Connection connection, boolean[] wrote) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    if (method.getName().startsWith("prepare")) {
+                        if (isWrite((String) args[0])) wrote[0] = true;
+                    } else if (method.getName().equals("createStatement")) {
+                        Statement statement = (Statement) result;
+                        return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{Statement.class},
+                                (statementProxy, statementMethod, statementArgs) -> {
+                                    String name = statementMethod.getName();
+                                    if ((name.startsWith("execute") || name.equals("addBatch")) && statementArgs != null
+                                            && statementArgs[0] instanceof String && isWrite((String) statementArgs[0])) {
+                                        wrote[0] = true;
+                                    }
+                                    return invoke(statement, statementMethod, statementArgs);
+                                });
+                    }
+                    return result;
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Checks whether a statement may write to the database, anything that does not start with select or show is
+     * counted as a write.
+     *
+     * @param sql the sql of the statement
+     * @return whether the statement may write
+     * @since 1
+     */
+    public static boolean isWrite(String sql) {
+        String start = sql.trim().toLowerCase(Locale.ROOT);
+        return !start.startsWith("select") && !start.startsWith("show");
+    }
+
+    /**
+     * Checks whether an exception was from losing the connection to the database, the connection exception SQL states
+     * and the database shutting down, rather than from the statements.
+     *
+     * @param e the exception
+     * @return whether the database could not be reached
+     * @since 1
+     */
+    public static boolean isConnectionFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && (state.startsWith("08") || state.startsWith("57P"))) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an error was caused by the data of the rows (SQL states 22 and 23) rather than, the connection
+     * or the statement. Retrying these cannot succeed.
+     *
+     * @param e the error
+     * @return whether the error was caused by the rows
+     * @since 1
+     */
+    public static boolean isRejectedRow(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /**
+     * Executes read only code on a replica whose lag is within the maximum or, on the primary if there are none. The
+     * replica must have replayed this instance's own writes before the code runs, so the code sees every write this
+     * instance made before the call and the writes of other instances up to the maximum lag. Only a replica that is
+     * behind this instance's last write is waited for, one that does not catch up in time leaves the read to the
+     * primary. The statements on the replica are timed by the slow query log like those on the primary.
+     * <p>
+     * A read that fails on a replica is retried on the primary and the replica is not read from again until its next
+     * check. The code may therefore run twice, it must only read and only hand out what it read once it has finished.
+     *
+     * @param databaseExec functional interface for the read only code to execute with the connection
+     * @return returns true if no exception was thrown during execution
+     * @throws SQLException           thrown on an SQL error with getting the connection
+     * @throws ClassNotFoundException thrown on an error with getting the class driver for connection
+     * @since 1
+     */
+    public boolean connectAndExecRead(DatabaseExec databaseExec) throws SQLException, ClassNotFoundException {
+        Replica replica = this.nextUsableReplica();
+        if (replica == null) {
+            if (!this.replicas.isEmpty()) REPLICA_FALLBACKS.inc();
+            return this.connectAndExec(databaseExec);
+        }
+
+        long writtenLsn = this.lastWriteLsn.get();
+        SlowQueryLog slowQueryLog = this.slowQueryLog;
+        boolean[] caughtUp = {false};
+        try {
+            boolean read = replica.login.connectAndExec(connection -> {
+                if (writtenLsn != -1L && !awaitReplay(replica, connection, writtenLsn)) return;
+                caughtUp[0] = true;
+                databaseExec.exec(slowQueryLog == null ? connection : slowQueryLog.wrap(connection));
+            });
+            if (read && caughtUp[0]) {
+                replica.reads.inc();
+                return true;
+            }
+            if (!read) replica.lagMs = UNKNOWN_LAG;
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+            replica.lagMs = UNKNOWN_LAG;
+        }
+
+        REPLICA_FALLBACKS.inc();
+        return this.connectAndExec(databaseExec);
+    }
+
+    /**
+     * Waits for a replica to replay the write ahead log up to a position, without asking the replica if it was last
+     * seen past the position.
+     *
+     * @param replica    the replica
+     * @param connection the connection to the replica
+     * @param lsn        the position to wait for
+     * @return whether the replica reached the position within {@link #REPLAY_WAIT_MS}
+     * @throws SQLException thrown on an SQL error
+     * @since 1
+     */
+    private static boolean awaitReplay(Replica replica, Connection connection, long lsn) throws SQLException {
+        long replayed = replica.replayedLsn;
+        if (replayed != -1L && Long.compareUnsigned(replayed, lsn) >= 0) return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLAY_WAIT_MS);
+        while (true) {
+            replayed = queryLsn(connection, "select pg_last_wal_replay_lsn()::text;");
+            if (replayed != -1L) replica.replayedLsn = replayed;
+            if (replayed != -1L && Long.compareUnsigned(replayed, lsn) >= 0) return true;
+            if (System.nanoTime() >= deadline) return false;
+            try {
+                Thread.sleep(REPLAY_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reads a write ahead log position.
+     *
+     * @param connection the connection
+     * @param sql        the query for the position
+     * @return the position, -1 if it is null
+     * @throws SQLException thrown on an SQL error
+     * @since 1
+     */
+    private static long queryLsn(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement(); ResultSet result = statement.executeQuery(sql)) {
+            if (!result.next()) return -1L;
+            String lsn = result.getString(1);
+            return lsn == null ? -1L : parseLsn(lsn);
+        }
+    }
+
     public String getUsername() {
         return this.username;
     }
@@ -154,4 +816,37 @@ public class DatabaseLogin {
     public String getPassword() {
         return this.password;
     }
-}
\ No newline at end of file
+
+    /**
+     * A replica of the database and its last measured lag.
+     *
+     * @since 1
+     */
+    private static class Replica {
+
+        private final DatabaseLogin login;
+        private final Counter reads;
+        /**
+         * The lag in milliseconds from the last check, {@link #UNKNOWN_LAG} until it is first checked.
+         *
+         * @since 1
+         */
+        private volatile long lagMs;
+        /**
+         * The newest position of the write ahead log the replica was seen to have replayed, -1 until it is known.
+         *
+         * @since 1
+         */
+        private volatile long replayedLsn;
+
+        private Replica(String name, DatabaseLogin login) {
+            this.login = login;
+            this.reads = Metrics.counter("userbot_db_replica_reads_total", "Reads that ran on each replica.",
+                    String.format("replica=\"%s\"", name));
+            this.lagMs = UNKNOWN_LAG;
+            this.replayedLsn = -1L;
+        }
+
+    }
+
+}
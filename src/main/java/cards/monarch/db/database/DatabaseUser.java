@@ -4,9 +4,11 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents a user account in the database.
@@ -28,6 +30,7 @@ public class DatabaseUser {
     private final String userName;
     private Date creationTime;
     private Date deletionTime;
+    private boolean active;
 
     /**
      * Creates a new database user then puts it into the database. The UUID for the user is generated here.
@@ -37,18 +40,25 @@ public class DatabaseUser {
      * @param discordID  the discord id of the account owner
      * @param guildID    the guild if of where it was issued
      * @param connection the database connection
+     * @param targets    the targets to create the role on
+     * @param auditLog   the audit log to record the creation in
+     * @param counters   the account counters to count the account in, and check the guild's quota with
      * @throws SQLException       thrown on an sql error
-     * @throws IllegalAccessError thrown if the user already exists or, if the username is forbidden
+     * @throws IllegalAccessError thrown if the user already exists, if the username is forbidden or, if the guild has
+     *                            reached its account quota
      * @see #FORBIDDEN_USENAMES
      * @since 1
      */
-    public DatabaseUser(String userName, String password, long discordID, long guildID, Connection connection) throws SQLException, IllegalAccessError {
+    public DatabaseUser(String userName, String password, long discordID, long guildID, Connection connection,
+                        ProvisioningTargets targets, AuditLogWriter auditLog, AccountCounters counters)
+            throws SQLException, IllegalAccessError {
         this.databaseUserID = UUID.randomUUID();
         this.discordID = discordID;
         this.guildID = guildID;
         this.userName = userName;
         this.creationTime = null;
         this.deletionTime = null;
+        this.active = false;
 
         // Check to see if it is an allowed username
         for (String forbiddenName : FORBIDDEN_USENAMES) {
@@ -56,9 +66,16 @@ public class DatabaseUser {
                 throw new IllegalAccessError("This is a system reserved name.");
         }
 
+        // Checked before anything is written so that a guild over its quota costs no queries
+        if (!counters.tryReserve(this.guildID, this.discordID))
+            throw new IllegalAccessError("The guild has reached its account quota.");
+
         try {
-            this.createUser(connection, password);
+            this.createUser(connection, targets, password);
+            auditLog.record(new AuditEvent(AuditEvent.Type.USER_CREATED, this.guildID, this.discordID, this.databaseUserID,
+                    "created " + this.userName));
         } catch (SQLException | IllegalAccessError e) {
+            counters.release(this.guildID, this.discordID);
             e.printStackTrace();
             throw e;
         }
@@ -73,15 +90,72 @@ public class DatabaseUser {
      * @param userName       the username as read from the database
      * @param creationTime   the creation time as read from the database
      * @param deletionTime   the deletion time as read from the database
+     * @param active         whether the account is active as read from the database
      * @since 1
      */
-    public DatabaseUser(UUID databaseUserID, long discordID, long guildID, String userName, Date creationTime, Date deletionTime) {
+    public DatabaseUser(UUID databaseUserID, long discordID, long guildID, String userName, Date creationTime, Date deletionTime,
+                        boolean active) {
         this.databaseUserID = databaseUserID;
         this.discordID = discordID;
         this.guildID = guildID;
         this.userName = userName;
         this.creationTime = creationTime;
         this.deletionTime = deletionTime;
+        this.active = active;
+    }
+
+    /**
+     * Constructor for the views of the rows of a {@link DatabaseUserTable}, the view reads every field from the table.
+     *
+     * @since 1
+     */
+    DatabaseUser() {
+        this(null, 0L, 0L, null, null, null, false);
+    }
+
+    /**
+     * Reads the database user in the current row of a result with the DatabaseUsers columns.
+     *
+     * @param result the result, positioned on the row to read
+     * @return the database user
+     * @throws SQLException thrown on SQL database error.
+     * @since 1
+     */
+    public static DatabaseUser read(ResultSet result) throws SQLException {
+        return new DatabaseUser(UUID.fromString(result.getString("DatabaseUserID")), result.getLong("DiscordID"),
+                result.getLong("GuildID"), result.getString("UserName"), toDate(result.getTimestamp("CreationTime")),
+                toDate(result.getTimestamp("DeletionTime")), result.getBoolean("Active"));
+    }
+
+    /**
+     * Converts an SQL timestamp to a date.
+     *
+     * @param timestamp the timestamp to convert, can be null
+     * @return the date of the timestamp, null if the timestamp is null
+     * @since 1
+     */
+    private static Date toDate(Timestamp timestamp) {
+        return timestamp == null ? null : new Date(timestamp.getTime());
+    }
+
+    /**
+     * Get the id of the database account.
+     *
+     * @return the uuid of the database account
+     * @since 1
+     */
+    public UUID getDatabaseUserID() {
+        return this.databaseUserID;
+    }
+
+    /**
+     * Get when the database account was created.
+     *
+     * @return the creation time of the database account
+     * @since 1
+     */
+    public Date getCreationTime() {
+        return this.creationTime;
     }
 
     /**
@@ -91,7 +165,37 @@ public class DatabaseUser {
      * @since 1
      */
     public long getDiscordID() {
-        return this.getDiscordID();
+        return this.discordID;
+    }
+
+    /**
+     * Get the username of the database account.
+     *
+     * @return the username of the database account
+     * @since 1
+     */
+    public String getUserName() {
+        return this.userName;
+    }
+
+    /**
+     * Get the id of the guild the database account was issued in.
+     *
+     * @return the guild id of where the account was issued
+     * @since 1
+     */
+    public long getGuildID() {
+        return this.guildID;
+    }
+
+    /**
+     * Get whether the database account is active (has not been deleted).
+     *
+     * @return whether the account is active
+     * @since 1
+     */
+    public boolean isActive() {
+        return this.active;
     }
 
     /**
@@ -103,88 +207,91 @@ public class DatabaseUser {
      * @since 1
      */
     private boolean userExists(Connection connection) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement("select usename from pg_catalog.pg_user where usename=?");
-        statement.setString(0, this.userName);
-        ResultSet res = statement.executeQuery("");
-
-        int size = 0;
-        if (res.last()) {
-            size = res.getRow();
-            res.beforeFirst();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select usename from pg_catalog.pg_user where usename=?;")) {
+            statement.setString(1, this.userName);
+            try (ResultSet res = statement.executeQuery()) {
+                return res.next();
+            }
         }
-
-        statement.close();
-        return size > 0;
     }
 
     /**
-     * Creates the user if it does not exist already.
+     * Creates the user if it does not exist already. The account is stored then the role is created on all the
+     * provisioning targets, this waits for the primary target only and the others catch up in the background.
      *
      * @param connection database connection
+     * @param targets    the targets to create the role on
      * @param password   user's password (this is never stored)
      * @throws SQLException       thrown when an SQL error occurs
      * @throws IllegalAccessError thrown when the user already exists
      * @since 1
      */
-    private void createUser(Connection connection, String password) throws SQLException, IllegalAccessError {
+    private void createUser(Connection connection, ProvisioningTargets targets, String password) throws SQLException,
+            IllegalAccessError {
         if (userExists(connection))
             throw new IllegalAccessError("User already exists.");
 
-        PreparedStatement statement = connection.prepareStatement("create user ? with password ?;");
-        statement.setString(0, this.userName);
-        statement.setString(1, password);
-
-        boolean result = statement.execute();
-        statement.close();
-        statement = connection.prepareStatement("grant select on players, tournaments, tournamentplayers, matches, decks, " +
-                "tournamentdecks, deckcards, matchplayers, cards to ?;");
-        statement.setString(0, this.userName);
-
-        boolean result2 = statement.execute();
-        statement.close();
-
-        statement = connection.prepareStatement("insert into databaseusers values (? ? ? ? ? ? false);");
-        //TODO: set values
-
-        boolean result3 = statement.execute();
-        statement.close();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into DatabaseUsers (DatabaseUserID, GuildID, DiscordID, UserName, CreationTime, DeletionTime, " +
+                        "Active) values (?, ?, ?, ?, now(), null, true);")) {
+            statement.setObject(1, this.databaseUserID);
+            statement.setLong(2, this.guildID);
+            statement.setLong(3, this.discordID);
+            statement.setString(4, this.userName);
+            statement.executeUpdate();
+        }
+        this.creationTime = Date.from(Instant.now());
+        this.active = true;
 
-        if (!(result3 || result2 || result)) {
-            System.err.printf("[ERROR]: Cannot create user result %b result2 %b\n", result, result2);
-            throw new SQLException("PiPi in my pampers");
-        } else {
-            this.creationTime = Date.from(Instant.now());
+        CompletableFuture<Boolean> primary = targets.createRole(this.userName,
+                ProvisioningTargets.passwordVerifier(password)).get(ProvisioningTargets.PRIMARY);
+        if (!primary.join()) {
+            // The account is stored, the role is retried with the lagging targets
+            System.err.printf("[ERROR]: Cannot create role %s on the primary target, it will be retried\n",
+                    this.userName);
         }
     }
 
-    public void deleteUser(Connection connection) throws SQLException, IllegalAccessError {
-        if (!userExists(connection))
-            throw new IllegalAccessError("User does not exist");
-
-        PreparedStatement statement = connection.prepareStatement("revoke * on players, tournaments, tournamentplayers, matches, decks, " +
-                "tournamentdecks, deckcards, matchplayers, cards to ?;");
-        statement.setString(0, this.userName);
-
-        boolean result2 = statement.execute();
-        statement.close();
-
-        statement = connection.prepareStatement("drop user ?;");
-        statement.setString(0, this.userName);
+    /**
+     * Marks the account as inactive then drops the user on all the provisioning targets in the background.
+     *
+     * @param connection database connection
+     * @param targets    the targets to drop the role on
+     * @param auditLog   the audit log to record the deletion in
+     * @param counters   the account counters to uncount the account from
+     * @throws SQLException       thrown when an SQL error occurs
+     * @throws IllegalAccessError thrown when the user does not exist
+     * @since 1
+     */
+    public void deleteUser(Connection connection, ProvisioningTargets targets, AuditLogWriter auditLog,
+                           AccountCounters counters) throws SQLException, IllegalAccessError {
+        int updated;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "update DatabaseUsers set active=false, DeletionTime=now() where DatabaseUserID = ? and Active;")) {
+            statement.setObject(1, this.getDatabaseUserID());
+            updated = statement.executeUpdate();
+        }
 
-        boolean result = statement.execute();
-        statement.close();
+        if (updated != 1)
+            throw new IllegalAccessError("User does not exist");
 
-        statement = connection.prepareStatement("update DatabaseUsers set active=false where DatabaseUserID = ?;");
-        statement.setString(0, this.databaseUserID.toString());
-        boolean result3 = statement.execute();
-        statement.close();
+        this.markDeleted(Date.from(Instant.now()));
+        counters.accountDeleted(this.getGuildID(), this.getDiscordID());
+        targets.dropRole(this.getUserName());
+        auditLog.record(new AuditEvent(AuditEvent.Type.USER_DELETED, this.getGuildID(), this.getDiscordID(),
+                this.getDatabaseUserID(), "deleted " + this.getUserName()));
+    }
 
-        if (!(result3 || result2 || result)) {
-            System.err.printf("[ERROR]: Cannot drop user result %b result2 %b\n", result, result2);
-            throw new SQLException("PiPi in my pampers");
-        } else {
-            this.deletionTime = Date.from(Instant.now());
-        }
+    /**
+     * Marks the account as deleted in the cache.
+     *
+     * @param deletionTime the time the account was deleted
+     * @since 1
+     */
+    void markDeleted(Date deletionTime) {
+        this.deletionTime = deletionTime;
+        this.active = false;
     }
 
 }
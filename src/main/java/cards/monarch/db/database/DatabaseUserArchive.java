@@ -0,0 +1,194 @@
+package cards.monarch.db.database;
+
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves deleted database accounts from DatabaseUsers to DatabaseUserHistory once they are older than the retention
+ * window, so that DatabaseUsers and the cache only grow with the live accounts. Accounts are moved in batches, each
+ * batch is one statement so an account is never in both tables or, in neither.
+ * <p>
+ * The history of an account is read on demand with {@link #getHistory(Connection, long, long)}.
+ *
+ * @author danny
+ * @version 1
+ */
+public class DatabaseUserArchive {
+
+    /**
+     * Default time a deleted account is kept in DatabaseUsers.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_RETENTION_DAYS = 30L;
+    /**
+     * Default maximum amount of accounts moved by one statement.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    /**
+     * Time between archive runs.
+     *
+     * @since 1
+     */
+    private static final long INTERVAL_MS = 60L * 60L * 1000L;
+    private static final Counter ARCHIVED = Metrics.counter("userbot_database_users_archived_total",
+            "Deleted database accounts moved to the history table.");
+    private static final String COLUMNS = "DatabaseUserID, GuildID, DiscordID, UserName, CreationTime, DeletionTime, Active";
+
+    private final DatabaseLogin databaseLogin;
+    private final ScheduledExecutorService executor;
+    private volatile long retentionDays;
+    private volatile int batchSize;
+    private volatile LeaderElection leaderElection;
+
+    /**
+     * Creates the archive, call {@link #start()} to start archiving in the background.
+     *
+     * @param databaseLogin login details for the database
+     * @since 1
+     */
+    public DatabaseUserArchive(DatabaseLogin databaseLogin) {
+        this.databaseLogin = databaseLogin;
+        this.retentionDays = DEFAULT_RETENTION_DAYS;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Database user archive thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts archiving in the background, the first run is soon after startup.
+     *
+     * @since 1
+     */
+    public void start() {
+        this.executor.scheduleWithFixedDelay(this::archive, 60L * 1000L, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops archiving, a batch that is running is finished first.
+     *
+     * @since 1
+     */
+    public void stop() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void setRetentionDays(long retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the election that decides whether this instance archives, null to always archive.
+     *
+     * @param leaderElection the leader election
+     * @since 1
+     */
+    public void setLeaderElection(LeaderElection leaderElection) {
+        this.leaderElection = leaderElection;
+    }
+
+    /**
+     * Moves all deleted accounts that are older than the retention window, one batch at a time.
+     *
+     * @return the amount of accounts that were moved, 0 if this instance is not the leader
+     * @since 1
+     */
+    public int archive() {
+        LeaderElection leaderElection = this.leaderElection;
+        if (leaderElection != null && !leaderElection.isLeader()) return 0;
+
+        AtomicInteger total = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        try {
+            this.databaseLogin.connectAndExec(connection -> {
+                int batchSize = this.batchSize;
+                int moved;
+                do {
+                    moved = this.archiveBatch(connection, batchSize);
+                    total.addAndGet(moved);
+                    ARCHIVED.inc(moved);
+                } while (moved == batchSize && !Thread.currentThread().isInterrupted());
+            });
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+
+        if (total.get() > 0) {
+            System.out.printf("Archived %d deleted database accounts in %dms.\n", total.get(),
+                    System.currentTimeMillis() - start);
+        }
+        return total.get();
+    }
+
+    private int archiveBatch(Connection connection, int batchSize) throws SQLException {
+        // Skip locked rows so that a concurrent delete of the same account does not wait on the archive
+        try (PreparedStatement statement = connection.prepareStatement(
+                "with moved as (delete from DatabaseUsers where DatabaseUserID in (" +
+                        "select DatabaseUserID from DatabaseUsers where not Active " +
+                        "and DeletionTime < now() - ? * interval '1 day' limit ? for update skip locked) " +
+                        "returning " + COLUMNS + ") " +
+                        "insert into DatabaseUserHistory (" + COLUMNS + ") select " + COLUMNS + " from moved;")) {
+            statement.setLong(1, this.retentionDays);
+            statement.setInt(2, batchSize);
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Reads the deleted accounts of a user in a guild, from both the history table and the accounts that have not
+     * been archived yet.
+     *
+     * @param connection the database connection
+     * @param guildID    the id of the guild the accounts were issued in
+     * @param discordID  the discord id of the owner of the accounts
+     * @return the deleted accounts, newest first
+     * @throws SQLException thrown on SQL database error.
+     * @since 1
+     */
+    public static List<DatabaseUser> getHistory(Connection connection, long guildID, long discordID) throws SQLException {
+        List<DatabaseUser> history = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select " + COLUMNS + " from DatabaseUsers where not Active and GuildID = ? and DiscordID = ? " +
+                        "union all select " + COLUMNS + " from DatabaseUserHistory where GuildID = ? and DiscordID = ? " +
+                        "order by DeletionTime desc;")) {
+            statement.setLong(1, guildID);
+            statement.setLong(2, discordID);
+            statement.setLong(3, guildID);
+            statement.setLong(4, discordID);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    history.add(DatabaseUser.read(result));
+                }
+            }
+        }
+
+        return history;
+    }
+
+}
@@ -0,0 +1,233 @@
+package cards.monarch.db.database;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The cached database accounts stored by column in primitive arrays, rather than as an object graph per account. A
+ * UUID is two longs, the creation time is epoch milliseconds and the usernames are encoded one after the other in a
+ * single byte array, so a whole table is a dozen objects however many accounts it holds.
+ * <p>
+ * The table is a read only list of {@link DatabaseUser}, {@link #get(int)} returns a small view of a row that reads
+ * the columns on demand. Deleting an account through a view marks the row as inactive in the table, the active flags
+ * are a bit set of atomic words so that a deletion on one thread is seen by readers on the others. The deletion time
+ * is not cached as nothing reads it from the cache.
+ *
+ * @author danny
+ * @version 1
+ */
+public class DatabaseUserTable extends AbstractList<DatabaseUser> implements RandomAccess {
+
+    /**
+     * Stored in place of a null time.
+     *
+     * @since 1
+     */
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int size;
+    private final long[] idMostBits;
+    private final long[] idLeastBits;
+    private final long[] discordIDs;
+    private final long[] guildIDs;
+    private final long[] creationTimes;
+    /**
+     * Bit i of word i / 64 is set while row i is active.
+     *
+     * @since 1
+     */
+    private final AtomicLongArray active;
+    /**
+     * The usernames encoded in UTF-8, the username of row i is from userNameOffsets[i] to userNameOffsets[i + 1].
+     *
+     * @since 1
+     */
+    private final byte[] userNames;
+    private final int[] userNameOffsets;
+
+    private DatabaseUserTable(Builder builder) {
+        this.size = builder.size;
+        this.idMostBits = Arrays.copyOf(builder.idMostBits, builder.size);
+        this.idLeastBits = Arrays.copyOf(builder.idLeastBits, builder.size);
+        this.discordIDs = Arrays.copyOf(builder.discordIDs, builder.size);
+        this.guildIDs = Arrays.copyOf(builder.guildIDs, builder.size);
+        this.creationTimes = Arrays.copyOf(builder.creationTimes, builder.size);
+        long[] active = new long[(builder.size + Long.SIZE - 1) / Long.SIZE];
+        for (int row = 0; row < builder.size; row++) {
+            if (builder.active[row]) active[row / Long.SIZE] |= 1L << row;
+        }
+        this.active = new AtomicLongArray(active);
+        this.userNames = Arrays.copyOf(builder.userNames, builder.userNamesLength);
+        this.userNameOffsets = Arrays.copyOf(builder.userNameOffsets, builder.size + 1);
+    }
+
+    /**
+     * Creates a table with no accounts.
+     *
+     * @return the empty table
+     * @since 1
+     */
+    public static DatabaseUserTable empty() {
+        return new Builder().build();
+    }
+
+    /**
+     * Reads all rows of a result with the DatabaseUsers columns.
+     *
+     * @param result the result, positioned before the first row
+     * @return the table of the rows
+     * @throws SQLException thrown on SQL database error.
+     * @since 1
+     */
+    public static DatabaseUserTable read(ResultSet result) throws SQLException {
+        Builder builder = new Builder();
+        while (result.next()) {
+            UUID databaseUserID = UUID.fromString(result.getString("DatabaseUserID"));
+            builder.add(databaseUserID.getMostSignificantBits(), databaseUserID.getLeastSignificantBits(),
+                    result.getLong("DiscordID"), result.getLong("GuildID"), result.getString("UserName"),
+                    toMillis(result.getTimestamp("CreationTime")), result.getBoolean("Active"));
+        }
+        return builder.build();
+    }
+
+    private static long toMillis(Timestamp timestamp) {
+        return timestamp == null ? NO_TIME : timestamp.getTime();
+    }
+
+    private static Date toDate(long millis) {
+        return millis == NO_TIME ? null : new Date(millis);
+    }
+
+    @Override
+    public DatabaseUser get(int row) {
+        if (row < 0 || row >= this.size)
+            throw new IndexOutOfBoundsException(String.format("Row %d of %d.", row, this.size));
+        return new Row(this, row);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * The view of one row of the table.
+     *
+     * @since 1
+     */
+    private static class Row extends DatabaseUser {
+
+        private final DatabaseUserTable table;
+        private final int row;
+
+        private Row(DatabaseUserTable table, int row) {
+            this.table = table;
+            this.row = row;
+        }
+
+        @Override
+        public UUID getDatabaseUserID() {
+            return new UUID(this.table.idMostBits[this.row], this.table.idLeastBits[this.row]);
+        }
+
+        @Override
+        public Date getCreationTime() {
+            return toDate(this.table.creationTimes[this.row]);
+        }
+
+        @Override
+        public long getDiscordID() {
+            return this.table.discordIDs[this.row];
+        }
+
+        @Override
+        public String getUserName() {
+            int start = this.table.userNameOffsets[this.row];
+            return new String(this.table.userNames, start, this.table.userNameOffsets[this.row + 1] - start,
+                    StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long getGuildID() {
+            return this.table.guildIDs[this.row];
+        }
+
+        @Override
+        public boolean isActive() {
+            return (this.table.active.get(this.row / Long.SIZE) & 1L << this.row) != 0L;
+        }
+
+        @Override
+        void markDeleted(Date deletionTime) {
+            this.table.active.getAndAccumulate(this.row / Long.SIZE, 1L << this.row, (word, bit) -> word & ~bit);
+        }
+
+    }
+
+    /**
+     * Grows the columns while the rows are read, the table is trimmed to size when it is built.
+     *
+     * @since 1
+     */
+    private static class Builder {
+
+        private int size;
+        private long[] idMostBits = new long[INITIAL_CAPACITY];
+        private long[] idLeastBits = new long[INITIAL_CAPACITY];
+        private long[] discordIDs = new long[INITIAL_CAPACITY];
+        private long[] guildIDs = new long[INITIAL_CAPACITY];
+        private long[] creationTimes = new long[INITIAL_CAPACITY];
+        private boolean[] active = new boolean[INITIAL_CAPACITY];
+        private byte[] userNames = new byte[INITIAL_CAPACITY * 16];
+        private int userNamesLength;
+        private int[] userNameOffsets = new int[INITIAL_CAPACITY + 1];
+
+        private void add(long idMostBits, long idLeastBits, long discordID, long guildID, String userName,
+                         long creationTime, boolean active) {
+            if (this.size == this.discordIDs.length) this.grow();
+
+            byte[] encoded = userName.getBytes(StandardCharsets.UTF_8);
+            if (this.userNamesLength + encoded.length > this.userNames.length) {
+                this.userNames = Arrays.copyOf(this.userNames,
+                        Math.max(this.userNames.length * 2, this.userNamesLength + encoded.length));
+            }
+            System.arraycopy(encoded, 0, this.userNames, this.userNamesLength, encoded.length);
+            this.userNamesLength += encoded.length;
+
+            this.idMostBits[this.size] = idMostBits;
+            this.idLeastBits[this.size] = idLeastBits;
+            this.discordIDs[this.size] = discordID;
+            this.guildIDs[this.size] = guildID;
+            this.creationTimes[this.size] = creationTime;
+            this.active[this.size] = active;
+            this.size++;
+            this.userNameOffsets[this.size] = this.userNamesLength;
+        }
+
+        private void grow() {
+            int capacity = this.discordIDs.length * 2;
+            this.idMostBits = Arrays.copyOf(this.idMostBits, capacity);
+            this.idLeastBits = Arrays.copyOf(this.idLeastBits, capacity);
+            this.discordIDs = Arrays.copyOf(this.discordIDs, capacity);
+            this.guildIDs = Arrays.copyOf(this.guildIDs, capacity);
+            this.creationTimes = Arrays.copyOf(this.creationTimes, capacity);
+            this.active = Arrays.copyOf(this.active, capacity);
+            this.userNameOffsets = Arrays.copyOf(this.userNameOffsets, capacity + 1);
+        }
+
+        private DatabaseUserTable build() {
+            return new DatabaseUserTable(this);
+        }
+
+    }
+
+}
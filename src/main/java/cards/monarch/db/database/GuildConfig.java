@@ -4,10 +4,6 @@ import cards.monarch.db.BotManager;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.entities.User;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-
 /**
  * configuration for a guild. See README.md for field definitions.
  *
@@ -22,33 +18,16 @@ public class GuildConfig {
     private final long userChangeLogChannelID;
     private final long activeUserChannelID;
     private final long administratorRoleID;
+    private final int accountQuota;
 
-    public GuildConfig(long guildID, Connection connection) throws SQLException {
-        this.guildID = guildID;
-        this.allowedAccess = false;
-        this.databaseStatusCategoryID = -1;
-        this.userChangeLogChannelID = -1;
-        this.activeUserChannelID = -1;
-        this.administratorRoleID = -1;
-
-        // Try to insert guild configuration into table
-        boolean result = false;
-        try (PreparedStatement statement = connection.prepareStatement(
-                "insert into GuildSettings values (? ? ? ? ? ?);")) {
-            statement.setLong(0, this.guildID);
-            statement.setBoolean(1, this.allowedAccess);
-            statement.setLong(2, this.databaseStatusCategoryID);
-            statement.setLong(3, this.userChangeLogChannelID);
-            statement.setLong(4, this.activeUserChannelID);
-            statement.setLong(5, this.administratorRoleID);
-            result = statement.execute();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw e;
-        }
-
-        if (!result)
-            throw new SQLException("unable to insert guild config");
+    /**
+     * Creates a default configuration for a new guild, it is written through the {@link WriteBehindBuffer}.
+     *
+     * @param guildID the id of the guild this config is for
+     * @since 1
+     */
+    public GuildConfig(long guildID) {
+        this(guildID, false, -1, -1, -1, -1, AccountCounters.NO_QUOTA);
     }
 
     /**
@@ -64,37 +43,43 @@ public class GuildConfig {
      */
     public GuildConfig(long guildID, boolean allowedAccess, long databaseStatusCategoryID, long userChangeLogChannelID,
                        long activeUserChannelID, long administratorRoleID) {
+        this(guildID, allowedAccess, databaseStatusCategoryID, userChangeLogChannelID, activeUserChannelID,
+                administratorRoleID, AccountCounters.NO_QUOTA);
+    }
+
+    /**
+     * sets the guild configuration up with the specified data from the database, including the account quota.
+     *
+     * @param guildID                  the id of the guild this config is for
+     * @param allowedAccess            whether the guild is allowed access for the database
+     * @param databaseStatusCategoryID the id of the category for the database status. -1 for no category.
+     * @param userChangeLogChannelID   the id of the channel to log user changes to. -1 for no category.
+     * @param activeUserChannelID      the id of the channel to show the active users in. -1 for no channel;
+     * @param administratorRoleID      the id of the role for administrators of the database accounts. -1 for no role.
+     * @param accountQuota             the maximum amount of active accounts in the guild. -1 for no quota.
+     * @since 1
+     */
+    public GuildConfig(long guildID, boolean allowedAccess, long databaseStatusCategoryID, long userChangeLogChannelID,
+                       long activeUserChannelID, long administratorRoleID, int accountQuota) {
         this.guildID = guildID;
         this.allowedAccess = allowedAccess;
         this.databaseStatusCategoryID = databaseStatusCategoryID;
         this.userChangeLogChannelID = userChangeLogChannelID;
         this.activeUserChannelID = activeUserChannelID;
         this.administratorRoleID = administratorRoleID;
+        this.accountQuota = accountQuota;
     }
 
     /**
-     * Updates a modified guild configuration.
+     * Describes the settings for the audit log.
      *
-     * @param connection connection
-     * @throws SQLException thrown when an error with the SQl command occurs
+     * @return the settings in a human readable form
      * @since 1
      */
-    private void updateGuildConfig(Connection connection) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "update GuildSettings set GuildID = ?, AllowedAccess = ?, DatabaseStatusCategoryID = ?, " +
-                        "UserChangeLogChannelID = ?, ActiveUserChannelID = ?, AdministratorRoleID = ? " +
-                        "where GuildId=?;")) {
-            statement.setLong(0, this.guildID);
-            statement.setLong(1, this.databaseStatusCategoryID);
-            statement.setLong(2, this.userChangeLogChannelID);
-            statement.setLong(3, this.activeUserChannelID);
-            statement.setLong(4, this.administratorRoleID);
-            statement.setLong(5, this.guildID);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw e;
-        }
+    public String describe() {
+        return String.format("allowed access %b, status category %d, log channel %d, active user channel %d, " +
+                        "admin role %d, account quota %d", this.allowedAccess, this.databaseStatusCategoryID,
+                this.userChangeLogChannelID, this.activeUserChannelID, this.administratorRoleID, this.accountQuota);
     }
 
     public long getGuildID() {
@@ -121,6 +106,10 @@ public class GuildConfig {
         return administratorRoleID;
     }
 
+    public int getAccountQuota() {
+        return accountQuota;
+    }
+
     /**
      * Tests if a user has permissions to modify the database users.
      *
@@ -0,0 +1,244 @@
+package cards.monarch.db.database;
+
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Elects one of the running bot instances as the leader with a postgres advisory lock, the leader is the only instance
+ * that writes to the database and discord on its own accord (reconciliation, expiry, name sync and provisioning). Every
+ * instance keeps its cache up to date and can serve the read only commands.
+ * <p>
+ * The lock is held by a connection of its own, as advisory locks belong to the session. The leader checks that it
+ * still holds the lock on every heartbeat and, holds a lease that is renewed by each successful heartbeat. An instance
+ * that cannot reach the database stops acting as the leader once its lease runs out, even if the database has not yet
+ * noticed that its session is gone. The leader's writes are safe to repeat, as a new leader can be elected shortly
+ * before the old one notices that it lost the lock.
+ *
+ * @author danny
+ * @version 1
+ */
+public class LeaderElection {
+
+    /**
+     * Default time an instance stays the leader after its last successful heartbeat.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_LEASE_MS = 15L * 1000L;
+    /**
+     * Heartbeats per lease, so that a few slow heartbeats do not lose the lease.
+     *
+     * @since 1
+     */
+    private static final int HEARTBEATS_PER_LEASE = 3;
+    /**
+     * Key of the advisory lock, this is not the migration lock so that migrating does not wait for the leader.
+     *
+     * @since 1
+     */
+    private static final long LOCK_KEY = 0x6c6561646572L;
+    private static final Counter TRANSITIONS = Metrics.counter("userbot_leader_transitions_total",
+            "Times this instance was elected or stepped down.");
+
+    private final DatabaseLogin databaseLogin;
+    private final long leaseMs;
+    private final ScheduledExecutorService executor;
+    private final List<Consumer<Boolean>> listeners;
+    /**
+     * The connection that holds the lock, this is only used on the election thread.
+     *
+     * @since 1
+     */
+    private Connection connection;
+    private volatile boolean leader;
+    /**
+     * The {@link System#nanoTime()} that the lease runs out at.
+     *
+     * @since 1
+     */
+    private volatile long leaseExpiry;
+
+    /**
+     * Creates the election, call {@link #start()} to take part.
+     *
+     * @param databaseLogin login details for the database
+     * @param leaseMs       the time an instance stays the leader after its last successful heartbeat
+     * @since 1
+     */
+    public LeaderElection(DatabaseLogin databaseLogin, long leaseMs) {
+        this.databaseLogin = databaseLogin;
+        this.leaseMs = leaseMs;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Leader election thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.gauge("userbot_leader", "Whether this instance is the leader.", () -> this.isLeader() ? 1L : 0L);
+    }
+
+    /**
+     * Adds a listener that is called with true when this instance is elected and, false when it steps down. The
+     * listener is called on the election thread.
+     *
+     * @param listener the listener to add
+     * @since 1
+     */
+    public void addListener(Consumer<Boolean> listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Tries to become the leader then keeps trying or, heartbeating in the background. This waits for the first try
+     * so that the caller knows whether it is the leader.
+     *
+     * @since 1
+     */
+    public void start() {
+        long intervalMs = Math.max(1L, this.leaseMs / HEARTBEATS_PER_LEASE);
+        try {
+            this.executor.submit(this::tick).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        this.executor.scheduleWithFixedDelay(this::tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops taking part and, if this instance is the leader, releases the lock so another instance takes over without
+     * waiting for the lease.
+     *
+     * @since 1
+     */
+    public void stop() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        // The election thread has stopped so the connection can be used here
+        if (this.leader) {
+            try (Statement statement = this.connection.createStatement()) {
+                statement.execute("select pg_advisory_unlock(" + LOCK_KEY + ");");
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            this.stepDown("shutting down");
+        }
+        this.closeConnection();
+    }
+
+    /**
+     * Checks whether this instance is the leader and its lease has not run out.
+     *
+     * @return whether this instance is the leader
+     * @since 1
+     */
+    public boolean isLeader() {
+        return this.leader && System.nanoTime() - this.leaseExpiry < 0L;
+    }
+
+    /**
+     * Tries to take the lock or, checks that it is still held and renews the lease.
+     *
+     * @since 1
+     */
+    private void tick() {
+        // The lease is counted from before the heartbeat, as the database may have seen the session last at any point
+        long attemptTime = System.nanoTime();
+        try {
+            if (this.connection == null || this.connection.isClosed()) {
+                this.connection = this.databaseLogin.getUnwrappedConnection();
+                // A heartbeat that hangs must not hold the lease past its end
+                this.connection.setNetworkTimeout(Runnable::run, (int) Math.min(Integer.MAX_VALUE, this.leaseMs));
+            }
+
+            boolean held;
+            if (!this.leader) {
+                try (Statement statement = this.connection.createStatement();
+                     ResultSet result = statement.executeQuery("select pg_try_advisory_lock(" + LOCK_KEY + ");")) {
+                    held = result.next() && result.getBoolean(1);
+                }
+            } else {
+                held = this.holdsLock();
+            }
+
+            if (held) {
+                this.leaseExpiry = attemptTime + TimeUnit.MILLISECONDS.toNanos(this.leaseMs);
+                if (!this.leader) {
+                    this.leader = true;
+                    TRANSITIONS.inc();
+                    System.out.println("[Leader]: This instance is the leader.");
+                    this.notifyListeners(true);
+                }
+            } else if (this.leader) {
+                this.stepDown("the lock was lost");
+            }
+        } catch (SQLException | ClassNotFoundException e) {
+            e.printStackTrace();
+            // Dropping the session releases the lock if the database still has it
+            this.closeConnection();
+            if (this.leader) this.stepDown("the database cannot be reached");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean holdsLock() throws SQLException {
+        try (PreparedStatement statement = this.connection.prepareStatement(
+                "select exists(select 1 from pg_catalog.pg_locks where locktype = 'advisory' and granted " +
+                        "and pid = pg_backend_pid() and objsubid = 1 " +
+                        "and ((classid::bigint << 32) | objid::bigint) = ?);")) {
+            statement.setLong(1, LOCK_KEY);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() && result.getBoolean(1);
+            }
+        }
+    }
+
+    private void stepDown(String reason) {
+        this.leader = false;
+        this.leaseExpiry = System.nanoTime();
+        TRANSITIONS.inc();
+        System.err.printf("[Leader]: This instance stepped down, %s.\n", reason);
+        this.notifyListeners(false);
+    }
+
+    private void notifyListeners(boolean leader) {
+        for (Consumer<Boolean> listener : this.listeners) {
+            try {
+                listener.accept(leader);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeConnection() {
+        if (this.connection == null) return;
+        try {
+            this.connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        this.connection = null;
+    }
+
+}
@@ -0,0 +1,254 @@
+package cards.monarch.db.database;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies the schema migrations that are bundled with the bot. The migrations are the sql files listed in order in
+ * {@link #INDEX}, each named V&lt;version&gt;__&lt;description&gt;.sql. Every migration runs once in its own transaction
+ * and is recorded with its checksum in the SchemaMigrations table. A migration that was applied and then edited fails
+ * the check, as the database would no longer match the file.
+ * <p>
+ * An advisory lock is held while migrating so that two instances starting together do not both apply a migration.
+ *
+ * @author danny
+ * @version 1
+ */
+public class MigrationRunner {
+
+    /**
+     * The resource directory of the migrations.
+     *
+     * @since 1
+     */
+    private static final String DIRECTORY = "/db/migration/";
+    /**
+     * The resource that lists the migrations in the order they are applied.
+     *
+     * @since 1
+     */
+    private static final String INDEX = DIRECTORY + "migrations.txt";
+    private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+    /**
+     * Key of the advisory lock held while migrating, any constant that other code does not lock.
+     *
+     * @since 1
+     */
+    private static final long LOCK_KEY = 0x75736572626f74L;
+
+    private final DatabaseLogin databaseLogin;
+
+    public MigrationRunner(DatabaseLogin databaseLogin) {
+        this.databaseLogin = databaseLogin;
+    }
+
+    /**
+     * Applies the migrations that have not been applied yet.
+     *
+     * @return whether the schema is up to date, false if a migration failed or an applied one has changed
+     * @throws SQLException           thrown on an SQL error with getting the connection
+     * @throws ClassNotFoundException thrown on an error with getting the class driver for connection
+     * @throws IOException            thrown when the migrations cannot be read
+     * @since 1
+     */
+    public boolean migrate() throws SQLException, ClassNotFoundException, IOException {
+        List<Migration> migrations = loadMigrations();
+        return this.databaseLogin.connectAndExec(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("select pg_advisory_lock(" + LOCK_KEY + ");");
+            }
+
+            try {
+                this.migrate(connection, migrations);
+            } finally {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("select pg_advisory_unlock(" + LOCK_KEY + ");");
+                }
+            }
+        });
+    }
+
+    private void migrate(Connection connection, List<Migration> migrations) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS SchemaMigrations (" +
+                    "Version int NOT NULL PRIMARY KEY, " +
+                    "Description varchar(100) NOT NULL, " +
+                    "Checksum char(64) NOT NULL, " +
+                    "AppliedAt timestamp NOT NULL DEFAULT now(), " +
+                    "ExecutionMs bigint NOT NULL);");
+        }
+
+        // Maps applied versions to their checksums
+        Map<Integer, String> applied = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("select Version, Checksum from SchemaMigrations;")) {
+            while (result.next()) {
+                applied.put(result.getInt("Version"), result.getString("Checksum"));
+            }
+        }
+
+        for (Migration migration : migrations) {
+            String checksum = applied.get(migration.version);
+            if (checksum != null) {
+                if (!checksum.equals(migration.checksum)) {
+                    throw new SQLException(String.format("Migration V%d %s has changed since it was applied.",
+                            migration.version, migration.description));
+                }
+                continue;
+            }
+
+            long start = System.currentTimeMillis();
+            connection.setAutoCommit(false);
+            try {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(migration.sql);
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "insert into SchemaMigrations (Version, Description, Checksum, ExecutionMs) values (?, ?, ?, ?);")) {
+                    statement.setInt(1, migration.version);
+                    statement.setString(2, migration.description);
+                    statement.setString(3, migration.checksum);
+                    statement.setLong(4, System.currentTimeMillis() - start);
+                    statement.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                System.err.printf("[ERROR]: Migration V%d %s failed.\n", migration.version, migration.description);
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            System.out.printf("[Migration]: Applied V%d %s in %dms.\n", migration.version, migration.description,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Reads the migrations listed in the index and checks that their versions go up from 1 without gaps.
+     *
+     * @return the migrations in the order they are applied
+     * @throws IOException thrown when a migration cannot be read or, the index is invalid
+     * @since 1
+     */
+    public static List<Migration> loadMigrations() throws IOException {
+        List<Migration> migrations = new ArrayList<>();
+        for (String fileName : readLines(INDEX)) {
+            Matcher matcher = FILE_NAME.matcher(fileName);
+            if (!matcher.matches()) {
+                throw new IOException(String.format("Migration %s is not named V<version>__<description>.sql.", fileName));
+            }
+
+            int version = Integer.parseInt(matcher.group(1));
+            if (version != migrations.size() + 1) {
+                throw new IOException(String.format("Migration %s is out of order, expected version %d.", fileName,
+                        migrations.size() + 1));
+            }
+
+            // Line endings are normalised so that the checksum does not depend on the checkout
+            String sql = new String(readBytes(DIRECTORY + fileName), StandardCharsets.UTF_8).replace("\r\n", "\n");
+            migrations.add(new Migration(version, matcher.group(2).replace('_', ' '), sql));
+        }
+
+        return migrations;
+    }
+
+    private static List<String> readLines(String resource) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(resource), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    private static byte[] readBytes(String resource) throws IOException {
+        try (InputStream in = open(resource)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static InputStream open(String resource) throws IOException {
+        InputStream in = MigrationRunner.class.getResourceAsStream(resource);
+        if (in == null) throw new IOException(String.format("Missing resource %s.", resource));
+        return in;
+    }
+
+    /**
+     * One migration file.
+     *
+     * @since 1
+     */
+    public static class Migration {
+
+        private final int version;
+        private final String description;
+        private final String sql;
+        /**
+         * Hex SHA-256 of the sql.
+         *
+         * @since 1
+         */
+        private final String checksum;
+
+        private Migration(int version, String description, String sql) {
+            this.version = version;
+            this.description = description;
+            this.sql = sql;
+            this.checksum = sha256(sql);
+        }
+
+        private static String sha256(String text) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                // Every java runtime has SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public int getVersion() {
+            return this.version;
+        }
+
+        public String getDescription() {
+            return this.description;
+        }
+
+        public String getChecksum() {
+            return this.checksum;
+        }
+
+    }
+
+}
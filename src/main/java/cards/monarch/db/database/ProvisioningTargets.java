@@ -0,0 +1,516 @@
+package cards.monarch.db.database;
+
+import cards.monarch.db.StripedExecutor;
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Histogram;
+import cards.monarch.db.metrics.Metrics;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The database clusters that the database accounts are provisioned on, each with its own connections. The primary
+ * target is the database of the bot, more targets such as analytics copies are added from bot.conf.
+ * <p>
+ * Creating or dropping a role is fanned out to all targets in parallel, so adding a target does not make provisioning
+ * slower. The changes to one role run in order on each target. A target that fails a change is lagging, it keeps the
+ * latest change of each role and retries it in the background until it succeeds, so a target that was down catches
+ * up without replaying changes that have since been undone.
+ *
+ * @author danny
+ * @version 1
+ */
+public class ProvisioningTargets {
+
+    /**
+     * The name of the target of the bot's own database.
+     *
+     * @since 1
+     */
+    public static final String PRIMARY = "primary";
+    /**
+     * The tables that the database accounts can read.
+     *
+     * @since 1
+     */
+    public static final List<String> GRANTED_TABLES = Collections.unmodifiableList(Arrays.asList("players",
+            "tournaments", "tournamentplayers", "matches", "decks", "tournamentdecks", "deckcards", "matchplayers",
+            "cards"));
+    /**
+     * The comment set on the roles of the database accounts, this tells them apart from the other roles of a cluster.
+     *
+     * @since 1
+     */
+    public static final String ROLE_COMMENT = "Database account of the user access bot.";
+    private static final String GRANTED_TABLE_LIST = String.join(", ", GRANTED_TABLES);
+    /**
+     * Time between retries of the lagging targets.
+     *
+     * @since 1
+     */
+    private static final long RETRY_INTERVAL_MS = 30L * 1000L;
+    /**
+     * Stripes per target, the changes of different roles on one target run in parallel up to this.
+     *
+     * @since 1
+     */
+    private static final int STRIPES_PER_TARGET = 2;
+    /**
+     * SCRAM-SHA-256 parameters, these are the postgres defaults.
+     *
+     * @since 1
+     */
+    private static final int SCRAM_ITERATIONS = 4096;
+    private static final int SCRAM_SALT_LENGTH = 16;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final List<Target> targets;
+    private final ScheduledExecutorService retryExecutor;
+    private volatile LeaderElection leaderElection;
+
+    /**
+     * Creates the targets with only the primary target, call {@link #start()} to retry lagging targets.
+     *
+     * @param primaryLogin login details for the bot's database, this is not closed by {@link #shutdown(long)}
+     * @since 1
+     */
+    public ProvisioningTargets(DatabaseLogin primaryLogin) {
+        this.targets = new CopyOnWriteArrayList<>();
+        this.targets.add(new Target(PRIMARY, primaryLogin, false));
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Provisioning retry thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a target, only roles created or dropped after this are provisioned on it.
+     *
+     * @param name  the name of the target, used in the logs and metrics
+     * @param login login details for the target, this is closed by {@link #shutdown(long)}
+     * @throws IllegalArgumentException thrown when a target with the name already exists
+     * @since 1
+     */
+    public synchronized void addTarget(String name, DatabaseLogin login) throws IllegalArgumentException {
+        for (Target target : this.targets) {
+            if (target.name.equals(name))
+                throw new IllegalArgumentException(String.format("Provisioning target %s already exists.", name));
+        }
+        this.targets.add(new Target(name, login, true));
+    }
+
+    /**
+     * Starts retrying the lagging targets in the background.
+     *
+     * @since 1
+     */
+    public void start() {
+        this.retryExecutor.scheduleWithFixedDelay(this::retryLagging, RETRY_INTERVAL_MS, RETRY_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a login role with read access on all targets, the role's password is replaced if it already exists.
+     *
+     * @param userName the name of the role
+     * @param verifier the SCRAM verifier of the password, see {@link #passwordVerifier(String)}
+     * @return the names of the targets mapped to whether the role was created there, the primary target is first
+     * @since 1
+     */
+    public Map<String, CompletableFuture<Boolean>> createRole(String userName, String verifier) {
+        return this.fanOut(new RoleChange(userName, verifier));
+    }
+
+    /**
+     * Drops a role on all targets, targets that do not have the role succeed.
+     *
+     * @param userName the name of the role
+     * @return the names of the targets mapped to whether the role was dropped there, the primary target is first
+     * @since 1
+     */
+    public Map<String, CompletableFuture<Boolean>> dropRole(String userName) {
+        return this.fanOut(new RoleChange(userName, null));
+    }
+
+    private Map<String, CompletableFuture<Boolean>> fanOut(RoleChange change) {
+        Map<String, CompletableFuture<Boolean>> results = new LinkedHashMap<>();
+        for (Target target : this.targets) {
+            Attempt attempt = new Attempt(change);
+            // The latest change of a role replaces any older one that is waiting for a retry
+            target.latest.put(change.userName, attempt);
+            results.put(target.name, target.submit(attempt));
+        }
+        return results;
+    }
+
+    /**
+     * Sets the election that decides whether this instance retries the lagging targets, null to always retry. An
+     * instance that is no longer the leader leaves the roles to the new leader's changes.
+     *
+     * @param leaderElection the leader election
+     * @since 1
+     */
+    public void setLeaderElection(LeaderElection leaderElection) {
+        this.leaderElection = leaderElection;
+    }
+
+    /**
+     * Submits the latest failed change of each role again on every lagging target.
+     *
+     * @return the amount of changes that were retried, 0 if this instance is not the leader
+     * @since 1
+     */
+    public int retryLagging() {
+        LeaderElection leaderElection = this.leaderElection;
+        if (leaderElection != null && !leaderElection.isLeader()) return 0;
+
+        int retried = 0;
+        for (Target target : this.targets) {
+            for (Attempt attempt : target.latest.values()) {
+                if (attempt.failed.compareAndSet(true, false)) {
+                    target.submit(attempt);
+                    retried++;
+                }
+            }
+        }
+        return retried;
+    }
+
+    /**
+     * Get the amount of roles that each target has failed to apply the latest change of.
+     *
+     * @return the names of the targets mapped to how many changes they lag behind
+     * @since 1
+     */
+    public Map<String, Integer> getLagging() {
+        Map<String, Integer> lagging = new LinkedHashMap<>();
+        for (Target target : this.targets) {
+            lagging.put(target.name, target.getLaggingCount());
+        }
+        return lagging;
+    }
+
+    /**
+     * Get the login of each target.
+     *
+     * @return the names of the targets mapped to their logins, the primary target is first
+     * @since 1
+     */
+    public Map<String, DatabaseLogin> getLogins() {
+        Map<String, DatabaseLogin> logins = new LinkedHashMap<>();
+        for (Target target : this.targets) {
+            logins.put(target.name, target.login);
+        }
+        return logins;
+    }
+
+    /**
+     * Checks whether a change to a role is queued, running or waiting for a retry on a target.
+     *
+     * @param targetName the name of the target
+     * @param userName   the name of the role
+     * @return whether the role has a change that has not succeeded yet
+     * @since 1
+     */
+    public boolean isPending(String targetName, String userName) {
+        for (Target target : this.targets) {
+            if (target.name.equals(targetName)) return target.latest.containsKey(userName);
+        }
+        return false;
+    }
+
+    /**
+     * Sets the maximum amount of idle connections of the added targets, the primary target is set by its owner.
+     *
+     * @param maxIdleConnections the maximum amount of idle connections per target
+     * @since 1
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        for (Target target : this.targets) {
+            if (target.owned) target.login.setMaxIdleConnections(maxIdleConnections);
+        }
+    }
+
+    /**
+     * Stops retrying, waits for the queued changes then closes the added targets. Changes that are still lagging are
+     * logged as they are lost.
+     *
+     * @param timeoutMs the maximum time to wait for the queued changes
+     * @return whether all queued changes ran before the timeout
+     * @since 1
+     */
+    public boolean shutdown(long timeoutMs) {
+        this.retryExecutor.shutdownNow();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean drained = true;
+        for (Target target : this.targets) {
+            try {
+                drained &= target.executor.shutdown(Math.max(0L, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                drained = false;
+            }
+
+            for (Attempt attempt : target.latest.values()) {
+                if (attempt.failed.get()) {
+                    System.err.printf("[ERROR]: Role %s was not %s on provisioning target %s.\n",
+                            attempt.change.userName, attempt.change.verifier == null ? "dropped" : "created",
+                            target.name);
+                }
+            }
+            if (target.owned) target.login.close();
+        }
+        return drained;
+    }
+
+    /**
+     * Quotes a role name for use as an identifier, roles cannot be bind parameters.
+     *
+     * @param userName the name of the role
+     * @return the quoted name
+     * @since 1
+     */
+    public static String quote(String userName) {
+        return "\"" + userName.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Computes the SCRAM-SHA-256 verifier of a password in the format postgres stores. The role is created with the
+     * verifier so the password itself is never sent to a target or, kept for the retries.
+     *
+     * @param password the password
+     * @return the verifier
+     * @since 1
+     */
+    public static String passwordVerifier(String password) {
+        byte[] salt = new byte[SCRAM_SALT_LENGTH];
+        random.nextBytes(salt);
+
+        try {
+            char[] chars = password.toCharArray();
+            PBEKeySpec spec = new PBEKeySpec(chars, salt, SCRAM_ITERATIONS, 256);
+            byte[] saltedPassword = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec)
+                    .getEncoded();
+            spec.clearPassword();
+
+            byte[] storedKey = MessageDigest.getInstance("SHA-256").digest(hmac(saltedPassword, "Client Key"));
+            byte[] serverKey = hmac(saltedPassword, "Server Key");
+            Base64.Encoder encoder = Base64.getEncoder();
+            return String.format("SCRAM-SHA-256$%d:%s$%s:%s", SCRAM_ITERATIONS, encoder.encodeToString(salt),
+                    encoder.encodeToString(storedKey), encoder.encodeToString(serverKey));
+        } catch (GeneralSecurityException e) {
+            // Every java runtime has these algorithms
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String message) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * One database cluster that roles are provisioned on.
+     *
+     * @since 1
+     */
+    private static class Target {
+
+        private final String name;
+        private final DatabaseLogin login;
+        /**
+         * Whether the login was added and, is closed with the targets.
+         *
+         * @since 1
+         */
+        private final boolean owned;
+        private final StripedExecutor executor;
+        /**
+         * The latest change of each role that has not succeeded yet.
+         *
+         * @since 1
+         */
+        private final Map<String, Attempt> latest;
+        private final Counter succeeded;
+        private final Counter failed;
+        private final Histogram latency;
+
+        private Target(String name, DatabaseLogin login, boolean owned) {
+            this.name = name;
+            this.login = login;
+            this.owned = owned;
+            this.executor = new StripedExecutor("Provisioning " + name, STRIPES_PER_TARGET, false);
+            this.latest = new ConcurrentHashMap<>();
+            String labels = String.format("target=\"%s\"", name);
+            this.succeeded = Metrics.counter("userbot_provisioning_total", "Role changes applied on each target.",
+                    labels + ",result=\"ok\"");
+            this.failed = Metrics.counter("userbot_provisioning_total", "Role changes applied on each target.",
+                    labels + ",result=\"failed\"");
+            this.latency = Metrics.histogram("userbot_provisioning_seconds",
+                    "Time taken to apply a role change on each target.", labels);
+            Metrics.gauge("userbot_provisioning_lagging", "Roles whose latest change failed on each target.", labels,
+                    this::getLaggingCount);
+        }
+
+        /**
+         * Applies a change on the stripe of its role.
+         *
+         * @param attempt the change to apply
+         * @return a future that completes with whether the change was applied
+         * @since 1
+         */
+        private CompletableFuture<Boolean> submit(Attempt attempt) {
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            this.executor.submit(attempt.change.userName.hashCode(), () -> result.complete(this.apply(attempt)))
+                    .whenComplete((ignored, e) -> {
+                        if (e != null) {
+                            // Shut down before the change ran
+                            attempt.failed.set(true);
+                            result.complete(false);
+                        }
+                    });
+            return result;
+        }
+
+        private boolean apply(Attempt attempt) {
+            long start = System.nanoTime();
+            boolean applied;
+            try {
+                applied = this.login.connectAndExec(attempt.change::apply);
+            } catch (SQLException | ClassNotFoundException e) {
+                e.printStackTrace();
+                applied = false;
+            }
+            this.latency.recordSince(start);
+
+            if (applied) {
+                this.succeeded.inc();
+                this.latest.remove(attempt.change.userName, attempt);
+            } else {
+                this.failed.inc();
+                attempt.failed.set(true);
+                System.err.printf("[ERROR]: Provisioning target %s is lagging, role %s will be retried.\n", this.name,
+                        attempt.change.userName);
+            }
+            return applied;
+        }
+
+        private int getLaggingCount() {
+            int lagging = 0;
+            for (Attempt attempt : this.latest.values()) {
+                if (attempt.failed.get()) lagging++;
+            }
+            return lagging;
+        }
+
+    }
+
+    /**
+     * A change to one role on one target.
+     *
+     * @since 1
+     */
+    private static class Attempt {
+
+        private final RoleChange change;
+        /**
+         * Whether the last try failed and, the change is waiting for a retry.
+         *
+         * @since 1
+         */
+        private final AtomicBoolean failed;
+
+        private Attempt(RoleChange change) {
+            this.change = change;
+            this.failed = new AtomicBoolean();
+        }
+
+    }
+
+    /**
+     * Creating or dropping a role, each change leaves the role in the same state however often it is applied.
+     *
+     * @since 1
+     */
+    private static class RoleChange {
+
+        private final String userName;
+        /**
+         * The password verifier of the role or, null to drop the role.
+         *
+         * @since 1
+         */
+        private final String verifier;
+
+        private RoleChange(String userName, String verifier) {
+            this.userName = userName;
+            this.verifier = verifier;
+        }
+
+        private void apply(Connection connection) throws SQLException {
+            connection.setAutoCommit(false);
+            try {
+                boolean exists;
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "select 1 from pg_catalog.pg_roles where rolname = ?;")) {
+                    statement.setString(1, this.userName);
+                    try (ResultSet result = statement.executeQuery()) {
+                        exists = result.next();
+                    }
+                }
+
+                try (Statement statement = connection.createStatement()) {
+                    if (this.verifier != null) {
+                        // The verifier is only base64 and separators, it is quoted in case that ever changes
+                        String password = "'" + this.verifier.replace("'", "''") + "'";
+                        statement.execute((exists ? "alter role " : "create role ") + quote(this.userName) +
+                                " with login password " + password + ";");
+                        statement.execute("comment on role " + quote(this.userName) + " is '" + ROLE_COMMENT + "';");
+                        statement.execute("grant select on " + GRANTED_TABLE_LIST + " to " + quote(this.userName) +
+                                ";");
+                    } else if (exists) {
+                        statement.execute("revoke all on " + GRANTED_TABLE_LIST + " from " + quote(this.userName) +
+                                ";");
+                        statement.execute("drop role " + quote(this.userName) + ";");
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,390 @@
+package cards.monarch.db.database;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Logs statements that take longer than a threshold to a rotating log file. The connections handed out by
+ * {@link DatabaseLogin} are wrapped so that every statement is timed, a slow statement is logged with its SQL, bind
+ * parameter count, row count and duration. For a sample of the slow statements an EXPLAIN is run in the background and
+ * logged too. Only a plain SELECT is explained with ANALYZE, as ANALYZE runs the statement again and anything else,
+ * such as a WITH holding a DELETE, would write its changes a second time. Password literals, such as the verifier of a
+ * role created by the provisioning, are redacted before a statement is logged.
+ *
+ * @author danny
+ * @version 1
+ * @see DatabaseLogin#setSlowQueryLog(SlowQueryLog)
+ */
+public class SlowQueryLog {
+
+    /**
+     * Default duration above which a statement is logged.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_THRESHOLD_MS = 200L;
+    /**
+     * Default fraction of slow statements to explain.
+     *
+     * @since 1
+     */
+    public static final double DEFAULT_EXPLAIN_SAMPLE_RATE = 0.1D;
+    /**
+     * The log file name pattern, %g is the number of the file in the rotation.
+     *
+     * @since 1
+     */
+    private static final String LOG_FILE_PATTERN = "slow-queries.%g.log";
+    private static final int LOG_FILE_LIMIT_BYTES = 10 * 1024 * 1024;
+    private static final int LOG_FILE_COUNT = 5;
+    /**
+     * Maximum amount of explains waiting to run, more are dropped so that a slow database is not made slower.
+     *
+     * @since 1
+     */
+    private static final int MAX_PENDING_EXPLAINS = 10;
+    private static final String EXPLAIN_ANALYZE_PREFIX = "EXPLAIN (ANALYZE, BUFFERS) ";
+    private static final String EXPLAIN_PREFIX = "EXPLAIN ";
+    /**
+     * The statements that EXPLAIN accepts.
+     *
+     * @since 1
+     */
+    private static final Pattern EXPLAINABLE = Pattern.compile("^(select|with|insert|update|delete|values)\\b.*",
+            Pattern.DOTALL);
+    /**
+     * What makes a SELECT more than a read: creating a table, locking rows, advancing a sequence or taking an advisory
+     * lock.
+     *
+     * @since 1
+     */
+    private static final Pattern WRITES = Pattern.compile(
+            "\\b(into|for\\s+(update|share|no\\s+key\\s+update|key\\s+share)|nextval|setval|pg_(try_)?advisory_\\w*)\\b");
+    /**
+     * A password literal, as in CREATE ROLE ... PASSWORD '...', with its quotes doubled inside.
+     *
+     * @since 1
+     */
+    private static final Pattern PASSWORD = Pattern.compile("(?i)\\b(password\\s+)'(?:[^']|'')*'");
+    private static final String REDACTED = "$1'<redacted>'";
+
+    private final DatabaseLogin databaseLogin;
+    private volatile long thresholdNanos;
+    private volatile double explainSampleRate;
+    private final Logger logger;
+    private final FileHandler fileHandler;
+    private final ExecutorService explainExecutor;
+
+    /**
+     * Opens the log file.
+     *
+     * @param databaseLogin     the login to run the explains with
+     * @param thresholdMs       duration above which a statement is logged
+     * @param explainSampleRate fraction of slow statements to explain (0 to disable)
+     * @throws IOException thrown when the log file cannot be opened
+     * @since 1
+     */
+    public SlowQueryLog(DatabaseLogin databaseLogin, long thresholdMs, double explainSampleRate) throws IOException {
+        this.databaseLogin = databaseLogin;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+        this.explainSampleRate = explainSampleRate;
+
+        this.fileHandler = new FileHandler(LOG_FILE_PATTERN, LOG_FILE_LIMIT_BYTES, LOG_FILE_COUNT, true);
+        this.fileHandler.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(record.getMillis()));
+                return String.format("[%s]: %s%n", time, record.getMessage());
+            }
+        });
+        this.logger = Logger.getLogger(SlowQueryLog.class.getName());
+        this.logger.setUseParentHandlers(false);
+        this.logger.addHandler(this.fileHandler);
+
+        this.explainExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_EXPLAINS), runnable -> {
+            Thread thread = new Thread(runnable, "Slow query explain thread.");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Sets the duration above which a statement is logged.
+     *
+     * @param thresholdMs the duration above which a statement is logged
+     * @since 1
+     */
+    public void setThresholdMs(long thresholdMs) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+    }
+
+    /**
+     * Sets the fraction of slow statements to explain.
+     *
+     * @param explainSampleRate the fraction of slow statements to explain (0 to disable)
+     * @since 1
+     */
+    public void setExplainSampleRate(double explainSampleRate) {
+        this.explainSampleRate = explainSampleRate;
+    }
+
+    /**
+     * Stops the explains and closes the log file.
+     *
+     * @since 1
+     */
+    public void close() {
+        this.explainExecutor.shutdownNow();
+        this.logger.removeHandler(this.fileHandler);
+        this.fileHandler.close();
+    }
+
+    /**
+     * Wraps a connection so that all statements created from it are timed.
+     *
+     * @param connection the connection to wrap
+     * @return the wrapped connection
+     * @since 1
+     */
+    public Connection wrap(Connection connection) {
+        return proxy(Connection.class, (self, method, args) -> {
+            Object result = invoke(connection, method, args);
+            switch (method.getName()) {
+                case "createStatement":
+                    return proxy(Statement.class, new StatementHandler((Statement) result, null));
+                case "prepareStatement":
+                    return proxy(PreparedStatement.class, new StatementHandler((Statement) result, (String) args[0]));
+                case "prepareCall":
+                    return proxy(CallableStatement.class, new StatementHandler((Statement) result, (String) args[0]));
+                default:
+                    return result;
+            }
+        });
+    }
+
+    /**
+     * Logs a statement if it took longer than the threshold, and queues an explain for a sample of slow statements.
+     *
+     * @param sql        the sql of the statement
+     * @param parameters the bind parameters of the statement, mapped from their index to the setter and its arguments
+     * @param rows       the amount of rows returned or updated, -1 if unknown
+     * @param startNanos the time the statement started from {@link System#nanoTime()}
+     * @since 1
+     */
+    private void finish(String sql, Map<Integer, Object[]> parameters, long rows, long startNanos) {
+        long duration = System.nanoTime() - startNanos;
+        if (duration < this.thresholdNanos) return;
+
+        this.logger.info(String.format(Locale.ROOT, "duration=%.1fms rows=%d params=%d sql=%s", duration / 1e6, rows,
+                parameters.size(), redact(sql)));
+        String explainPrefix = explainPrefix(sql);
+        if (explainPrefix != null && ThreadLocalRandom.current().nextDouble() < this.explainSampleRate) {
+            this.explainExecutor.execute(() -> this.explain(explainPrefix, sql, parameters));
+        }
+    }
+
+    /**
+     * Runs an EXPLAIN of a statement with its original bind parameters and logs the plan. This uses its own unwrapped
+     * connection so that it is never logged itself.
+     *
+     * @param explainPrefix the EXPLAIN to run, see {@link #explainPrefix(String)}
+     * @param sql           the sql of the statement
+     * @param parameters    the bind parameters of the statement
+     * @since 1
+     */
+    private void explain(String explainPrefix, String sql, Map<Integer, Object[]> parameters) {
+        StringBuilder plan = new StringBuilder(explainPrefix).append("of ").append(redact(sql));
+        try (Connection connection = this.databaseLogin.getUnwrappedConnection();
+             PreparedStatement statement = connection.prepareStatement(explainPrefix + sql)) {
+            for (Object[] parameter : parameters.values()) {
+                ((Method) parameter[0]).invoke(statement, (Object[]) parameter[1]);
+            }
+
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    plan.append(System.lineSeparator()).append("    ").append(result.getString(1));
+                }
+            }
+            this.logger.info(plan.toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Picks how a statement is explained, with ANALYZE only for a plain SELECT which is safe to run a second time.
+     *
+     * @param sql the sql of the statement
+     * @return the EXPLAIN to put before the statement, null if it cannot be explained
+     * @since 1
+     */
+    public static String explainPrefix(String sql) {
+        String statement = sql.trim().toLowerCase(Locale.ROOT);
+        // EXPLAIN takes a single statement
+        int end = statement.indexOf(';');
+        if (end >= 0 && end < statement.length() - 1) return null;
+        if (!EXPLAINABLE.matcher(statement).matches()) return null;
+        if (statement.startsWith("select") && !WRITES.matcher(statement).find()) return EXPLAIN_ANALYZE_PREFIX;
+        return EXPLAIN_PREFIX;
+    }
+
+    /**
+     * Replaces the password literals of a statement, so that neither a password nor a verifier that could be used to
+     * log in is written to the log.
+     *
+     * @param sql the sql of the statement
+     * @return the sql with each password literal replaced
+     * @since 1
+     */
+    public static String redact(String sql) {
+        return PASSWORD.matcher(sql).replaceAll(REDACTED);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /**
+     * Times the executions of a statement and records its bind parameters.
+     *
+     * @since 1
+     */
+    private class StatementHandler implements InvocationHandler {
+
+        private final Statement statement;
+        /**
+         * The sql the statement was prepared with, null for a plain statement.
+         *
+         * @since 1
+         */
+        private final String preparedSql;
+        /**
+         * Maps parameter indexes to the setter that was called and its arguments.
+         *
+         * @since 1
+         */
+        private Map<Integer, Object[]> parameters;
+
+        private StatementHandler(Statement statement, String preparedSql) {
+            this.statement = statement;
+            this.preparedSql = preparedSql;
+            this.parameters = new TreeMap<>();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                this.parameters.put((Integer) args[0], new Object[]{method, args});
+            } else if (name.equals("clearParameters")) {
+                this.parameters = new TreeMap<>();
+            }
+
+            if (!name.startsWith("execute")) {
+                return SlowQueryLog.invoke(this.statement, method, args);
+            }
+
+            String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : this.preparedSql;
+            Map<Integer, Object[]> parameters = new TreeMap<>(this.parameters);
+            long start = System.nanoTime();
+            Object result = SlowQueryLog.invoke(this.statement, method, args);
+
+            if (result instanceof ResultSet) {
+                // Queries are finished when their results have been read
+                ResultSet resultSet = (ResultSet) result;
+                return proxy(ResultSet.class, new ResultSetHandler(resultSet, sql, parameters, start));
+            }
+
+            long rows = -1;
+            if (result instanceof Number) {
+                rows = ((Number) result).longValue();
+            } else if (result instanceof int[]) {
+                rows = 0;
+                for (int count : (int[]) result) rows += Math.max(0, count);
+            } else if (result instanceof Boolean && !(Boolean) result) {
+                rows = this.statement.getUpdateCount();
+            }
+            SlowQueryLog.this.finish(sql, parameters, rows, start);
+            return result;
+        }
+
+    }
+
+    /**
+     * Counts the rows of a query and finishes the query once they have been read or the result set is closed.
+     *
+     * @since 1
+     */
+    private class ResultSetHandler implements InvocationHandler {
+
+        private final ResultSet resultSet;
+        private final String sql;
+        private final Map<Integer, Object[]> parameters;
+        private final long startNanos;
+        private long rows;
+        private boolean finished;
+
+        private ResultSetHandler(ResultSet resultSet, String sql, Map<Integer, Object[]> parameters, long startNanos) {
+            this.resultSet = resultSet;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = SlowQueryLog.invoke(this.resultSet, method, args);
+            if (method.getName().equals("next")) {
+                if ((Boolean) result) {
+                    this.rows++;
+                } else {
+                    this.finish();
+                }
+            } else if (method.getName().equals("close")) {
+                this.finish();
+            }
+
+            return result;
+        }
+
+        private void finish() {
+            if (this.finished) return;
+            this.finished = true;
+            SlowQueryLog.this.finish(this.sql, this.parameters, this.rows, this.startNanos);
+        }
+
+    }
+
+}
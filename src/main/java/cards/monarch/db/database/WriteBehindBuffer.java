@@ -0,0 +1,494 @@
+package cards.monarch.db.database;
+
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes new and changed guild configs and discord users to the database in the background. A write goes into the
+ * cache straight away and is queued by its key, so repeated writes of the same guild or user before a flush are
+ * coalesced into the latest one. The queue is flushed every flush interval (or once enough rows are pending) with
+ * multi-row upserts, guild configs before discord users. The default config of a newly seen guild is only inserted,
+ * so that it never overwrites the settings of a guild that is missing from the cache.
+ * <p>
+ * Rows that could not be written as the database was unreachable are queued again and retried on the next flush,
+ * unless a newer write of the same key was queued in the meantime. A row that the database rejects is dropped on its
+ * own without holding up the rest of its batch. Only the leader writes, the other instances update their caches and
+ * leave the database to the leader which receives the same events. Code that inserts rows referencing a queued guild
+ * or user should {@link #flush()} first.
+ *
+ * @author danny
+ * @version 1
+ */
+public class WriteBehindBuffer {
+
+    /**
+     * Default time that writes are coalesced for.
+     *
+     * @since 1
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 500L;
+    /**
+     * Default amount of pending rows that triggers an early flush.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_MAX_PENDING = 500;
+    /**
+     * Maximum amount of rows in one statement, this keeps the parameters well under the driver's limit.
+     *
+     * @since 1
+     */
+    private static final int MAX_BATCH_ROWS = 1000;
+    /**
+     * Maximum time to wait for the last flush when stopping.
+     *
+     * @since 1
+     */
+    private static final long STOP_TIMEOUT_MS = 10L * 1000L;
+    private static final Counter GUILD_CONFIG_WRITES = Metrics.counter("userbot_guild_config_writes_total",
+            "Guild configs written to the database.");
+    private static final Counter NAME_CACHE_WRITES = Metrics.counter("userbot_name_cache_writes_total",
+            "Name cache updates written to the database.");
+    private static final Counter RETRIES = Metrics.counter("userbot_write_behind_retries_total",
+            "Flushes that left rows to be retried.");
+    private static final Counter DROPPED = Metrics.counter("userbot_write_behind_dropped_total",
+            "Rows that the database rejected.");
+
+    private final DatabaseLogin databaseLogin;
+    private final AuditLogWriter auditLog;
+    private final Map<Long, GuildConfig> guildConfigCache;
+    private final Map<Long, DiscordUser> discordUserCache;
+    private final ScheduledExecutorService executor;
+    private volatile int maxPending;
+    private volatile LeaderElection leaderElection;
+    /**
+     * Guards the pending and in flight rows.
+     *
+     * @since 1
+     */
+    private final Object lock;
+    /**
+     * Held for the whole of a flush so that flushes from other threads do not overlap.
+     *
+     * @since 1
+     */
+    private final Object flushLock;
+    private Map<Long, GuildConfig> pendingGuildConfigs;
+    /**
+     * Guild configs that are only inserted when the guild has no row yet.
+     *
+     * @since 1
+     */
+    private Map<Long, GuildConfig> pendingNewGuildConfigs;
+    private Map<Long, DiscordUser> pendingDiscordUsers;
+    /**
+     * The rows of the flush that is being written, these are applied over a cache refresh like the pending rows.
+     *
+     * @since 1
+     */
+    private Map<Long, GuildConfig> inFlightGuildConfigs;
+    private Map<Long, GuildConfig> inFlightNewGuildConfigs;
+    private Map<Long, DiscordUser> inFlightDiscordUsers;
+    /**
+     * Whether an early flush has been queued since the last flush.
+     *
+     * @since 1
+     */
+    private boolean flushQueued;
+
+    /**
+     * Creates the buffer, call {@link #start(long)} to start flushing.
+     *
+     * @param databaseLogin    login details for the database
+     * @param auditLog         the audit log to record guild config changes in
+     * @param guildConfigCache the guild config cache that writes are applied to
+     * @param discordUserCache the discord user cache that writes are applied to
+     * @since 1
+     */
+    public WriteBehindBuffer(DatabaseLogin databaseLogin, AuditLogWriter auditLog,
+                             Map<Long, GuildConfig> guildConfigCache, Map<Long, DiscordUser> discordUserCache) {
+        this.databaseLogin = databaseLogin;
+        this.auditLog = auditLog;
+        this.guildConfigCache = guildConfigCache;
+        this.discordUserCache = discordUserCache;
+        this.maxPending = DEFAULT_MAX_PENDING;
+        this.lock = new Object();
+        this.flushLock = new Object();
+        this.pendingGuildConfigs = new LinkedHashMap<>();
+        this.pendingNewGuildConfigs = new LinkedHashMap<>();
+        this.pendingDiscordUsers = new LinkedHashMap<>();
+        this.inFlightGuildConfigs = Collections.emptyMap();
+        this.inFlightNewGuildConfigs = Collections.emptyMap();
+        this.inFlightDiscordUsers = Collections.emptyMap();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Write behind thread.");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.gauge("userbot_write_behind_pending", "Rows waiting to be written by the write behind buffer.",
+                this::getPending);
+    }
+
+    /**
+     * Starts flushing in the background.
+     *
+     * @param flushIntervalMs the time that writes are coalesced for
+     * @since 1
+     */
+    public void start(long flushIntervalMs) {
+        this.executor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic flushes then writes the pending rows.
+     *
+     * @since 1
+     */
+    public void stop() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+
+        if (!this.flush()) {
+            System.err.printf("[ERROR]: Unable to write %d guild configs and discord users before stopping.\n",
+                    this.getPending());
+        }
+    }
+
+    /**
+     * Sets the amount of pending rows that triggers an early flush.
+     *
+     * @param maxPending the amount of pending rows that triggers an early flush
+     * @since 1
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    public void setLeaderElection(LeaderElection leaderElection) {
+        this.leaderElection = leaderElection;
+    }
+
+    /**
+     * Counts the rows waiting to be written, coalesced writes count once.
+     *
+     * @return the amount of pending rows
+     * @since 1
+     */
+    public int getPending() {
+        synchronized (this.lock) {
+            return this.pendingGuildConfigs.size() + this.pendingNewGuildConfigs.size()
+                    + this.pendingDiscordUsers.size();
+        }
+    }
+
+    /**
+     * Puts a guild config into the cache and queues it to be inserted or, to replace the stored one.
+     *
+     * @param guildConfig the guild config to write
+     * @since 1
+     */
+    public void putGuildConfig(GuildConfig guildConfig) {
+        synchronized (this.lock) {
+            this.guildConfigCache.put(guildConfig.getGuildID(), guildConfig);
+            this.pendingGuildConfigs.put(guildConfig.getGuildID(), guildConfig);
+            // The upsert inserts it as well
+            this.pendingNewGuildConfigs.remove(guildConfig.getGuildID());
+            this.changed();
+        }
+    }
+
+    /**
+     * Queues the default config of a guild the cache has no record of, it is only inserted if the guild has no row so
+     * that settings that were missed by the cache are kept. The cache only takes it if it has no config for the guild.
+     *
+     * @param guildConfig the default guild config
+     * @since 1
+     */
+    public void addGuildConfig(GuildConfig guildConfig) {
+        synchronized (this.lock) {
+            // A queued change is written with an upsert which already covers this
+            if (this.pendingGuildConfigs.containsKey(guildConfig.getGuildID())) return;
+            this.guildConfigCache.putIfAbsent(guildConfig.getGuildID(), guildConfig);
+            this.pendingNewGuildConfigs.put(guildConfig.getGuildID(), guildConfig);
+            this.changed();
+        }
+    }
+
+    /**
+     * Puts a discord user into the cache and queues it to be inserted or, to have its name cache updated.
+     *
+     * @param discordID the discord id of the user
+     * @param tag       the tag of the user
+     * @since 1
+     */
+    public void putDiscordUser(long discordID, String tag) {
+        DiscordUser discordUser = new DiscordUser(discordID, tag);
+        synchronized (this.lock) {
+            this.discordUserCache.put(discordID, discordUser);
+            this.pendingDiscordUsers.put(discordID, discordUser);
+            this.changed();
+        }
+    }
+
+    /**
+     * Puts the pending and in flight rows back into the caches, a cache refresh that read the database before they
+     * were written would otherwise undo them.
+     *
+     * @since 1
+     */
+    public void applyPending() {
+        synchronized (this.lock) {
+            this.guildConfigCache.putAll(this.inFlightGuildConfigs);
+            this.guildConfigCache.putAll(this.pendingGuildConfigs);
+            // Defaults never replace a config that was read from the database
+            for (GuildConfig guildConfig : this.inFlightNewGuildConfigs.values()) {
+                this.guildConfigCache.putIfAbsent(guildConfig.getGuildID(), guildConfig);
+            }
+            for (GuildConfig guildConfig : this.pendingNewGuildConfigs.values()) {
+                this.guildConfigCache.putIfAbsent(guildConfig.getGuildID(), guildConfig);
+            }
+            this.discordUserCache.putAll(this.inFlightDiscordUsers);
+            this.discordUserCache.putAll(this.pendingDiscordUsers);
+        }
+    }
+
+    /**
+     * Flushes early if there are too many pending rows. Must hold the lock.
+     *
+     * @since 1
+     */
+    private void changed() {
+        if (this.getPending() >= this.maxPending && !this.flushQueued && !this.executor.isShutdown()) {
+            this.flushQueued = true;
+            this.executor.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes all pending rows using one connection. Rows that could not be written are queued again.
+     *
+     * @return whether nothing was left to be retried
+     * @since 1
+     */
+    public boolean flush() {
+        synchronized (this.flushLock) {
+            Map<Long, GuildConfig> guildConfigs;
+            Map<Long, GuildConfig> newGuildConfigs;
+            Map<Long, DiscordUser> discordUsers;
+            synchronized (this.lock) {
+                this.flushQueued = false;
+                if (this.getPending() == 0) return true;
+                guildConfigs = this.pendingGuildConfigs;
+                newGuildConfigs = this.pendingNewGuildConfigs;
+                discordUsers = this.pendingDiscordUsers;
+                this.pendingGuildConfigs = new LinkedHashMap<>();
+                this.pendingNewGuildConfigs = new LinkedHashMap<>();
+                this.pendingDiscordUsers = new LinkedHashMap<>();
+                // Copied as the written rows are removed from the batch
+                this.inFlightGuildConfigs = new LinkedHashMap<>(guildConfigs);
+                this.inFlightNewGuildConfigs = new LinkedHashMap<>(newGuildConfigs);
+                this.inFlightDiscordUsers = new LinkedHashMap<>(discordUsers);
+            }
+
+            // The leader receives the same events and writes them
+            LeaderElection leaderElection = this.leaderElection;
+            if (leaderElection == null || leaderElection.isLeader()) {
+                try {
+                    this.databaseLogin.connectAndExec(connection -> {
+                        // Guild configs first, accounts reference them
+                        this.writeAll(connection, newGuildConfigs, this::insertGuildConfigs, "GuildSettings");
+                        this.writeAll(connection, guildConfigs, this::upsertGuildConfigs, "GuildSettings");
+                        this.writeAll(connection, discordUsers, this::upsertDiscordUsers, "DiscordUsers");
+                    });
+                } catch (SQLException | ClassNotFoundException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                guildConfigs.clear();
+                newGuildConfigs.clear();
+                discordUsers.clear();
+            }
+
+            // Queue what is left again, unless it has been written over since
+            synchronized (this.lock) {
+                this.inFlightGuildConfigs = Collections.emptyMap();
+                this.inFlightNewGuildConfigs = Collections.emptyMap();
+                this.inFlightDiscordUsers = Collections.emptyMap();
+                if (guildConfigs.isEmpty() && newGuildConfigs.isEmpty() && discordUsers.isEmpty()) return true;
+
+                RETRIES.inc();
+                for (Map.Entry<Long, GuildConfig> guildConfig : guildConfigs.entrySet()) {
+                    this.pendingGuildConfigs.putIfAbsent(guildConfig.getKey(), guildConfig.getValue());
+                }
+                for (Map.Entry<Long, GuildConfig> guildConfig : newGuildConfigs.entrySet()) {
+                    if (this.pendingGuildConfigs.containsKey(guildConfig.getKey())) continue;
+                    this.pendingNewGuildConfigs.putIfAbsent(guildConfig.getKey(), guildConfig.getValue());
+                }
+                for (Map.Entry<Long, DiscordUser> discordUser : discordUsers.entrySet()) {
+                    this.pendingDiscordUsers.putIfAbsent(discordUser.getKey(), discordUser.getValue());
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Writes rows in batches of at most {@link #MAX_BATCH_ROWS}, removing each row from the map once it is written or,
+     * rejected by the database.
+     *
+     * @param connection the database connection
+     * @param rows       maps the keys of the rows to write to the rows, the rows left are to be retried
+     * @param writer     writes a batch with one statement
+     * @param table      the name of the table, for the log
+     * @param <T>        the type of the rows
+     * @throws SQLException thrown on an sql error other than a rejected row
+     * @since 1
+     */
+    private <T> void writeAll(Connection connection, Map<Long, T> rows, BatchWriter<T> writer, String table)
+            throws SQLException {
+        List<Long> keys = new ArrayList<>(rows.keySet());
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_ROWS) {
+            this.writeBatch(connection, rows, keys.subList(start, Math.min(keys.size(), start + MAX_BATCH_ROWS)),
+                    writer, table);
+        }
+    }
+
+    private <T> void writeBatch(Connection connection, Map<Long, T> rows, List<Long> keys, BatchWriter<T> writer,
+                                String table) throws SQLException {
+        List<T> batch = new ArrayList<>(keys.size());
+        for (Long key : keys) {
+            batch.add(rows.get(key));
+        }
+
+        try {
+            writer.write(connection, batch);
+        } catch (SQLException e) {
+            if (!DatabaseLogin.isRejectedRow(e)) throw e;
+            if (keys.size() > 1) {
+                // Find the rejected rows so that the rest of the batch is written
+                for (Long key : keys) {
+                    this.writeBatch(connection, rows, Collections.singletonList(key), writer, table);
+                }
+                return;
+            }
+            DROPPED.inc();
+            System.err.printf("[ERROR]: The %s row %d was rejected by the database and dropped: %s\n", table,
+                    keys.get(0), e.getMessage());
+        }
+        rows.keySet().removeAll(keys);
+    }
+
+    private void upsertGuildConfigs(Connection connection, List<GuildConfig> batch) throws SQLException {
+        this.writeGuildConfigs(connection, batch, "do update set AllowedAccess = excluded.AllowedAccess, " +
+                "DatabaseStatusCategoryID = excluded.DatabaseStatusCategoryID, " +
+                "UserChangeLogChannelID = excluded.UserChangeLogChannelID, " +
+                "ActiveUserChannelID = excluded.ActiveUserChannelID, " +
+                "AdministratorRoleID = excluded.AdministratorRoleID, AccountQuota = excluded.AccountQuota");
+    }
+
+    private void insertGuildConfigs(Connection connection, List<GuildConfig> batch) throws SQLException {
+        // Only the inserted rows are returned
+        this.writeGuildConfigs(connection, batch, "do nothing");
+    }
+
+    /**
+     * Inserts a batch of guild configs and records an audit event for each row that was inserted or updated.
+     *
+     * @param connection the database connection
+     * @param batch      the guild configs to write
+     * @param onConflict the action for a guild that already has a row
+     * @throws SQLException thrown on an sql error
+     * @since 1
+     */
+    private void writeGuildConfigs(Connection connection, List<GuildConfig> batch, String onConflict)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder("insert into GuildSettings (GuildID, AllowedAccess, " +
+                "DatabaseStatusCategoryID, UserChangeLogChannelID, ActiveUserChannelID, AdministratorRoleID, AccountQuota) " +
+                "values ");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?)");
+        }
+        // xmax is only zero for a row that was inserted rather than updated
+        sql.append(" on conflict (GuildID) ").append(onConflict).append(" returning GuildID, xmax = 0 as Inserted;");
+
+        Map<Long, GuildConfig> written = new LinkedHashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int i = 1;
+            for (GuildConfig guildConfig : batch) {
+                statement.setLong(i++, guildConfig.getGuildID());
+                statement.setBoolean(i++, guildConfig.isAllowedAccess());
+                statement.setLong(i++, guildConfig.getDatabaseStatusCategoryID());
+                statement.setLong(i++, guildConfig.getUserChangeLogChannelID());
+                statement.setLong(i++, guildConfig.getActiveUserChannelID());
+                statement.setLong(i++, guildConfig.getAdministratorRoleID());
+                if (guildConfig.getAccountQuota() == AccountCounters.NO_QUOTA) {
+                    statement.setNull(i++, Types.INTEGER);
+                } else {
+                    statement.setInt(i++, guildConfig.getAccountQuota());
+                }
+                written.put(guildConfig.getGuildID(), guildConfig);
+            }
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    GuildConfig guildConfig = written.get(result.getLong("GuildID"));
+                    if (result.getBoolean("Inserted")) {
+                        this.auditLog.record(new AuditEvent(AuditEvent.Type.GUILD_CONFIG_CREATED,
+                                guildConfig.getGuildID(), -1, null, "created guild config"));
+                    } else {
+                        this.auditLog.record(new AuditEvent(AuditEvent.Type.GUILD_CONFIG_UPDATED,
+                                guildConfig.getGuildID(), -1, null, guildConfig.describe()));
+                    }
+                }
+            }
+        }
+        GUILD_CONFIG_WRITES.inc(batch.size());
+    }
+
+    private void upsertDiscordUsers(Connection connection, List<DiscordUser> batch) throws SQLException {
+        StringBuilder sql = new StringBuilder("insert into DiscordUsers (DiscordID, NameCache) values ");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        sql.append(" on conflict (DiscordID) do update set NameCache = excluded.NameCache;");
+
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int i = 1;
+            for (DiscordUser discordUser : batch) {
+                statement.setLong(i++, discordUser.getDiscordID());
+                statement.setString(i++, discordUser.getNameCache());
+            }
+            statement.executeUpdate();
+        }
+        NAME_CACHE_WRITES.inc(batch.size());
+    }
+
+    /**
+     * Writes a batch of rows with one statement.
+     *
+     * @param <T> the type of the rows
+     * @since 1
+     */
+    private interface BatchWriter<T> {
+        void write(Connection connection, List<T> batch) throws SQLException;
+    }
+
+}
@@ -0,0 +1,43 @@
+package cards.monarch.db.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free counter that only goes up.
+ *
+ * @author danny
+ * @version 1
+ * @see Metrics#counter(String, String)
+ */
+public class Counter extends Metric {
+
+    private final LongAdder value;
+
+    Counter(String name, String help, String labels) {
+        super(name, help, labels);
+        this.value = new LongAdder();
+    }
+
+    public void inc() {
+        this.value.increment();
+    }
+
+    public void inc(long amount) {
+        this.value.add(amount);
+    }
+
+    public long get() {
+        return this.value.sum();
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        this.writeSample(out, this.getName(), "", Long.toString(this.get()));
+    }
+
+}
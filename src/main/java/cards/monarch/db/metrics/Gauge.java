@@ -0,0 +1,31 @@
+package cards.monarch.db.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value that is read when the metrics are scraped, such as a cache size.
+ *
+ * @author danny
+ * @version 1
+ * @see Metrics#gauge(String, String, LongSupplier)
+ */
+class Gauge extends Metric {
+
+    private final LongSupplier supplier;
+
+    Gauge(String name, String help, String labels, LongSupplier supplier) {
+        super(name, help, labels);
+        this.supplier = supplier;
+    }
+
+    @Override
+    String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        this.writeSample(out, this.getName(), "", Long.toString(this.supplier.getAsLong()));
+    }
+
+}
@@ -0,0 +1,129 @@
+package cards.monarch.db.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram with log-linear buckets (in the style of HdrHistogram). Each power of two of
+ * nanoseconds is split into {@link #SUB_BUCKETS} buckets, so recording is a few bit operations and one atomic add.
+ * The buckets are exposed at power of two boundaries between roughly a microsecond and a minute.
+ *
+ * @author danny
+ * @version 1
+ * @see Metrics#histogram(String, String)
+ */
+public class Histogram extends Metric {
+
+    /**
+     * log2 of the amount of buckets per power of two.
+     *
+     * @since 1
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+    /**
+     * The amount of buckets per power of two.
+     *
+     * @since 1
+     */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * The amount of buckets needed to cover every positive long.
+     *
+     * @since 1
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    /**
+     * The smallest and largest exposed bucket boundaries as powers of two of nanoseconds (about a microsecond and 69 seconds).
+     *
+     * @since 1
+     */
+    private static final int MIN_EXPOSED_POWER = 10;
+    private static final int MAX_EXPOSED_POWER = 36;
+    private static final double NANOS_PER_SECOND = 1_000_000_000D;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sumNanos;
+
+    Histogram(String name, String help, String labels) {
+        super(name, help, labels);
+        this.buckets = new AtomicLongArray(BUCKET_COUNT);
+        this.count = new LongAdder();
+        this.sumNanos = new LongAdder();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds, negative durations are recorded as 0
+     * @since 1
+     */
+    public void recordNanos(long nanos) {
+        long value = Math.max(0L, nanos);
+        this.buckets.incrementAndGet(bucketIndex(value));
+        this.count.increment();
+        this.sumNanos.add(value);
+    }
+
+    /**
+     * Records the time since a start time.
+     *
+     * @param startNanos the start time from {@link System#nanoTime()}
+     * @since 1
+     */
+    public void recordSince(long startNanos) {
+        this.recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Gets the bucket of a value. Values below {@link #SUB_BUCKETS} get their own bucket, larger values are bucketed
+     * by their highest set bit and the {@link #SUB_BUCKET_BITS} bits below it.
+     *
+     * @param value the value to bucket (not negative)
+     * @return the index of the bucket
+     * @since 1
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        String bucketName = this.getName() + "_bucket";
+        long cumulative = 0;
+        int index = 0;
+        for (int power = MIN_EXPOSED_POWER; power <= MAX_EXPOSED_POWER; power++) {
+            // All values below 2^power are in the buckets before the first bucket of the power
+            int end = bucketIndex(1L << power);
+            for (; index < end; index++) {
+                cumulative += this.buckets.get(index);
+            }
+
+            String le = Double.toString((1L << power) / NANOS_PER_SECOND);
+            this.writeSample(out, bucketName, "le=\"" + le + "\"", Long.toString(cumulative));
+        }
+
+        // Count from the buckets rather than the counter so that the +Inf bucket is never below the others
+        for (; index < BUCKET_COUNT; index++) {
+            cumulative += this.buckets.get(index);
+        }
+        String count = Long.toString(cumulative);
+        this.writeSample(out, bucketName, "le=\"+Inf\"", count);
+        this.writeSample(out, this.getName() + "_sum", "", Double.toString(this.sumNanos.sum() / NANOS_PER_SECOND));
+        this.writeSample(out, this.getName() + "_count", "", count);
+    }
+
+}
@@ -0,0 +1,74 @@
+package cards.monarch.db.metrics;
+
+/**
+ * A metric series that can be written in the Prometheus text format.
+ *
+ * @author danny
+ * @version 1
+ * @see Metrics
+ */
+abstract class Metric {
+
+    private final String name;
+    private final String help;
+    /**
+     * The labels of the series in the Prometheus format (i.e: table="GuildSettings"), empty for no labels.
+     *
+     * @since 1
+     */
+    private final String labels;
+
+    Metric(String name, String help, String labels) {
+        this.name = name;
+        this.help = help;
+        this.labels = labels;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getHelp() {
+        return help;
+    }
+
+    String getLabels() {
+        return labels;
+    }
+
+    /**
+     * Get the Prometheus type of the metric.
+     *
+     * @return the type of the metric (i.e: counter)
+     * @since 1
+     */
+    abstract String getType();
+
+    /**
+     * Writes the samples of the series, the help and type lines are written by the caller.
+     *
+     * @param out the output to write the samples to
+     * @since 1
+     */
+    abstract void writeSamples(StringBuilder out);
+
+    /**
+     * Writes one sample line.
+     *
+     * @param out         the output to write the sample to
+     * @param name        the name of the sample
+     * @param extraLabels labels to add to the labels of the series, empty for none
+     * @param value       the value of the sample
+     * @since 1
+     */
+    void writeSample(StringBuilder out, String name, String extraLabels, String value) {
+        out.append(name);
+        if (!this.labels.isEmpty() || !extraLabels.isEmpty()) {
+            out.append('{').append(this.labels);
+            if (!this.labels.isEmpty() && !extraLabels.isEmpty()) out.append(',');
+            out.append(extraLabels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+}
@@ -0,0 +1,114 @@
+package cards.monarch.db.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The registry of all metrics of the bot. Metrics are registered on first use and can then be kept in a field, so
+ * recording on a hot path never looks anything up.
+ *
+ * @author danny
+ * @version 1
+ * @see MetricsServer
+ */
+public class Metrics {
+
+    /**
+     * Maps the name and labels of each series to the series.
+     *
+     * @since 1
+     */
+    private static final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * utils class
+     */
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /**
+     * Gets or registers a counter.
+     *
+     * @param name   the name of the counter
+     * @param help   the description of the counter
+     * @param labels the labels of the series in the Prometheus format (i.e: table="GuildSettings"), empty for none
+     * @return the counter
+     * @since 1
+     */
+    public static Counter counter(String name, String help, String labels) {
+        return (Counter) metrics.computeIfAbsent(key(name, labels), key -> new Counter(name, help, labels));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return histogram(name, help, "");
+    }
+
+    /**
+     * Gets or registers a latency histogram.
+     *
+     * @param name   the name of the histogram, this should end in _seconds
+     * @param help   the description of the histogram
+     * @param labels the labels of the series in the Prometheus format, empty for none
+     * @return the histogram
+     * @since 1
+     */
+    public static Histogram histogram(String name, String help, String labels) {
+        return (Histogram) metrics.computeIfAbsent(key(name, labels), key -> new Histogram(name, help, labels));
+    }
+
+    public static void gauge(String name, String help, LongSupplier supplier) {
+        gauge(name, help, "", supplier);
+    }
+
+    /**
+     * Registers a gauge that is read from the supplier on each scrape, replacing any gauge with the same name and
+     * labels.
+     *
+     * @param name     the name of the gauge
+     * @param help     the description of the gauge
+     * @param labels   the labels of the series in the Prometheus format, empty for none
+     * @param supplier supplies the value of the gauge
+     * @since 1
+     */
+    public static void gauge(String name, String help, String labels, LongSupplier supplier) {
+        metrics.put(key(name, labels), new Gauge(name, help, labels, supplier));
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @return the metrics in the Prometheus text format
+     * @since 1
+     */
+    public static String scrape() {
+        List<Metric> sorted = new ArrayList<>(metrics.values());
+        sorted.sort(Comparator.comparing(Metric::getName).thenComparing(Metric::getLabels));
+
+        StringBuilder out = new StringBuilder();
+        String lastName = null;
+        for (Metric metric : sorted) {
+            // Series with the same name share the help and type lines
+            if (!metric.getName().equals(lastName)) {
+                out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+                out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+                lastName = metric.getName();
+            }
+            metric.writeSamples(out);
+        }
+
+        return out.toString();
+    }
+
+    private static String key(String name, String labels) {
+        return name + "{" + labels + "}";
+    }
+
+}
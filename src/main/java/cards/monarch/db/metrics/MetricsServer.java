@@ -0,0 +1,57 @@
+package cards.monarch.db.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the metrics in the Prometheus text format on http://127.0.0.1:&lt;port&gt;/metrics. It is only bound to the
+ * loopback address, so the metrics are not public.
+ *
+ * @author danny
+ * @version 1
+ * @see Metrics
+ */
+public class MetricsServer {
+
+    /**
+     * The default port of the metrics endpoint.
+     *
+     * @since 1
+     */
+    public static final int DEFAULT_PORT = 9464;
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    /**
+     * Binds the metrics endpoint, call {@link #start()} to start serving.
+     *
+     * @param port the port to serve the metrics on
+     * @throws IOException thrown when the port cannot be bound
+     * @since 1
+     */
+    public MetricsServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+    }
+
+}
@@ -0,0 +1,34 @@
+-- The tables as first deployed, existing databases already have them so they are only created when missing.
+CREATE TABLE IF NOT EXISTS GuildSettings (
+    GuildID bigint NOT NULL PRIMARY KEY,
+    AllowedAccess boolean NOT NULL,
+    DatabaseStatusCategoryID bigint,
+    UserChangeLogChannelID bigint,
+    ActiveUserChannelID bigint,
+    AdministratorRoleID bigint
+);
+
+CREATE TABLE IF NOT EXISTS DiscordUsers (
+    DiscordID bigint,
+    NameCache varchar(30)
+);
+
+CREATE TABLE IF NOT EXISTS DatabaseUsers (
+    DatabaseUserID uuid NOT NULL PRIMARY KEY,
+    GuildID bigint NOT NULL references GuildSettings(GuildID),
+    DiscordID bigint NOT NULL,
+    UserName varchar(30) NOT NULL UNIQUE,
+    CreationTime timestamp NOT NULL,
+    DeletionTime timestamp NOT NULL,
+    Active boolean NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS AuditLog (
+    AuditID bigserial NOT NULL PRIMARY KEY,
+    EventTime timestamp NOT NULL,
+    EventType varchar(30) NOT NULL,
+    GuildID bigint NOT NULL,
+    DiscordID bigint NOT NULL,
+    DatabaseUserID uuid,
+    Detail varchar(200)
+);
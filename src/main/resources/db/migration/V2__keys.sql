@@ -0,0 +1,25 @@
+-- DiscordUsers had no primary key, so the name cache was free to hold duplicates. Keep one row per user first.
+DELETE FROM DiscordUsers WHERE DiscordID IS NULL;
+DELETE FROM DiscordUsers a USING DiscordUsers b WHERE a.DiscordID = b.DiscordID AND a.ctid < b.ctid;
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conrelid = 'discordusers'::regclass AND contype = 'p') THEN
+        ALTER TABLE DiscordUsers ALTER COLUMN DiscordID SET NOT NULL;
+        ALTER TABLE DiscordUsers ADD CONSTRAINT DiscordUsers_pkey PRIMARY KEY (DiscordID);
+    END IF;
+END $$;
+
+-- Owners of accounts must be known discord users
+INSERT INTO DiscordUsers (DiscordID)
+SELECT DISTINCT DiscordID FROM DatabaseUsers
+ON CONFLICT (DiscordID) DO NOTHING;
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conrelid = 'databaseusers'::regclass AND contype = 'f'
+            AND confrelid = 'discordusers'::regclass) THEN
+        ALTER TABLE DatabaseUsers ADD CONSTRAINT DatabaseUsers_DiscordID_fkey
+            FOREIGN KEY (DiscordID) REFERENCES DiscordUsers (DiscordID);
+    END IF;
+END $$;
@@ -0,0 +1,9 @@
+-- Active accounts of a guild and of a member of a guild: quotas, status counts and deprovisioning on leave.
+-- Deleted accounts are kept for history and are the bulk of the table, so they are left out of the index.
+CREATE INDEX IF NOT EXISTS DatabaseUsers_Active_GuildID_DiscordID ON DatabaseUsers (GuildID, DiscordID) WHERE Active;
+
+-- All accounts of a user, this is also used when checking the foreign key from DiscordUsers
+CREATE INDEX IF NOT EXISTS DatabaseUsers_DiscordID ON DatabaseUsers (DiscordID);
+
+-- Audit history of a guild, newest first
+CREATE INDEX IF NOT EXISTS AuditLog_GuildID_EventTime ON AuditLog (GuildID, EventTime);
@@ -0,0 +1,17 @@
+-- Deleted accounts are moved here once they are older than the retention window, so that DatabaseUsers only grows
+-- with the live accounts.
+CREATE TABLE IF NOT EXISTS DatabaseUserHistory (
+    DatabaseUserID uuid NOT NULL PRIMARY KEY,
+    GuildID bigint NOT NULL,
+    DiscordID bigint NOT NULL,
+    UserName varchar(30) NOT NULL,
+    CreationTime timestamp NOT NULL,
+    DeletionTime timestamp NOT NULL,
+    Active boolean NOT NULL,
+    ArchivedAt timestamp NOT NULL DEFAULT now()
+);
+
+CREATE INDEX IF NOT EXISTS DatabaseUserHistory_DiscordID ON DatabaseUserHistory (DiscordID);
+
+-- Finds the deleted accounts that are due to be archived
+CREATE INDEX IF NOT EXISTS DatabaseUsers_Inactive_DeletionTime ON DatabaseUsers (DeletionTime) WHERE NOT Active;
@@ -0,0 +1,2 @@
+-- Active accounts have not been deleted, so they are created without a deletion time.
+ALTER TABLE DatabaseUsers ALTER COLUMN DeletionTime DROP NOT NULL;
@@ -0,0 +1,2 @@
+-- The maximum amount of active accounts in a guild, null for no quota.
+ALTER TABLE GuildSettings ADD COLUMN IF NOT EXISTS AccountQuota integer;
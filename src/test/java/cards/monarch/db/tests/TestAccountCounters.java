@@ -0,0 +1,89 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.AccountCounters;
+import cards.monarch.db.database.DatabaseUser;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestAccountCounters {
+
+    private static DatabaseUser account(long guildID, long discordID, boolean active) {
+        return new DatabaseUser(UUID.randomUUID(), discordID, guildID, "account", new Date(), null, active);
+    }
+
+    @Test
+    public void testRefreshCountsActiveAccounts() {
+        AccountCounters counters = new AccountCounters(guildID -> AccountCounters.NO_QUOTA);
+        counters.finishRefresh(Arrays.asList(account(1L, 10L, true), account(1L, 11L, true),
+                account(2L, 10L, true), account(2L, 10L, false)));
+
+        assertEquals(2, counters.getGuildCount(1L));
+        assertEquals(1, counters.getGuildCount(2L));
+        assertEquals(0, counters.getGuildCount(3L));
+        assertEquals(2, counters.getUserCount(10L));
+        assertEquals(1, counters.getUserCount(11L));
+
+        counters.accountDeleted(1L, 11L);
+        assertEquals(1, counters.getGuildCount(1L));
+        assertEquals(0, counters.getUserCount(11L));
+
+        // Accounts that are gone from the database are no longer counted
+        counters.finishRefresh(Arrays.asList(account(2L, 10L, true)));
+        assertEquals(0, counters.getGuildCount(1L));
+        assertEquals(1, counters.getUserCount(10L));
+    }
+
+    @Test
+    public void testChangesDuringRefreshAreKept() {
+        AccountCounters counters = new AccountCounters(guildID -> AccountCounters.NO_QUOTA);
+        counters.finishRefresh(Arrays.asList(account(1L, 10L, true)));
+
+        counters.beginRefresh();
+        assertTrue(counters.tryReserve(1L, 11L));
+        // The refresh read the database before the new account was stored
+        counters.finishRefresh(Arrays.asList(account(1L, 10L, true)));
+        assertEquals(2, counters.getGuildCount(1L));
+        assertEquals(1, counters.getUserCount(11L));
+
+        counters.beginRefresh();
+        counters.cancelRefresh();
+        counters.finishRefresh(Arrays.asList(account(1L, 10L, true), account(1L, 11L, true)));
+        assertEquals(2, counters.getGuildCount(1L));
+    }
+
+    @Test
+    public void testQuotaIsNotOverrun() throws Exception {
+        AccountCounters counters = new AccountCounters(guildID -> guildID == 1L ? 50 : AccountCounters.NO_QUOTA);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> reservations = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            long discordID = i;
+            reservations.add(executor.submit(() -> counters.tryReserve(1L, discordID)));
+        }
+        int reserved = 0;
+        for (Future<Boolean> reservation : reservations) {
+            if (reservation.get()) reserved++;
+        }
+        executor.shutdown();
+
+        assertEquals(50, reserved);
+        assertEquals(50, counters.getGuildCount(1L));
+        assertFalse(counters.tryReserve(1L, 1000L));
+        counters.release(1L, 0L);
+        assertTrue(counters.tryReserve(1L, 1000L));
+        assertTrue(counters.tryReserve(2L, 1000L));
+    }
+
+}
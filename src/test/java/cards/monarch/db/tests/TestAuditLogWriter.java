@@ -0,0 +1,152 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.AuditEvent;
+import cards.monarch.db.database.AuditLogWriter;
+import cards.monarch.db.database.DatabaseExec;
+import cards.monarch.db.database.DatabaseLogin;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestAuditLogWriter {
+
+    /**
+     * A login that keeps the detail of every written event, or fails every call. An insert holding an event with the
+     * detail "bad" is rejected as the database would reject a row.
+     */
+    private static class FakeLogin extends DatabaseLogin {
+
+        private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger inserts = new AtomicInteger();
+        private volatile boolean down;
+
+        private FakeLogin() {
+            super("localhost", 1, "", "user", "pass");
+        }
+
+        @Override
+        public boolean connectAndExec(DatabaseExec databaseExec) throws SQLException {
+            if (this.down) return false;
+            try {
+                databaseExec.exec(this.connection());
+                return true;
+            } catch (SQLException e) {
+                // As the real login, which only returns whether the code ran
+                return false;
+            }
+        }
+
+        private Connection connection() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("prepareStatement")) return this.statement();
+                        return null;
+                    });
+        }
+
+        private PreparedStatement statement() {
+            List<String> details = new ArrayList<>();
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        // The detail is the sixth column of each row
+                        if (method.getName().equals("setString") && (int) args[0] % 6 == 0) {
+                            details.add((String) args[1]);
+                        }
+                        if (method.getName().equals("executeUpdate")) {
+                            if (details.contains("bad")) {
+                                throw new SQLException("null value in column violates not-null constraint", "23502");
+                            }
+                            this.inserts.incrementAndGet();
+                            this.written.addAll(details);
+                            return details.size();
+                        }
+                        return null;
+                    });
+        }
+
+    }
+
+    private static AuditEvent event(String detail) {
+        return new AuditEvent(AuditEvent.Type.USER_CREATED, 1L, 10L, null, detail);
+    }
+
+    @Test
+    public void testFailedBatchKeepsOrder() {
+        FakeLogin login = new FakeLogin();
+        // Only flushed by stop, which can be called again to flush again
+        AuditLogWriter writer = new AuditLogWriter(login);
+        writer.setBatchSize(2);
+
+        login.down = true;
+        for (int i = 1; i <= 3; i++) writer.record(event("e" + i));
+        writer.stop();
+        assertEquals(3, writer.getQueued());
+
+        writer.record(event("e4"));
+        writer.record(event("e5"));
+        login.down = false;
+        writer.stop();
+        assertEquals(0, writer.getQueued());
+        assertEquals(Arrays.asList("e1", "e2", "e3", "e4", "e5"), login.written);
+    }
+
+    @Test
+    public void testFullQueueDropsOldest() {
+        FakeLogin login = new FakeLogin();
+        AuditLogWriter writer = new AuditLogWriter(login);
+        writer.setBatchSize(2);
+        writer.setMaxQueued(3);
+
+        login.down = true;
+        for (int i = 1; i <= 5; i++) writer.record(event("e" + i));
+        assertEquals(3, writer.getQueued());
+        writer.stop();
+        assertEquals(3, writer.getQueued());
+
+        login.down = false;
+        writer.stop();
+        assertEquals(Arrays.asList("e3", "e4", "e5"), login.written);
+    }
+
+    @Test
+    public void testRejectedEventIsDropped() {
+        FakeLogin login = new FakeLogin();
+        AuditLogWriter writer = new AuditLogWriter(login);
+        writer.setBatchSize(10);
+
+        writer.record(event("e1"));
+        writer.record(event("bad"));
+        writer.record(event("e3"));
+        writer.stop();
+        assertEquals(0, writer.getQueued());
+        assertEquals(Arrays.asList("e1", "e3"), login.written);
+
+        // The writer is not held up by the rejected event
+        writer.record(event("e4"));
+        writer.stop();
+        assertEquals(Arrays.asList("e1", "e3", "e4"), login.written);
+    }
+
+    @Test
+    public void testBatchSizeCapped() {
+        FakeLogin login = new FakeLogin();
+        AuditLogWriter writer = new AuditLogWriter(login);
+        writer.setBatchSize(Integer.MAX_VALUE);
+
+        for (int i = 0; i < AuditLogWriter.MAX_BATCH_SIZE + 1; i++) writer.record(event("e" + i));
+        writer.stop();
+        assertEquals(AuditLogWriter.MAX_BATCH_SIZE + 1, login.written.size());
+        assertEquals(2, login.inserts.get());
+    }
+
+}
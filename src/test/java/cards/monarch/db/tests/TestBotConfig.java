@@ -0,0 +1,125 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.AuditFeed;
+import cards.monarch.db.BotConfig;
+import cards.monarch.db.BotManager;
+import cards.monarch.db.MembershipTracker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestBotConfig {
+
+    private static final Path CONF = Paths.get("test-bot.conf");
+
+    private static void write(String contents) throws IOException {
+        Files.write(CONF, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    void deleteConf() throws IOException {
+        Files.deleteIfExists(CONF);
+    }
+
+    @Test
+    public void testDefaults() throws IOException {
+        BotConfig config = new BotConfig(CONF);
+        assertEquals(BotManager.UPDATE_DATABASE_CACHE_LIFE_MS, config.getCacheRefreshIntervalMs());
+        assertEquals("127.0.0.1", config.getDatabaseHost());
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        write("token=abc\ncache-refresh-interval-ms=30000\ndatabase-max-idle-connections = 8\n");
+        BotConfig config = new BotConfig(CONF);
+        assertEquals(30000L, config.getCacheRefreshIntervalMs());
+        assertEquals(8, config.getMaxIdleConnections());
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        write("database-fetch-size=lots\n");
+        assertThrows(IllegalArgumentException.class, () -> new BotConfig(CONF));
+        write("slow-query-explain-sample-rate=2\n");
+        assertThrows(IllegalArgumentException.class, () -> new BotConfig(CONF));
+    }
+
+    @Test
+    public void testFlushIntervals() throws IOException {
+        BotConfig config = new BotConfig(CONF);
+        assertEquals(AuditFeed.DEFAULT_FLUSH_INTERVAL_MS, config.getAuditFeedFlushIntervalMs());
+        assertEquals(MembershipTracker.DEFAULT_FLUSH_INTERVAL_MS, config.getMembershipFlushIntervalMs());
+
+        write("audit-feed-flush-interval-ms=10000\nmembership-flush-interval-ms=250\n");
+        config = new BotConfig(CONF);
+        assertEquals(10000L, config.getAuditFeedFlushIntervalMs());
+        assertEquals(250L, config.getMembershipFlushIntervalMs());
+
+        write("membership-flush-interval-ms=0\n");
+        assertThrows(IllegalArgumentException.class, () -> new BotConfig(CONF));
+    }
+
+    @Test
+    public void testProvisioningTargets() throws IOException {
+        write("provisioning-targets=analytics=10.0.0.5:5432/monarchdb, replica_2=db2.local:6446/monarchdb\n");
+        List<BotConfig.DatabaseEndpoint> targets = new BotConfig(CONF).getProvisioningTargets();
+        assertEquals(2, targets.size());
+        assertEquals("analytics", targets.get(0).getName());
+        assertEquals("10.0.0.5", targets.get(0).getHost());
+        assertEquals(5432, targets.get(0).getPort());
+        assertEquals("db2.local", targets.get(1).getHost());
+
+        write("provisioning-targets=analytics=10.0.0.5/monarchdb\n");
+        assertThrows(IllegalArgumentException.class, () -> new BotConfig(CONF));
+        write("provisioning-targets=primary=10.0.0.5:5432/monarchdb\n");
+        assertThrows(IllegalArgumentException.class, () -> new BotConfig(CONF));
+        write("provisioning-targets=a=h:1/db,a=h:2/db\n");
+        assertThrows(IllegalArgumentException.class, () -> new BotConfig(CONF));
+    }
+
+    @Test
+    public void testDatabaseReplicas() throws IOException {
+        write("database-replicas=primary=10.0.0.6:5432/monarchdb,standby=10.0.0.7:5432/monarchdb\n" +
+                "replica-max-lag-ms=2000\n");
+        BotConfig config = new BotConfig(CONF);
+        assertEquals(2, config.getDatabaseReplicas().size());
+        assertEquals("standby", config.getDatabaseReplicas().get(1).getName());
+        assertEquals(2000L, config.getReplicaMaxLagMs());
+        assertEquals(0, config.getProvisioningTargets().size());
+
+        write("replica-max-lag-ms=600000\n");
+        assertThrows(IllegalArgumentException.class, () -> new BotConfig(CONF));
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        write("cache-refresh-interval-ms=20000\n");
+        BotConfig config = new BotConfig(CONF);
+        AtomicLong applied = new AtomicLong();
+        config.addListener(c -> applied.set(c.getCacheRefreshIntervalMs()));
+        assertEquals(20000L, applied.get());
+
+        write("cache-refresh-interval-ms=40000\n");
+        assertTrue(config.reload());
+        assertEquals(40000L, applied.get());
+
+        // A bad edit keeps the previous settings
+        write("cache-refresh-interval-ms=-1\n");
+        assertFalse(config.reload());
+        assertEquals(40000L, config.getCacheRefreshIntervalMs());
+        assertEquals(40000L, applied.get());
+    }
+
+}
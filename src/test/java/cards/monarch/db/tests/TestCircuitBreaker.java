@@ -0,0 +1,74 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.CircuitBreaker;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestCircuitBreaker {
+
+    private static void awaitState(CircuitBreaker breaker, CircuitBreaker.State state) throws InterruptedException {
+        for (int i = 0; i < 200 && breaker.getState() != state; i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(state, breaker.getState());
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker("test", () -> false, 60000L, 60000L);
+        // A failure now and then does not open it
+        for (int i = 0; i < 30; i++) {
+            breaker.recordSuccess();
+            breaker.recordSuccess();
+            assertFalse(breaker.recordFailure());
+        }
+        assertTrue(breaker.allowRequest());
+        breaker.shutdown();
+
+        breaker = new CircuitBreaker("test", () -> false, 60000L, 60000L);
+        for (int i = 0; i < 4; i++) {
+            assertFalse(breaker.recordFailure());
+        }
+        assertTrue(breaker.recordFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        // Calls that were already running do not close it
+        breaker.recordSuccess();
+        assertFalse(breaker.allowRequest());
+        breaker.shutdown();
+    }
+
+    @Test
+    public void testProbeClosesIt() throws InterruptedException {
+        AtomicBoolean reachable = new AtomicBoolean(false);
+        AtomicInteger probes = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("test", () -> {
+            probes.incrementAndGet();
+            return reachable.get();
+        }, 10L, 20L);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure();
+        }
+        assertFalse(breaker.allowRequest());
+
+        // Failed probes keep it open
+        while (probes.get() < 3) {
+            Thread.sleep(10L);
+        }
+        assertFalse(breaker.allowRequest());
+
+        reachable.set(true);
+        awaitState(breaker, CircuitBreaker.State.CLOSED);
+        assertTrue(breaker.allowRequest());
+        // The outage is forgotten, so it takes a full run of failures to open again
+        assertFalse(breaker.recordFailure());
+        breaker.shutdown();
+    }
+
+}
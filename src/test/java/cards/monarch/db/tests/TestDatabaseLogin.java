@@ -1,6 +1,7 @@
 package cards.monarch.db.tests;
 
 import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.metrics.Metrics;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -9,8 +10,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 public class TestDatabaseLogin {
 
@@ -29,6 +33,55 @@ public class TestDatabaseLogin {
         assertTrue(dbl.getPassword().equals("pass"));
     }
 
+    @Test
+    public void testClosed() throws Exception {
+        DatabaseLogin dbl = new DatabaseLogin("", 0, "", "user", "pass");
+        dbl.close();
+        assertFalse(dbl.connectAndExec(connection -> fail("A closed login handed out a connection.")));
+        assertEquals(0, dbl.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testFailsFastWhenUnreachable() throws Exception {
+        // Nothing listens on port 1, so every connection is refused
+        DatabaseLogin dbl = new DatabaseLogin("127.0.0.1", 1, "db", "user", "pass");
+        while (dbl.isAvailable()) {
+            assertFalse(dbl.connectAndExec(connection -> fail("An unreachable database handed out a connection.")));
+        }
+        assertFalse(dbl.connectAndExec(connection -> fail("An open circuit breaker let a call through.")));
+        dbl.close();
+    }
+
+    @Test
+    public void testIsWrite() {
+        assertFalse(DatabaseLogin.isWrite("select pg_current_wal_lsn()::text;"));
+        assertFalse(DatabaseLogin.isWrite("  SELECT * from GuildSettings;"));
+        assertFalse(DatabaseLogin.isWrite("show server_version;"));
+        assertTrue(DatabaseLogin.isWrite("insert into DiscordUsers (DiscordID, NameCache) values (?, ?);"));
+        assertTrue(DatabaseLogin.isWrite("update DatabaseUsers set Deleted = true where DatabaseUserID = ?;"));
+        assertTrue(DatabaseLogin.isWrite("with deleted as (delete from AuditLog returning *) select count(*) from deleted;"));
+    }
+
+    @Test
+    public void testIdleGaugePerDatabase() {
+        new DatabaseLogin("primary.local", 5432, "monarchdb", "user", "pass");
+        new DatabaseLogin("analytics.local", 5432, "monarchdb", "user", "pass");
+        String scrape = Metrics.scrape();
+        assertTrue(scrape.contains("userbot_db_idle_connections{endpoint=\"primary.local:5432/monarchdb\"} 0\n"));
+        assertTrue(scrape.contains("userbot_db_idle_connections{endpoint=\"analytics.local:5432/monarchdb\"} 0\n"));
+    }
+
+    @Test
+    public void testParseLsn() {
+        assertEquals(0L, DatabaseLogin.parseLsn("0/0"));
+        assertEquals(0x16B374D848L, DatabaseLogin.parseLsn("16/B374D848"));
+        // Positions are unsigned
+        assertEquals(-1L, DatabaseLogin.parseLsn("FFFFFFFF/FFFFFFFF"));
+        assertTrue(Long.compareUnsigned(DatabaseLogin.parseLsn("80000000/0"), DatabaseLogin.parseLsn("1/0")) > 0);
+        assertThrows(NumberFormatException.class, () -> DatabaseLogin.parseLsn("16B374D848"));
+        assertThrows(NumberFormatException.class, () -> DatabaseLogin.parseLsn("16/"));
+    }
+
     @AfterAll
     static void testFileNotFound() {
         File f = new File("user.txt");
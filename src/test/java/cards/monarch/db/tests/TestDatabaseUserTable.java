@@ -0,0 +1,78 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.DatabaseUser;
+import cards.monarch.db.database.DatabaseUserTable;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestDatabaseUserTable {
+
+    /**
+     * Creates a result set over DatabaseUsers rows, only the getters used to read the table are supported.
+     */
+    private static ResultSet rows(List<Object[]> rows) {
+        String[] columns = {"DatabaseUserID", "GuildID", "DiscordID", "UserName", "CreationTime", "DeletionTime",
+                "Active"};
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            indexes.put(columns[i], i);
+        }
+
+        int[] cursor = {-1};
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("next")) return ++cursor[0] < rows.size();
+                    return rows.get(cursor[0])[indexes.get((String) args[0])];
+                });
+    }
+
+    @Test
+    public void testRead() throws SQLException {
+        UUID id = UUID.randomUUID();
+        Timestamp created = new Timestamp(1600000000000L);
+        // Enough rows to grow the columns, with a name that is not ascii
+        Object[][] rows = new Object[200][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Object[]{UUID.randomUUID().toString(), (long) i, i * 2L, "account" + i, created, null, true};
+        }
+        rows[7] = new Object[]{id.toString(), 3L, 4L, "d\u00e9j\u00e0", created, created, false};
+        rows[65][6] = false;
+
+        DatabaseUserTable table = DatabaseUserTable.read(rows(Arrays.asList(rows)));
+        assertEquals(200, table.size());
+
+        DatabaseUser user = table.get(7);
+        assertEquals(id, user.getDatabaseUserID());
+        assertEquals(3L, user.getGuildID());
+        assertEquals(4L, user.getDiscordID());
+        assertEquals("d\u00e9j\u00e0", user.getUserName());
+        assertEquals(created.getTime(), user.getCreationTime().getTime());
+        assertFalse(user.isActive());
+
+        assertEquals("account199", table.get(199).getUserName());
+        assertEquals(398L, table.get(199).getDiscordID());
+        assertTrue(table.get(199).isActive());
+        // The active flags are packed 64 rows to a word
+        assertTrue(table.get(63).isActive());
+        assertTrue(table.get(64).isActive());
+        assertFalse(table.get(65).isActive());
+        assertThrows(IndexOutOfBoundsException.class, () -> table.get(200));
+        assertThrows(UnsupportedOperationException.class, () -> table.add(user));
+        assertEquals(0, DatabaseUserTable.empty().size());
+    }
+
+}
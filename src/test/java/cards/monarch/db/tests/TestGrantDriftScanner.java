@@ -0,0 +1,115 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.GrantDriftScanner;
+import cards.monarch.db.database.DatabaseUser;
+import cards.monarch.db.database.ProvisioningTargets;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestGrantDriftScanner {
+
+    private static final long CUTOFF = 1000000L;
+
+    private final Map<String, Boolean> roles = new HashMap<>();
+    private final Map<String, Set<String>> grants = new HashMap<>();
+    private final Map<String, DatabaseUser> accounts = new HashMap<>();
+
+    /**
+     * Adds an active account with a role that can read every table.
+     */
+    private void provisioned(String userName) {
+        this.account(userName, CUTOFF - 1L);
+        this.roles.put(userName, true);
+        this.grants.put(userName, new HashSet<>(ProvisioningTargets.GRANTED_TABLES));
+    }
+
+    private void account(String userName, long creationTime) {
+        this.accounts.put(userName, new DatabaseUser(UUID.randomUUID(), 10L, 1L, userName, new Date(creationTime),
+                null, true));
+    }
+
+    private GrantDriftScanner.Drift diff(String... pending) {
+        List<String> pendingRoles = Arrays.asList(pending);
+        return GrantDriftScanner.diff(this.roles, this.grants, this.accounts, pendingRoles::contains, CUTOFF);
+    }
+
+    private static List<String> userNames(List<DatabaseUser> databaseUsers) {
+        List<String> userNames = new ArrayList<>();
+        for (DatabaseUser databaseUser : databaseUsers) {
+            userNames.add(databaseUser.getUserName());
+        }
+        return userNames;
+    }
+
+    @Test
+    public void testNoDrift() {
+        this.provisioned("alice");
+        this.provisioned("bob");
+        // Roles the bot did not create are never touched
+        this.roles.put("postgres", false);
+
+        GrantDriftScanner.Drift drift = this.diff();
+        assertTrue(drift.getOrphans().isEmpty());
+        assertTrue(drift.getMissingGrants().isEmpty());
+        assertTrue(drift.getMissingRoles().isEmpty());
+    }
+
+    @Test
+    public void testOrphanRoles() {
+        this.provisioned("alice");
+        this.roles.put("deleted", true);
+        this.roles.put("pending", true);
+        this.roles.put("postgres", false);
+
+        GrantDriftScanner.Drift drift = this.diff("pending");
+        assertEquals(Collections.singletonList("deleted"), drift.getOrphans());
+        assertTrue(drift.getMissingGrants().isEmpty());
+        assertTrue(drift.getMissingRoles().isEmpty());
+    }
+
+    @Test
+    public void testMissingGrants() {
+        this.provisioned("alice");
+        this.provisioned("bob");
+        this.provisioned("pending");
+        this.grants.get("alice").remove("decks");
+        this.grants.get("alice").remove("cards");
+        this.grants.remove("bob");
+        this.grants.get("pending").clear();
+
+        GrantDriftScanner.Drift drift = this.diff("pending");
+        assertEquals(new HashSet<>(Arrays.asList("alice", "bob")), drift.getMissingGrants().keySet());
+        assertEquals(Arrays.asList("decks", "cards"), drift.getMissingGrants().get("alice"));
+        assertEquals(ProvisioningTargets.GRANTED_TABLES, drift.getMissingGrants().get("bob"));
+        assertTrue(drift.getOrphans().isEmpty());
+        assertTrue(drift.getMissingRoles().isEmpty());
+    }
+
+    @Test
+    public void testMissingRoles() {
+        this.provisioned("alice");
+        this.account("old", CUTOFF - 1L);
+        // Created after the cutoff, its role may still be being provisioned
+        this.account("new", CUTOFF + 1L);
+        this.account("pending", CUTOFF - 1L);
+
+        GrantDriftScanner.Drift drift = this.diff("pending");
+        assertEquals(Collections.singletonList("old"), userNames(drift.getMissingRoles()));
+        assertTrue(drift.getOrphans().isEmpty());
+        assertTrue(drift.getMissingGrants().isEmpty());
+    }
+
+}
@@ -0,0 +1,26 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.LeaderElection;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class TestLeaderElection {
+
+    @Test
+    public void testUnreachable() {
+        // An instance that cannot reach the database is never the leader
+        LeaderElection election = new LeaderElection(new DatabaseLogin("localhost", 1, "", "user", "pass"), 3000L);
+        AtomicInteger transitions = new AtomicInteger();
+        election.addListener(leader -> transitions.incrementAndGet());
+        election.start();
+        assertFalse(election.isLeader());
+        election.stop();
+        assertEquals(0, transitions.get());
+    }
+
+}
@@ -0,0 +1,197 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.AuditFeed;
+import cards.monarch.db.BotManager;
+import cards.monarch.db.MembershipTracker;
+import cards.monarch.db.database.DatabaseExec;
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.DatabaseUser;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestMembershipTracker {
+
+    private static final long STOP_TIMEOUT_MS = 10000L;
+
+    /**
+     * A login that serves the active accounts of guild 1, owned by users 10 and up, to the cache refresh, or fails
+     * every call. While deleting it can lose the connection after a number of accounts.
+     */
+    private static class FakeLogin extends DatabaseLogin {
+
+        private final int accounts;
+        private volatile String mode = "serve";
+        /**
+         * The amount of accounts deleted before the connection is lost, -1 to never lose it.
+         */
+        private volatile int deletesBeforeDrop = -1;
+        private final AtomicInteger deleted = new AtomicInteger();
+
+        private FakeLogin(int accounts) {
+            super("localhost", 1, "", "user", "pass");
+            this.accounts = accounts;
+        }
+
+        @Override
+        public boolean connectAndExec(DatabaseExec databaseExec) throws SQLException {
+            if (this.mode.equals("down")) return false;
+            if (this.mode.equals("throw")) throw new SQLException("The database is down.", "08006");
+            try {
+                databaseExec.exec(this.connection());
+                return true;
+            } catch (SQLException e) {
+                // As the real login, which only returns whether the code ran
+                return false;
+            }
+        }
+
+        private Connection connection() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("createStatement")) return this.statement();
+                        if (method.getName().equals("prepareStatement")) return this.delete();
+                        return defaultValue(method.getReturnType());
+                    });
+        }
+
+        private Statement statement() {
+            return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                    new Class<?>[]{Statement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("executeQuery")) {
+                            return this.result(((String) args[0]).contains("DatabaseUsers") ? this.accounts : 0);
+                        }
+                        return defaultValue(method.getReturnType());
+                    });
+        }
+
+        private PreparedStatement delete() {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("executeUpdate")) {
+                            if (this.deleted.get() == this.deletesBeforeDrop) {
+                                throw new SQLException("An I/O error occurred while sending to the backend.", "08006");
+                            }
+                            this.deleted.incrementAndGet();
+                            return 1;
+                        }
+                        return defaultValue(method.getReturnType());
+                    });
+        }
+
+        private ResultSet result(int rows) {
+            int[] row = {-1};
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("next")) return ++row[0] < rows;
+                        if (method.getName().startsWith("get") && args != null && args[0] instanceof String) {
+                            switch ((String) args[0]) {
+                                case "DatabaseUserID":
+                                    return new UUID(0L, row[0]).toString();
+                                case "DiscordID":
+                                    return 10L + row[0];
+                                case "GuildID":
+                                    return 1L;
+                                case "UserName":
+                                    return "account" + row[0];
+                                case "CreationTime":
+                                    return new Timestamp(0L);
+                                case "Active":
+                                    return true;
+                                default:
+                                    return defaultValue(method.getReturnType());
+                            }
+                        }
+                        return defaultValue(method.getReturnType());
+                    });
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) return false;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            return null;
+        }
+
+    }
+
+    private static int activeAccounts(BotManager botManager) {
+        int active = 0;
+        for (DatabaseUser databaseUser : botManager.getDatabaseUsers()) {
+            if (databaseUser.isActive()) active++;
+        }
+        return active;
+    }
+
+    @Test
+    public void testFailedFlushKeepsDepartures() {
+        FakeLogin login = new FakeLogin(1);
+        BotManager botManager = new BotManager(login, "token");
+        assertEquals(1, botManager.getDatabaseUsers().size());
+        // Only flushed by stop, which can be called again to flush again
+        MembershipTracker tracker = new MembershipTracker(botManager, new AuditFeed(botManager, 60000L, 25), 60000L,
+                500);
+
+        tracker.memberLeft(1L, 10L);
+        tracker.memberLeft(1L, 11L);
+        tracker.guildLeft(2L);
+        assertEquals(3, tracker.getPending());
+
+        // Fails at once, as with an open circuit breaker
+        login.mode = "down";
+        tracker.stop(STOP_TIMEOUT_MS);
+        assertEquals(3, tracker.getPending());
+
+        login.mode = "throw";
+        tracker.stop(STOP_TIMEOUT_MS);
+        assertEquals(3, tracker.getPending());
+    }
+
+    @Test
+    public void testDeparturesWithoutAccountsAreDone() {
+        FakeLogin login = new FakeLogin(1);
+        BotManager botManager = new BotManager(login, "token");
+        MembershipTracker tracker = new MembershipTracker(botManager, new AuditFeed(botManager, 60000L, 25), 60000L,
+                500);
+
+        login.mode = "down";
+        tracker.memberLeft(3L, 30L);
+        tracker.stop(STOP_TIMEOUT_MS);
+        assertEquals(0, tracker.getPending());
+    }
+
+    @Test
+    public void testConnectionLostPartWay() {
+        FakeLogin login = new FakeLogin(3);
+        BotManager botManager = new BotManager(login, "token");
+        assertEquals(3, activeAccounts(botManager));
+        MembershipTracker tracker = new MembershipTracker(botManager, new AuditFeed(botManager, 60000L, 25), 60000L,
+                500);
+
+        // The first account is deleted, then the connection drops
+        login.deletesBeforeDrop = 1;
+        tracker.guildLeft(1L);
+        tracker.stop(STOP_TIMEOUT_MS);
+        assertEquals(1, login.deleted.get());
+        assertEquals(2, activeAccounts(botManager));
+        assertEquals(1, tracker.getPending());
+
+        // The retry only deletes the accounts that are left
+        login.deletesBeforeDrop = -1;
+        tracker.stop(STOP_TIMEOUT_MS);
+        assertEquals(3, login.deleted.get());
+        assertEquals(0, activeAccounts(botManager));
+        assertEquals(0, tracker.getPending());
+    }
+
+}
@@ -0,0 +1,39 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.metrics.Counter;
+import cards.monarch.db.metrics.Histogram;
+import cards.monarch.db.metrics.Metrics;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestMetrics {
+
+    @Test
+    public void testCounter() {
+        Counter counter = Metrics.counter("test_counter_total", "A test counter.");
+        counter.inc();
+        counter.inc(2);
+        assertEquals(3, counter.get());
+        assertSame(counter, Metrics.counter("test_counter_total", "A test counter."));
+        assertTrue(Metrics.scrape().contains("# TYPE test_counter_total counter\ntest_counter_total 3\n"));
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = Metrics.histogram("test_latency_seconds", "A test histogram.", "path=\"test\"");
+        histogram.recordNanos(1_500_000L);
+        histogram.recordNanos(3_000_000_000L);
+        assertEquals(2, histogram.getCount());
+
+        String scrape = Metrics.scrape();
+        // 1.5ms is below 2^21ns (~2.1ms), 3s is only in the buckets above 2^31ns (~2.1s)
+        assertTrue(scrape.contains("test_latency_seconds_bucket{path=\"test\",le=\"0.002097152\"} 1\n"));
+        assertTrue(scrape.contains("test_latency_seconds_bucket{path=\"test\",le=\"4.294967296\"} 2\n"));
+        assertTrue(scrape.contains("test_latency_seconds_bucket{path=\"test\",le=\"+Inf\"} 2\n"));
+        assertTrue(scrape.contains("test_latency_seconds_count{path=\"test\"} 2\n"));
+    }
+
+}
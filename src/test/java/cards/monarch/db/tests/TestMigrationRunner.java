@@ -0,0 +1,146 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.DatabaseExec;
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.MigrationRunner;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestMigrationRunner {
+
+    /**
+     * SHA-256 of V1__baseline.sql, this changes only when the file is edited.
+     */
+    private static final String BASELINE_CHECKSUM = "5b475d7eef1b2d535105079f80ecc0f89646a950805b1ae8a1ca41fed8c4d150";
+
+    /**
+     * A login whose SchemaMigrations table holds the given versions and checksums, it keeps the migrations it applies.
+     */
+    private static class FakeLogin extends DatabaseLogin {
+
+        private final Map<Integer, String> applied;
+        private final List<Integer> inserted = new ArrayList<>();
+
+        private FakeLogin(Map<Integer, String> applied) {
+            super("localhost", 1, "", "user", "pass");
+            this.applied = applied;
+        }
+
+        @Override
+        public boolean connectAndExec(DatabaseExec databaseExec) throws SQLException {
+            databaseExec.exec(this.connection());
+            return true;
+        }
+
+        private Connection connection() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("createStatement")) return this.statement();
+                        if (method.getName().equals("prepareStatement")) return this.insert();
+                        return null;
+                    });
+        }
+
+        private Statement statement() {
+            return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                    new Class<?>[]{Statement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("executeQuery")) return this.appliedRows();
+                        if (method.getName().equals("execute")) return false;
+                        return null;
+                    });
+        }
+
+        private PreparedStatement insert() {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("setInt")) this.inserted.add((Integer) args[1]);
+                        if (method.getName().equals("executeUpdate")) return 1;
+                        return null;
+                    });
+        }
+
+        private ResultSet appliedRows() {
+            List<Map.Entry<Integer, String>> rows = new ArrayList<>(this.applied.entrySet());
+            int[] next = {-1};
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "next":
+                                return ++next[0] < rows.size();
+                            case "getInt":
+                                return rows.get(next[0]).getKey();
+                            case "getString":
+                                return rows.get(next[0]).getValue();
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        List<MigrationRunner.Migration> migrations = MigrationRunner.loadMigrations();
+        assertFalse(migrations.isEmpty());
+        for (int i = 0; i < migrations.size(); i++) {
+            assertEquals(i + 1, migrations.get(i).getVersion());
+            assertTrue(migrations.get(i).getChecksum().matches("[0-9a-f]{64}"));
+        }
+        assertEquals("baseline", migrations.get(0).getDescription());
+    }
+
+    @Test
+    public void testChecksumStable() throws IOException {
+        assertEquals(BASELINE_CHECKSUM, MigrationRunner.loadMigrations().get(0).getChecksum());
+    }
+
+    @Test
+    public void testAppliesNewMigrations() throws Exception {
+        List<MigrationRunner.Migration> migrations = MigrationRunner.loadMigrations();
+        Map<Integer, String> applied = new LinkedHashMap<>();
+        applied.put(1, BASELINE_CHECKSUM);
+        FakeLogin login = new FakeLogin(applied);
+
+        assertTrue(new MigrationRunner(login).migrate());
+        assertEquals(migrations.size() - 1, login.inserted.size());
+        assertEquals(2, (int) login.inserted.get(0));
+
+        for (MigrationRunner.Migration migration : migrations) {
+            applied.put(migration.getVersion(), migration.getChecksum());
+        }
+        login.inserted.clear();
+        assertTrue(new MigrationRunner(login).migrate());
+        assertEquals(Collections.emptyList(), login.inserted);
+    }
+
+    @Test
+    public void testRefusesEditedMigration() throws IOException {
+        // V1 was applied from a file that has since been edited
+        Map<Integer, String> applied = new LinkedHashMap<>();
+        applied.put(1, BASELINE_CHECKSUM.replace('5', '6'));
+        FakeLogin login = new FakeLogin(applied);
+
+        SQLException e = assertThrows(SQLException.class, () -> new MigrationRunner(login).migrate());
+        assertTrue(e.getMessage().contains("V1"));
+        assertEquals(Collections.emptyList(), login.inserted);
+    }
+
+}
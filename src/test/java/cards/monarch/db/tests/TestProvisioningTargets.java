@@ -0,0 +1,55 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.ProvisioningTargets;
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestProvisioningTargets {
+
+    @Test
+    public void testPasswordVerifier() {
+        String verifier = ProvisioningTargets.passwordVerifier("pencil");
+        assertTrue(verifier.matches("SCRAM-SHA-256\\$4096:[A-Za-z0-9+/=]+\\$[A-Za-z0-9+/=]+:[A-Za-z0-9+/=]+"));
+        String[] keys = verifier.substring(verifier.lastIndexOf('$') + 1).split(":");
+        assertEquals(32, Base64.getDecoder().decode(keys[0]).length);
+        assertEquals(32, Base64.getDecoder().decode(keys[1]).length);
+        assertFalse(verifier.contains("pencil"));
+        // Every verifier has its own salt
+        assertNotEquals(verifier, ProvisioningTargets.passwordVerifier("pencil"));
+    }
+
+    @Test
+    public void testLagging() {
+        // Neither login can connect, so every change fails and is kept for a retry
+        ProvisioningTargets targets = new ProvisioningTargets(new DatabaseLogin("localhost", 1, "", "user", "pass"));
+        targets.addTarget("analytics", new DatabaseLogin("localhost", 1, "", "user", "pass"));
+        assertThrows(IllegalArgumentException.class, () ->
+                targets.addTarget("analytics", new DatabaseLogin("localhost", 1, "", "user", "pass")));
+
+        Map<String, CompletableFuture<Boolean>> results = targets.createRole("alice", "verifier");
+        assertEquals(ProvisioningTargets.PRIMARY, results.keySet().iterator().next());
+        for (CompletableFuture<Boolean> result : results.values()) {
+            assertFalse(result.join());
+        }
+        assertEquals(1, (int) targets.getLagging().get("analytics"));
+
+        // The drop replaces the create that is waiting for a retry
+        for (CompletableFuture<Boolean> result : targets.dropRole("alice").values()) {
+            assertFalse(result.join());
+        }
+        assertEquals(1, (int) targets.getLagging().get("analytics"));
+        assertEquals(2, targets.retryLagging());
+        assertTrue(targets.shutdown(5000L));
+    }
+
+}
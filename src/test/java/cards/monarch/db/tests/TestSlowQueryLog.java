@@ -0,0 +1,96 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.ProvisioningTargets;
+import cards.monarch.db.database.SlowQueryLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlowQueryLog {
+
+    private static final String ANALYZE = "EXPLAIN (ANALYZE, BUFFERS) ";
+    private static final String PLAIN = "EXPLAIN ";
+    private static final Path LOG = Paths.get("slow-queries.0.log");
+
+    @AfterEach
+    void deleteLog() throws IOException {
+        Files.deleteIfExists(LOG);
+        Files.deleteIfExists(Paths.get("slow-queries.0.log.lck"));
+    }
+
+    /**
+     * A connection whose statements do nothing.
+     */
+    private static Connection connection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                        new Class<?>[]{Statement.class}, (statement, statementMethod, statementArgs) -> {
+                            if (statementMethod.getReturnType() == boolean.class) return false;
+                            if (statementMethod.getReturnType() == int.class) return 0;
+                            return null;
+                        }));
+    }
+
+    @Test
+    public void testOnlyPlainSelectsAreAnalyzed() {
+        assertEquals(ANALYZE, SlowQueryLog.explainPrefix("select * from DatabaseUsers where Active;"));
+        assertEquals(ANALYZE, SlowQueryLog.explainPrefix("  SELECT GuildID\nFROM GuildSettings"));
+
+        // Running these again would write a second time
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix(
+                "with d as (delete from DatabaseUsers where not Active returning *) insert into History select * from d;"));
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix("with recent as (select 1) select * from recent;"));
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix("delete from AuditLog where EventTime < ?;"));
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix("insert into AuditLog values (?, ?);"));
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix("select * into Copy from DatabaseUsers;"));
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix("select * from DatabaseUsers for update;"));
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix("select nextval('ids');"));
+        assertEquals(PLAIN, SlowQueryLog.explainPrefix("select pg_try_advisory_lock(?);"));
+
+        assertNull(SlowQueryLog.explainPrefix("create table T (i int);"));
+        assertNull(SlowQueryLog.explainPrefix("select 1; delete from T;"));
+    }
+
+    @Test
+    public void testRedact() {
+        assertEquals("create role \"u\" with login password '<redacted>';",
+                SlowQueryLog.redact("create role \"u\" with login password 'SCRAM-SHA-256$4096:c2FsdA==$a:b';"));
+        assertEquals("ALTER ROLE u PASSWORD '<redacted>' VALID UNTIL 'infinity';",
+                SlowQueryLog.redact("ALTER ROLE u PASSWORD 'it''s secret' VALID UNTIL 'infinity';"));
+        assertEquals("select * from DatabaseUsers where UserName = 'password';",
+                SlowQueryLog.redact("select * from DatabaseUsers where UserName = 'password';"));
+    }
+
+    @Test
+    public void testVerifierNeverLogged() throws IOException, SQLException {
+        String verifier = ProvisioningTargets.passwordVerifier("correct horse battery staple");
+        // Every statement is slow
+        SlowQueryLog slowQueryLog = new SlowQueryLog(new DatabaseLogin("localhost", 1, "", "user", "pass"), 0L, 0D);
+        try (Statement statement = slowQueryLog.wrap(connection()).createStatement()) {
+            statement.execute("create role \"account\" with login password '" + verifier + "';");
+        } finally {
+            slowQueryLog.close();
+        }
+
+        String log = new String(Files.readAllBytes(LOG), StandardCharsets.UTF_8);
+        assertTrue(log.contains("create role \"account\" with login password '<redacted>';"));
+        assertFalse(log.contains(verifier));
+        assertFalse(log.contains(verifier.substring(verifier.lastIndexOf('$') + 1)));
+    }
+
+}
@@ -0,0 +1,84 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.StripedExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestStripedExecutor {
+
+    @Test
+    public void testOrderPerKey() throws InterruptedException {
+        StripedExecutor executor = new StripedExecutor("Test", 4, false);
+        List<List<Integer>> results = new ArrayList<>();
+        for (int key = 0; key < 8; key++) {
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            for (int key = 0; key < 8; key++) {
+                int value = i;
+                List<Integer> result = results.get(key);
+                executor.submit(key, () -> result.add(value));
+            }
+        }
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+
+        for (List<Integer> result : results) {
+            assertEquals(1000, result.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, result.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectAfterShutdown() throws InterruptedException {
+        StripedExecutor executor = new StripedExecutor("Test", 2, false);
+        assertTrue(executor.shutdown(1, TimeUnit.SECONDS));
+
+        CompletableFuture<Void> future = executor.submit(1, () -> {
+        });
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, executor.getQueueDepths()[1]);
+    }
+
+    @Test
+    public void testSubmitDuringShutdown() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            StripedExecutor executor = new StripedExecutor("Test", 2, false);
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            AtomicReference<Throwable> thrown = new AtomicReference<>();
+            Thread submitter = new Thread(() -> {
+                try {
+                    // Until a submit sees the shutdown, some race it
+                    for (int i = 0; futures.isEmpty() || !futures.get(futures.size() - 1).isCompletedExceptionally();
+                         i++) {
+                        futures.add(executor.submit(i, () -> {
+                        }));
+                    }
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            });
+            submitter.start();
+            executor.shutdown(10, TimeUnit.SECONDS);
+            submitter.join();
+
+            assertNull(thrown.get());
+            for (CompletableFuture<Void> future : futures) {
+                assertTrue(future.isDone());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package cards.monarch.db.tests;
+
+import cards.monarch.db.database.DatabaseExec;
+import cards.monarch.db.database.DatabaseLogin;
+import cards.monarch.db.database.DiscordUser;
+import cards.monarch.db.database.GuildConfig;
+import cards.monarch.db.database.WriteBehindBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestWriteBehindBuffer {
+
+    /**
+     * A login that keeps the sql of every statement, no rows are returned.
+     */
+    private static class FakeLogin extends DatabaseLogin {
+
+        private final List<String> statements = new ArrayList<>();
+
+        private FakeLogin() {
+            super("localhost", 1, "", "user", "pass");
+        }
+
+        @Override
+        public boolean connectAndExec(DatabaseExec databaseExec) throws SQLException {
+            databaseExec.exec((Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        if (!method.getName().equals("prepareStatement")) return null;
+                        this.statements.add((String) args[0]);
+                        return statement();
+                    }));
+            return true;
+        }
+
+        private static PreparedStatement statement() {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("executeQuery")) return emptyResult();
+                        if (method.getName().equals("executeUpdate")) return 0;
+                        return null;
+                    });
+        }
+
+        private static ResultSet emptyResult() {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("next")) return false;
+                        return null;
+                    });
+        }
+
+    }
+
+    @Test
+    public void testWritesAreVisibleAndCoalesced() {
+        Map<Long, GuildConfig> guildConfigs = new HashMap<>();
+        Map<Long, DiscordUser> discordUsers = new HashMap<>();
+        // Never flushed, so it does not need a database
+        WriteBehindBuffer buffer = new WriteBehindBuffer(null, null, guildConfigs, discordUsers);
+
+        buffer.putGuildConfig(new GuildConfig(1L));
+        buffer.putGuildConfig(new GuildConfig(1L, true, 2L, 3L, 4L, 5L));
+        buffer.putDiscordUser(10L, "first#0001");
+        buffer.putDiscordUser(10L, "second#0001");
+        buffer.putDiscordUser(11L, "other#0001");
+
+        assertEquals(3, buffer.getPending());
+        assertTrue(guildConfigs.get(1L).isAllowedAccess());
+        assertEquals(5L, guildConfigs.get(1L).getAdministratorRoleID());
+        assertEquals("second#0001", discordUsers.get(10L).getNameCache());
+        assertEquals("other#0001", discordUsers.get(11L).getNameCache());
+    }
+
+    @Test
+    public void testApplyPendingRestoresTheCache() {
+        Map<Long, GuildConfig> guildConfigs = new HashMap<>();
+        Map<Long, DiscordUser> discordUsers = new HashMap<>();
+        WriteBehindBuffer buffer = new WriteBehindBuffer(null, null, guildConfigs, discordUsers);
+
+        buffer.putGuildConfig(new GuildConfig(1L));
+        buffer.putDiscordUser(10L, "new#0001");
+        // A cache refresh that read the rows before they were written
+        guildConfigs.clear();
+        discordUsers.put(10L, new DiscordUser(10L, "old#0001"));
+
+        buffer.applyPending();
+        assertFalse(guildConfigs.get(1L).isAllowedAccess());
+        assertEquals(-1L, guildConfigs.get(1L).getUserChangeLogChannelID());
+        assertEquals("new#0001", discordUsers.get(10L).getNameCache());
+    }
+
+    @Test
+    public void testNewGuildKeepsSettings() {
+        Map<Long, GuildConfig> guildConfigs = new HashMap<>();
+        Map<Long, DiscordUser> discordUsers = new HashMap<>();
+        WriteBehindBuffer buffer = new WriteBehindBuffer(null, null, guildConfigs, discordUsers);
+
+        buffer.addGuildConfig(new GuildConfig(1L));
+        assertEquals(1, buffer.getPending());
+        assertEquals(-1L, guildConfigs.get(1L).getAdministratorRoleID());
+
+        // A cache refresh that found settings for the guild
+        guildConfigs.put(1L, new GuildConfig(1L, true, 2L, 3L, 4L, 5L));
+        buffer.applyPending();
+        assertEquals(5L, guildConfigs.get(1L).getAdministratorRoleID());
+        buffer.addGuildConfig(new GuildConfig(1L));
+        assertEquals(5L, guildConfigs.get(1L).getAdministratorRoleID());
+
+        // A real change replaces the queued default
+        buffer.putGuildConfig(new GuildConfig(1L, true, 2L, 3L, 4L, 6L));
+        buffer.addGuildConfig(new GuildConfig(1L));
+        assertEquals(1, buffer.getPending());
+        assertEquals(6L, guildConfigs.get(1L).getAdministratorRoleID());
+    }
+
+    @Test
+    public void testNewGuildIsOnlyInserted() {
+        FakeLogin login = new FakeLogin();
+        WriteBehindBuffer buffer = new WriteBehindBuffer(login, null, new HashMap<>(), new HashMap<>());
+
+        buffer.addGuildConfig(new GuildConfig(1L));
+        buffer.putGuildConfig(new GuildConfig(2L, true, 2L, 3L, 4L, 5L));
+        assertTrue(buffer.flush());
+        assertEquals(0, buffer.getPending());
+        assertEquals(2, login.statements.size());
+        assertTrue(login.statements.get(0).contains("on conflict (GuildID) do nothing"));
+        assertTrue(login.statements.get(1).contains("on conflict (GuildID) do update"));
+    }
+
+}
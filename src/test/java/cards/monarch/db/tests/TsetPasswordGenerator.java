@@ -3,6 +3,8 @@ package cards.monarch.db.tests;
 import cards.monarch.db.commands.PasswordGenerator;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TsetPasswordGenerator {
@@ -14,4 +16,53 @@ public class TsetPasswordGenerator {
         assertTrue(password.length() == PasswordGenerator.PASSWORD_LEN);
     }
 
+    @Test
+    public void testBulkPasswordGenerator() {
+        char[][] passwords = PasswordGenerator.getPasswords(1000, "abc".toCharArray(), 20);
+        assertEquals(1000, passwords.length);
+        for (char[] password : passwords) {
+            assertEquals(20, password.length);
+            for (char c : password) {
+                assertTrue(c == 'a' || c == 'b' || c == 'c');
+            }
+        }
+
+        PasswordGenerator.clear(passwords[0]);
+        for (char c : passwords[0]) {
+            assertEquals('\0', c);
+        }
+    }
+
+    @Test
+    public void testInvalidAlphabet() {
+        assertThrows(IllegalArgumentException.class, () -> PasswordGenerator.getPasswords(1, "a".toCharArray(), 15));
+    }
+
+    @Test
+    public void testBulkBounds() {
+        char[] alphabet = "abc".toCharArray();
+        assertEquals(0, PasswordGenerator.getPasswords(0, alphabet, 15).length);
+        assertEquals(1, PasswordGenerator.getPasswords(1, alphabet, 1)[0].length);
+        assertThrows(IllegalArgumentException.class, () -> PasswordGenerator.getPasswords(-1, alphabet, 15));
+        assertThrows(IllegalArgumentException.class, () -> PasswordGenerator.getPasswords(1, alphabet, 0));
+        assertThrows(IllegalArgumentException.class, () -> PasswordGenerator.getPasswords(1, alphabet, -15));
+        // Would wrap around to a small positive int without the overflow check
+        assertThrows(IllegalArgumentException.class, () -> PasswordGenerator.getPasswords(65537, alphabet, 65537));
+        assertThrows(IllegalArgumentException.class,
+                () -> PasswordGenerator.getPasswords(Integer.MAX_VALUE, alphabet, 2));
+
+        // Needs more random bytes than one buffer holds
+        char[][] passwords = PasswordGenerator.getPasswords(10000, alphabet, 20);
+        for (char[] password : passwords) {
+            for (char c : password) {
+                assertTrue(c == 'a' || c == 'b' || c == 'c');
+            }
+        }
+    }
+
+    @Test
+    public void testEntropy() {
+        assertEquals(15 * 6, PasswordGenerator.getEntropyBits(64, 15), 0.0001);
+    }
+
 }